@@ -1,5 +1,7 @@
 package ru.fizteh.fivt.storage.structured;
 
+import java.util.Iterator;
+
 /**
  * Дополнительный интерфейс к {@link ru.fizteh.fivt.storage.structured.TableProvider}, позволяющий создавать индексы на
  * основе имеющейся таблицы.
@@ -27,4 +29,15 @@ public interface IndexProvider extends TableProvider {
      * @throws IllegalStateException Если индекс содержит невалидные элементы.
      */
     Index createIndex(Table table, int column, String name) throws IllegalArgumentException, IllegalStateException;
+
+    /**
+     * Возвращает все строки таблицы, у которых значение проиндексированной колонки равно key.
+     * Строки отдаются по одной по мере обхода индекса.
+     *
+     * @param indexName Имя индекса. Не должно быть null.
+     * @param key Значение колонки. Для индексов по не-строковым полям - сериализованное значение.
+     * @return Итератор по найденным строкам.
+     * @throws IllegalArgumentException Если индекса с таким именем нет или значение key невалидно.
+     */
+    Iterator<Storeable> lookup(String indexName, String key) throws IllegalArgumentException;
 }
@@ -301,10 +301,6 @@ public class FileMap implements Table, AutoCloseable {
         }
     }
 
-    private void refreshTableFiles(Set<String> changedKey) throws Exception {
-        refreshTableFiles(changedKey, getLocalTransaction());
-    }
-
     private void refreshTableFiles(Set<String> changedKey, int numberTransaction) throws Exception {
         if (tableDrop || isTableClose) {
             throw new IllegalStateException("table was deleted");
@@ -429,8 +425,10 @@ public class FileMap implements Table, AutoCloseable {
         if (tableDrop || isTableClose) {
             throw new IllegalStateException("table was deleted");
         }
-        MyHashMap currentDiff = parent.getPool().getMap(numberTransaction);
-        return currentDiff.size();
+        MyHashMap currentDiff = transactionDiff(numberTransaction);
+        synchronized (currentDiff) {
+            return currentDiff.size();
+        }
     }
 
     public Storeable put(String key, Storeable value) throws ColumnFormatException {
@@ -500,27 +498,30 @@ public class FileMap implements Table, AutoCloseable {
             throw new ColumnFormatException(st.messageEqualsType(columnType));
         }
 
-        MyHashMap currentDiff = parent.getPool().getMap(numberTransaction);
-        if (currentDiff.containsKey(key)) {
-            Storeable newValue = currentDiff.get(key);
-            if (newValue == null) {
-                currentDiff.put(key, value);
-                return null;
+        MyHashMap currentDiff = transactionDiff(numberTransaction);
+        synchronized (currentDiff) {
+            checkTransaction(numberTransaction, currentDiff);
+            if (currentDiff.containsKey(key)) {
+                Storeable newValue = currentDiff.get(key);
+                if (newValue == null) {
+                    currentDiff.put(key, value);
+                    return null;
+                } else {
+                    Storeable oldValue = currentDiff.get(key);
+                    currentDiff.put(key, value);
+                    return oldValue;
+                }
             } else {
-                Storeable oldValue = currentDiff.get(key);
+                Storeable oldValue = null;
+                read.lock();
+                try {
+                    oldValue = tableData.get(key);
+                } finally {
+                    read.unlock();
+                }
                 currentDiff.put(key, value);
                 return oldValue;
             }
-        } else {
-            Storeable oldValue = null;
-            read.lock();
-            try {
-                oldValue = tableData.get(key);
-            } finally {
-                read.unlock();
-            }
-            currentDiff.put(key, value);
-            return oldValue;
         }
     }
 
@@ -539,21 +540,23 @@ public class FileMap implements Table, AutoCloseable {
         }
 
         Storeable value = null;
-        MyHashMap currentDiff = parent.getPool().getMap(numberTransaction);
-        if (currentDiff.containsKey(key)) {
-            Storeable newValue = currentDiff.get(key);
-            if (newValue == null) {
-                value = null;
+        MyHashMap currentDiff = transactionDiff(numberTransaction);
+        synchronized (currentDiff) {
+            if (currentDiff.containsKey(key)) {
+                Storeable newValue = currentDiff.get(key);
+                if (newValue == null) {
+                    value = null;
+                } else {
+                    value = currentDiff.get(key);
+                    return value;
+                }
             } else {
-                value = currentDiff.get(key);
-                return value;
-            }
-        } else {
-            read.lock();
-            try {
-                value = tableData.get(key);
-            } finally {
-                read.unlock();
+                read.lock();
+                try {
+                    value = tableData.get(key);
+                } finally {
+                    read.unlock();
+                }
             }
         }
 
@@ -579,27 +582,30 @@ public class FileMap implements Table, AutoCloseable {
             read.unlock();
         }
 
-        MyHashMap currentDiff = parent.getPool().getMap(numberTransaction);
-        if (currentDiff.containsKey(key)) {
-            Storeable newValue = currentDiff.get(key);
-            if (value != null) {
-                if (newValue == null) {
-                    resValue =  null;
+        MyHashMap currentDiff = transactionDiff(numberTransaction);
+        synchronized (currentDiff) {
+            checkTransaction(numberTransaction, currentDiff);
+            if (currentDiff.containsKey(key)) {
+                Storeable newValue = currentDiff.get(key);
+                if (value != null) {
+                    if (newValue == null) {
+                        resValue =  null;
+                    } else {
+                        Storeable valueChange = currentDiff.get(key);
+                        currentDiff.put(key, null);
+                        resValue =  valueChange;
+                    }
                 } else {
-                    Storeable valueChange = currentDiff.get(key);
-                    currentDiff.put(key, null);
-                    resValue =  valueChange;
+                    currentDiff.remove(key);
+                    resValue =  newValue;
                 }
             } else {
-                currentDiff.remove(key);
-                resValue =  newValue;
-            }
-        } else {
-            if (value != null) {
-                currentDiff.put(key, null);
-                resValue =  value;
-            } else {
-                resValue =  null;
+                if (value != null) {
+                    currentDiff.put(key, null);
+                    resValue =  value;
+                } else {
+                    resValue =  null;
+                }
             }
         }
 
@@ -617,27 +623,29 @@ public class FileMap implements Table, AutoCloseable {
 
         int tmpSize = this.sizeDataInFiles;
 
-        MyHashMap currentDiff = parent.getPool().getMap(numberTransaction);
-        for (String key : currentDiff.keySet()) {
-
-            boolean containsKey;
-            read.lock();
-            try {
-                containsKey = tableData.containsKey(key);
-            } finally {
-                read.unlock();
-            }
+        MyHashMap currentDiff = transactionDiff(numberTransaction);
+        synchronized (currentDiff) {
+            for (String key : currentDiff.keySet()) {
 
-            if (containsKey) {
-                if (currentDiff.get(key) == null) {
-                    --tmpSize;
+                boolean containsKey;
+                read.lock();
+                try {
+                    containsKey = tableData.containsKey(key);
+                } finally {
+                    read.unlock();
                 }
-            } else {
-                if (currentDiff.get(key) != null) {
-                    ++tmpSize;
+
+                if (containsKey) {
+                    if (currentDiff.get(key) == null) {
+                        --tmpSize;
+                    }
+                } else {
+                    if (currentDiff.get(key) != null) {
+                        ++tmpSize;
+                    }
                 }
-            }
 
+            }
         }
 
         return tmpSize;
@@ -651,61 +659,64 @@ public class FileMap implements Table, AutoCloseable {
         if (tableDrop || isTableClose) {
             throw new IllegalStateException("table was deleted");
         }
-        int count = 0;
-        int currentSize = this.size();
-        Set<String> changedKey = new HashSet<>();
-        Exception err = null;
-        write.lock();
-        MyHashMap currentDiff = parent.getPool().getMap(numberTransaction);
-        try {
-            for (String key : currentDiff.keySet()) {
-                Storeable value = currentDiff.get(key);
-                Storeable oldValue = null;
-                oldValue = tableData.get(key);
-                if (value == null) {
-                    if (oldValue != null) {
-                        ++count;
-                        changedKey.add(key);
-                    }
-                    tableData.remove(key);
-                } else {
-                    if (oldValue == null) {
-                        ++count;
-                        changedKey.add(key);
+        MyHashMap currentDiff = transactionDiff(numberTransaction);
+        synchronized (currentDiff) {
+            checkTransaction(numberTransaction, currentDiff);
+            int count = 0;
+            int currentSize = this.size(numberTransaction);
+            Set<String> changedKey = new HashSet<>();
+            Exception err = null;
+            write.lock();
+            try {
+                for (String key : currentDiff.keySet()) {
+                    Storeable value = currentDiff.get(key);
+                    Storeable oldValue = null;
+                    oldValue = tableData.get(key);
+                    if (value == null) {
+                        if (oldValue != null) {
+                            ++count;
+                            changedKey.add(key);
+                        }
+                        tableData.remove(key);
                     } else {
-                        if (!parent.serialize(this, value).equals(parent.serialize(this, oldValue))) {
+                        if (oldValue == null) {
                             ++count;
                             changedKey.add(key);
+                        } else {
+                            if (!parent.serialize(this, value).equals(parent.serialize(this, oldValue))) {
+                                ++count;
+                                changedKey.add(key);
+                            }
                         }
+                        tableData.put(key, currentDiff.get(key));
                     }
-                    tableData.put(key, currentDiff.get(key));
-                }
-            }
-        } catch (Exception e) {
-            err = e;
-        } finally {
-            try {
-                refreshTableFiles(changedKey);
-                writeSizeTsv(currentSize);
-                this.sizeDataInFiles = currentSize;
-            } catch (Exception errRefresh) {
-                if (err == null) {
-                    err = errRefresh;
-                } else {
-                    err.addSuppressed(errRefresh);
                 }
+            } catch (Exception e) {
+                err = e;
             } finally {
-                currentDiff.clear();
-                if (needChangeTransaction) {
-                    parent.getPool().deleteTransaction(numberTransaction);
-                }
-                write.unlock();
-                if (err != null) {
-                    throw new IllegalStateException(err);
+                try {
+                    refreshTableFiles(changedKey, numberTransaction);
+                    writeSizeTsv(currentSize);
+                    this.sizeDataInFiles = currentSize;
+                } catch (Exception errRefresh) {
+                    if (err == null) {
+                        err = errRefresh;
+                    } else {
+                        err.addSuppressed(errRefresh);
+                    }
+                } finally {
+                    currentDiff.clear();
+                    if (needChangeTransaction) {
+                        parent.getPool().deleteTransaction(numberTransaction);
+                    }
+                    write.unlock();
+                    if (err != null) {
+                        throw new IllegalStateException(err);
+                    }
                 }
             }
+            return count;
         }
-        return count;
     }
 
     public int rollback() {
@@ -717,39 +728,60 @@ public class FileMap implements Table, AutoCloseable {
             throw new IllegalStateException("table was deleted");
         }
         int count = 0;
-        MyHashMap currentDiff = parent.getPool().getMap(numberTransaction);
-        for (String key : currentDiff.keySet()) {
-            Storeable diffValue = currentDiff.get(key);
-
-            Storeable value = null;
-            read.lock();
-            try {
-                value = tableData.get(key);
-            } finally {
-                read.unlock();
-            }
+        MyHashMap currentDiff = transactionDiff(numberTransaction);
+        synchronized (currentDiff) {
+            checkTransaction(numberTransaction, currentDiff);
+            for (String key : currentDiff.keySet()) {
+                Storeable diffValue = currentDiff.get(key);
 
-            if (diffValue == null) {
-                if (value != null) {
-                    ++count;
+                Storeable value = null;
+                read.lock();
+                try {
+                    value = tableData.get(key);
+                } finally {
+                    read.unlock();
                 }
-            } else {
-                if (value == null) {
-                    ++count;
+
+                if (diffValue == null) {
+                    if (value != null) {
+                        ++count;
+                    }
                 } else {
-                    if (!parent.serialize(this, diffValue).equals(parent.serialize(this, value))) {
+                    if (value == null) {
                         ++count;
+                    } else {
+                        if (!parent.serialize(this, diffValue).equals(parent.serialize(this, value))) {
+                            ++count;
+                        }
                     }
                 }
             }
-        }
-        currentDiff.clear();
-        if (needChangeTransaction) {
-            parent.getPool().deleteTransaction(numberTransaction);
+            currentDiff.clear();
+            if (needChangeTransaction) {
+                parent.getPool().deleteTransaction(numberTransaction);
+            }
         }
         return count;
     }
 
+    /*
+     * Requests of one transaction may come from several servlet threads at once, so every use of
+     * its diff map is synchronized on that map. The table locks are taken inside it, never around.
+     */
+    private MyHashMap transactionDiff(int numberTransaction) {
+        MyHashMap currentDiff = parent.getPool().getMap(numberTransaction);
+        if (currentDiff == null) {
+            throw new IllegalStateException("transaction isn't exist");
+        }
+        return currentDiff;
+    }
+
+    private void checkTransaction(int numberTransaction, MyHashMap currentDiff) {
+        if (parent.getPool().getMap(numberTransaction) != currentDiff) {
+            throw new IllegalStateException("transaction is finished");
+        }
+    }
+
     @Override
     public int getColumnsCount() {
         if (tableDrop || isTableClose) {
@@ -2,11 +2,18 @@ package ru.fizteh.fivt.students.dmitryIvanovsky.fileMap.test;
 
 import org.junit.*;
 import org.junit.rules.TemporaryFolder;
+import ru.fizteh.fivt.storage.structured.Storeable;
 import ru.fizteh.fivt.storage.structured.Table;
 import ru.fizteh.fivt.storage.structured.TableProvider;
 import ru.fizteh.fivt.storage.structured.TableProviderFactory;
+import ru.fizteh.fivt.students.dmitryIvanovsky.fileMap.FileMap;
+import ru.fizteh.fivt.students.dmitryIvanovsky.fileMap.FileMapProvider;
 import ru.fizteh.fivt.students.dmitryIvanovsky.fileMap.FileMapProviderFactory;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
 
 public class TestFileMapParallel {
 
@@ -41,4 +48,47 @@ public class TestFileMapParallel {
     public void multiCreate() {
 
     }
+
+    @Test
+    public void sameTransactionFromManyThreads() throws Exception {
+        List<Class<?>> columns = new ArrayList<Class<?>>();
+        columns.add(Integer.class);
+        final FileMapProvider fileMapProvider = (FileMapProvider) provider;
+        final FileMap fileMap = (FileMap) fileMapProvider.createTable("parallelTable", columns);
+        final int transaction = fileMapProvider.getPool().createNewTransaction("parallelTable");
+        final Storeable value = fileMapProvider.deserialize(fileMap, "<row><col>1</col></row>");
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; ++i) {
+            final int number = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 500; ++j) {
+                        fileMap.put("key" + number + "_" + j, value, transaction);
+                        fileMap.get("key" + number + "_" + j, transaction);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(4000, fileMap.size(transaction));
+        assertEquals(4000, fileMap.commit(transaction, true));
+        assertEquals(4000, fileMap.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void finishedTransactionShouldFail() throws Exception {
+        List<Class<?>> columns = new ArrayList<Class<?>>();
+        columns.add(Integer.class);
+        FileMapProvider fileMapProvider = (FileMapProvider) provider;
+        FileMap fileMap = (FileMap) fileMapProvider.createTable("parallelTable", columns);
+        int transaction = fileMapProvider.getPool().createNewTransaction("parallelTable");
+        fileMap.rollback(transaction, true);
+        fileMap.get("key", transaction);
+    }
 }
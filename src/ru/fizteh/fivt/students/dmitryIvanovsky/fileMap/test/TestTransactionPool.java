@@ -0,0 +1,40 @@
+package ru.fizteh.fivt.students.dmitryIvanovsky.fileMap.test;
+
+import org.junit.Test;
+import ru.fizteh.fivt.students.dmitryIvanovsky.servletHolder.TransactionPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TestTransactionPool {
+
+    @Test
+    public void numbersGoRoundBeforeReuse() {
+        TransactionPool pool = new TransactionPool(3);
+        assertEquals(0, pool.createNewTransaction("table"));
+        assertEquals(1, pool.createNewTransaction("table"));
+        pool.deleteTransaction(0);
+        assertFalse(pool.isExistTransaction(0));
+        assertEquals(2, pool.createNewTransaction("table"));
+        assertEquals(0, pool.createNewTransaction("table"));
+        assertEquals("table", pool.getNameTable(0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void fullPoolShouldFail() {
+        TransactionPool pool = new TransactionPool(2);
+        pool.createNewTransaction("table");
+        pool.createNewTransaction("table");
+        pool.createNewTransaction("table");
+    }
+
+    @Test
+    public void freedNumberIsFoundInFullPool() {
+        TransactionPool pool = new TransactionPool(3);
+        for (int i = 0; i < 3; ++i) {
+            pool.createNewTransaction("table");
+        }
+        pool.deleteTransaction(1);
+        assertEquals(1, pool.createNewTransaction("table"));
+    }
+}
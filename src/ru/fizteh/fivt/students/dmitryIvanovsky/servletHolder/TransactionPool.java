@@ -2,68 +2,61 @@ package ru.fizteh.fivt.students.dmitryIvanovsky.servletHolder;
 
 import ru.fizteh.fivt.students.dmitryIvanovsky.fileMap.MyHashMap;
 
-import java.util.HashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class TransactionPool {
-    HashMap<Integer, MyHashMap> allMap = new HashMap<>();
-    int randomNumber = 0;
     private static final int MAX = 100000;
-    private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-    private final Lock write = readWriteLock.writeLock();
-    HashMap<Integer, String> transactionTable = new HashMap<>();
 
-    public MyHashMap getMap(int numberTransaction) {
-        write.lock();
-        try {
-            return allMap.get(numberTransaction);
-        } finally {
-            write.unlock();
+    private static class Transaction {
+        final MyHashMap map = new MyHashMap();
+        final String nameTable;
+
+        Transaction(String nameTable) {
+            this.nameTable = nameTable;
         }
     }
 
-    public void deleteTransaction(int numberTransaction) {
-        write.lock();
-        try {
-            transactionTable.remove(numberTransaction);
-            allMap.remove(numberTransaction);
-        } finally {
-            write.unlock();
-        }
+    // Servlets look transactions up on every request; only creation takes the pool lock
+    private final ConcurrentMap<Integer, Transaction> transactions = new ConcurrentHashMap<>();
+    private int randomNumber = 0;
+    private final int max;
+
+    public TransactionPool() {
+        this(MAX);
+    }
+
+    public TransactionPool(int max) {
+        this.max = max;
+    }
 
+    public MyHashMap getMap(int numberTransaction) {
+        Transaction transaction = transactions.get(numberTransaction);
+        return transaction == null ? null : transaction.map;
     }
 
-    public int createNewTransaction(String nameTable) {
-        write.lock();
-        try {
-            while (allMap.containsKey(randomNumber)) {
-                randomNumber = (randomNumber + 1) % MAX;
+    public void deleteTransaction(int numberTransaction) {
+        transactions.remove(numberTransaction);
+    }
+
+    public synchronized int createNewTransaction(String nameTable) {
+        for (int attempt = 0; attempt < max; ++attempt) {
+            int number = randomNumber;
+            randomNumber = (randomNumber + 1) % max;
+            if (!transactions.containsKey(number)) {
+                transactions.put(number, new Transaction(nameTable));
+                return number;
             }
-            allMap.put(randomNumber, new MyHashMap());
-            transactionTable.put(randomNumber, nameTable);
-            return randomNumber;
-        } finally {
-            write.unlock();
         }
+        throw new IllegalStateException("too many transactions");
     }
 
     public String getNameTable(int numberTransaction) {
-        write.lock();
-        try {
-            return transactionTable.get(numberTransaction);
-        } finally {
-            write.unlock();
-        }
+        Transaction transaction = transactions.get(numberTransaction);
+        return transaction == null ? null : transaction.nameTable;
     }
 
     public boolean isExistTransaction(int numberTransaction) {
-        write.lock();
-        try {
-            return allMap.containsKey(numberTransaction);
-        } finally {
-            write.unlock();
-        }
+        return transactions.containsKey(numberTransaction);
     }
 }
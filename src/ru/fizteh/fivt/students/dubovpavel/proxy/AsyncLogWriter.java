@@ -0,0 +1,306 @@
+package ru.fizteh.fivt.students.dubovpavel.proxy;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes log records on a background thread. Callers put records into a bounded ring buffer
+ * without taking locks; the thread copies them into one reusable buffer and writes it when it
+ * holds {@code batchSize} characters or when the oldest record has waited {@code flushMillis}.
+ * When the ring is full a record is dropped or the caller waits, depending on the {@link Policy}.
+ * The thread stops after {@code idleMillis} without records and the next record starts a new one.
+ */
+public class AsyncLogWriter implements AutoCloseable {
+    private static final long BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long IDLE_MILLIS = 1000;
+
+    public enum Policy {
+        DROP,
+        BLOCK
+    }
+
+    private final Writer writer;
+    private final Policy policy;
+    private final int batchSize;
+    private final long flushNanos;
+    private final long idleNanos;
+
+    // Ring of records: the slot of position p is free for the producer of p while its
+    // sequence is p and holds the record of p while its sequence is p + 1.
+    private final AtomicReferenceArray<String> slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long written;
+    private final AtomicLong flushTarget = new AtomicLong();
+    private volatile boolean sleeping;
+    private volatile boolean closed;
+    // Only the thread that set it takes records out of the ring
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile Thread drainer;
+
+    public AsyncLogWriter(Writer writer, int capacity, Policy policy, int batchSize, long flushMillis) {
+        this(writer, capacity, policy, batchSize, flushMillis, IDLE_MILLIS);
+    }
+
+    AsyncLogWriter(Writer writer, int capacity, Policy policy, int batchSize, long flushMillis, long idleMillis) {
+        if (writer == null) {
+            throw new IllegalArgumentException("Writer is null");
+        }
+        if (capacity <= 0 || batchSize <= 0 || flushMillis <= 0 || idleMillis <= 0) {
+            throw new IllegalArgumentException("Capacity, batch size, flush and idle time must be positive");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("Policy is null");
+        }
+        this.writer = writer;
+        this.policy = policy;
+        this.batchSize = batchSize;
+        flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Number of records dropped because the ring was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    boolean isDraining() {
+        return draining.get();
+    }
+
+    public void write(String record) {
+        while (!offer(record)) {
+            if (closed) {
+                writeDirectly(record);
+                return;
+            }
+            if (policy == Policy.DROP) {
+                dropped.incrementAndGet();
+                return;
+            }
+            wakeDrainer();
+            LockSupport.parkNanos(BACKOFF_NANOS);
+        }
+        if (!draining.get()) {
+            startDrainer();
+        } else if (sleeping) {
+            LockSupport.unpark(drainer);
+        }
+        if (closed && written < tail.get()) {
+            // Raced with close(): the drainer may be gone, so make sure the record gets out
+            flush();
+        }
+    }
+
+    /**
+     * Waits until every record written before the call has been passed to the writer.
+     */
+    public void flush() {
+        long target = tail.get();
+        long current = flushTarget.get();
+        while (current < target && !flushTarget.compareAndSet(current, target)) {
+            current = flushTarget.get();
+        }
+        while (written < target) {
+            if (closed) {
+                drainRemaining();
+            } else {
+                wakeDrainer();
+            }
+            if (written < target) {
+                LockSupport.parkNanos(BACKOFF_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Writes out what is queued and stops the background thread. Records written after that go
+     * to the writer directly. The writer itself is not closed.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Thread current = drainer;
+        if (current != null) {
+            LockSupport.unpark(current);
+            try {
+                current.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    private void startDrainer() {
+        if (closed || !draining.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "logging-proxy-writer");
+        thread.setDaemon(true);
+        drainer = thread;
+        thread.start();
+    }
+
+    private void wakeDrainer() {
+        if (draining.get()) {
+            LockSupport.unpark(drainer);
+        } else {
+            startDrainer();
+        }
+    }
+
+    private boolean offer(String record) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, record);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    private String poll() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        String record = slots.get(index);
+        slots.set(index, null);
+        sequences.set(index, head + mask + 1);
+        ++head;
+        return record;
+    }
+
+    private boolean ready() {
+        return sequences.get((int) (head & mask)) == head + 1;
+    }
+
+    private void drain() {
+        StringBuilder batch = new StringBuilder(batchSize);
+        char[] buffer = new char[0];
+        long batchStart = 0;
+        long lastRecord = System.nanoTime();
+        while (true) {
+            String record = poll();
+            if (record != null) {
+                lastRecord = System.nanoTime();
+                if (batch.length() == 0) {
+                    batchStart = lastRecord;
+                }
+                batch.append(record);
+                if (batch.length() >= batchSize) {
+                    buffer = writeBatch(batch, buffer);
+                }
+                continue;
+            }
+            if (head < tail.get()) {
+                // The next slot is taken, but its record is not there yet
+                Thread.yield();
+                continue;
+            }
+            long now = System.nanoTime();
+            long waited = now - batchStart;
+            if (batch.length() != 0 && (closed || waited >= flushNanos || written < flushTarget.get())) {
+                buffer = writeBatch(batch, buffer);
+                continue;
+            }
+            long idle = now - lastRecord;
+            if (batch.length() == 0 && (closed || idle >= idleNanos)) {
+                draining.set(false);
+                // A writer that saw the flag still set relies on this thread to take its record
+                if (head == tail.get() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+                lastRecord = System.nanoTime();
+                continue;
+            }
+            sleeping = true;
+            if (!ready()) {
+                LockSupport.parkNanos(batch.length() == 0 ? idleNanos - idle : flushNanos - waited);
+            }
+            sleeping = false;
+        }
+    }
+
+    private char[] writeBatch(StringBuilder batch, char[] buffer) {
+        int length = batch.length();
+        if (buffer.length < length) {
+            buffer = new char[Math.max(length, buffer.length * 2)];
+        }
+        batch.getChars(0, length, buffer, 0);
+        batch.setLength(0);
+        try {
+            synchronized (writer) {
+                writer.write(buffer, 0, length);
+                writer.flush();
+            }
+        } catch (IOException e) {
+            // According to the task, exception must be ignored
+        }
+        written = head;
+        return buffer;
+    }
+
+    private void drainRemaining() {
+        if (!draining.compareAndSet(false, true)) {
+            return;
+        }
+        String record;
+        while ((record = poll()) != null) {
+            writeDirectly(record);
+        }
+        written = head;
+        draining.set(false);
+    }
+
+    private void writeDirectly(String record) {
+        try {
+            synchronized (writer) {
+                writer.write(record);
+                writer.flush();
+            }
+        } catch (IOException e) {
+            // According to the task, exception must be ignored
+        }
+    }
+}
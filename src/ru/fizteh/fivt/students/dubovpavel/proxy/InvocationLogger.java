@@ -0,0 +1,166 @@
+package ru.fizteh.fivt.students.dubovpavel.proxy;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+/**
+ * Writes the invocation records of one logging proxy. The part of a record that depends only on
+ * the method is built once per (interface, implementation class) pair; a call adds the timestamp,
+ * the arguments and the outcome. Public because generated proxies live in their own class loader.
+ */
+public final class InvocationLogger {
+    private final Writer writer;
+    private final AsyncLogWriter asyncWriter;
+    private final String[] headers;
+
+    InvocationLogger(Writer writer, String[] headers) {
+        this.writer = writer;
+        this.headers = headers;
+        asyncWriter = null;
+    }
+
+    InvocationLogger(AsyncLogWriter asyncWriter, String[] headers) {
+        this.asyncWriter = asyncWriter;
+        this.headers = headers;
+        writer = null;
+    }
+
+    static String[] buildHeaders(Class<?> implementationClass, Method[] methods) {
+        String[] headers = new String[methods.length];
+        for (int i = 0; i < methods.length; i++) {
+            StringBuilder header = new StringBuilder("\" class=\"");
+            escape(header, implementationClass.getName(), true);
+            header.append("\" name=\"");
+            escape(header, methods[i].getName(), true);
+            header.append("\">");
+            if (methods[i].getParameterTypes().length == 0) {
+                header.append("<arguments/>");
+            }
+            headers[i] = header.toString();
+        }
+        return headers;
+    }
+
+    /**
+     * Starts the record of a call, or returns null if the arguments cannot be logged.
+     */
+    public StringBuilder begin(int method, Object[] args) {
+        try {
+            StringBuilder record = new StringBuilder("<invoke timestamp=\"");
+            record.append(System.currentTimeMillis());
+            record.append(headers[method]);
+            if (args != null && args.length != 0) {
+                record.append("<arguments>");
+                for (Object arg : args) {
+                    appendValue(record, arg, "argument", new IdentityHashMap<Object, Boolean>());
+                }
+                record.append("</arguments>");
+            }
+            return record;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    public void returned(StringBuilder record, Object value) {
+        if (record == null) {
+            return;
+        }
+        try {
+            record.append("<return>");
+            if (value == null) {
+                record.append("<null/>");
+            } else {
+                escape(record, value.toString(), false);
+            }
+            record.append("</return>");
+        } catch (RuntimeException e) {
+            return;
+        }
+        returned(record);
+    }
+
+    public void returned(StringBuilder record) {
+        if (record == null) {
+            return;
+        }
+        record.append("</invoke>\n");
+        write(record);
+    }
+
+    public void thrown(StringBuilder record, Throwable e) {
+        if (record == null) {
+            return;
+        }
+        try {
+            record.append("<thrown>");
+            escape(record, e.toString(), false);
+            record.append("</thrown>");
+        } catch (RuntimeException toStringError) {
+            return;
+        }
+        returned(record);
+    }
+
+    private void write(StringBuilder record) {
+        if (asyncWriter != null) {
+            asyncWriter.write(record.toString());
+            return;
+        }
+        try {
+            synchronized (writer) {
+                writer.write(record.toString());
+            }
+        } catch (IOException e) {
+            // According to the task, exception must be ignored
+        }
+    }
+
+    private static void appendValue(StringBuilder record, Object value, String tag,
+                                    IdentityHashMap<Object, Boolean> finishedArguments) {
+        record.append('<').append(tag).append('>');
+        if (finishedArguments.containsKey(value)) {
+            record.append("cyclic");
+        } else {
+            finishedArguments.put(value, Boolean.TRUE);
+            if (value instanceof Iterable) {
+                record.append("<list>");
+                for (Iterator<?> i = ((Iterable<?>) value).iterator(); i.hasNext(); ) {
+                    appendValue(record, i.next(), "value", finishedArguments);
+                }
+                record.append("</list>");
+            } else if (value == null) {
+                record.append("<null/>");
+            } else {
+                escape(record, value.toString(), false);
+            }
+            finishedArguments.remove(value);
+        }
+        record.append("</").append(tag).append('>');
+    }
+
+    private static void escape(StringBuilder record, String text, boolean attribute) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    record.append("&lt;");
+                    break;
+                case '>':
+                    record.append("&gt;");
+                    break;
+                case '&':
+                    record.append("&amp;");
+                    break;
+                case '"':
+                    record.append(attribute ? "&quot;" : "\"");
+                    break;
+                default:
+                    record.append(c);
+            }
+        }
+    }
+}
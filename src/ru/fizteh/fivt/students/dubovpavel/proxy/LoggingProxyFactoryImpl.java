@@ -1,22 +1,162 @@
 package ru.fizteh.fivt.students.dubovpavel.proxy;
 
+import org.objectweb.asm.Type;
 import ru.fizteh.fivt.proxy.LoggingProxyFactory;
 
-import javax.xml.stream.XMLOutputFactory;
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamWriter;
-import java.io.IOException;
-import java.io.StringWriter;
 import java.io.Writer;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.IdentityHashMap;
-import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Wraps public interfaces into classes generated by {@link LoggingProxyGenerator}, which call the
+ * implementation directly. Interfaces the generated class could not see, that is non-public ones,
+ * are still wrapped with {@link Proxy}. The generated class is cached per interface, the constant
+ * part of the records per interface and implementation class.
+ *
+ * <p>A factory made with the asynchronous constructor hands the records to one
+ * {@link AsyncLogWriter} per writer instead of writing them in the call; {@link #close} writes out
+ * what is left.
+ */
+public class LoggingProxyFactoryImpl implements LoggingProxyFactory, AutoCloseable {
+    private static final ConcurrentMap<Class<?>, ProxyClass> PROXY_CLASSES = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<List<Class<?>>, String[]> HEADERS = new ConcurrentHashMap<>();
+
+    private final boolean async;
+    private final int capacity;
+    private final AsyncLogWriter.Policy policy;
+    private final int batchSize;
+    private final long flushMillis;
+    private final Map<Writer, AsyncLogWriter> asyncWriters = new IdentityHashMap<>();
+
+    public LoggingProxyFactoryImpl() {
+        async = false;
+        capacity = 0;
+        policy = null;
+        batchSize = 0;
+        flushMillis = 0;
+    }
+
+    /**
+     * @param capacity    records that may wait for the background thread
+     * @param policy      what to do with a record when that many are already waiting
+     * @param batchSize   characters after which the waiting records are written
+     * @param flushMillis time after which the waiting records are written anyway
+     */
+    public LoggingProxyFactoryImpl(int capacity, AsyncLogWriter.Policy policy, int batchSize, long flushMillis) {
+        if (capacity <= 0 || batchSize <= 0 || flushMillis <= 0) {
+            throw new IllegalArgumentException("Capacity, batch size and flush time must be positive");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("Policy is null");
+        }
+        async = true;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.batchSize = batchSize;
+        this.flushMillis = flushMillis;
+    }
+
+    private static class ProxyClass {
+        final Method[] methods;
+        final Map<String, Integer> indexes = new HashMap<>();
+        final Constructor<?> constructor;
+
+        ProxyClass(Class<?> interfaceClass) {
+            List<Method> methodList = new ArrayList<>();
+            for (Method method : interfaceClass.getMethods()) {
+                String signature = signature(method);
+                if (Modifier.isStatic(method.getModifiers()) || isObjectMethod(method)
+                        || indexes.containsKey(signature)) {
+                    continue;
+                }
+                indexes.put(signature, methodList.size());
+                methodList.add(method);
+            }
+            methods = methodList.toArray(new Method[methodList.size()]);
+            constructor = Modifier.isPublic(interfaceClass.getModifiers()) ? generate(interfaceClass) : null;
+        }
+
+        private Constructor<?> generate(Class<?> interfaceClass) {
+            LoggingProxyGenerator generator = new LoggingProxyGenerator(interfaceClass, methods);
+            Class<?> proxyClass = new GeneratedClassLoader(interfaceClass.getClassLoader())
+                    .define(generator.getClassName(), generator.generate());
+            try {
+                return proxyClass.getConstructor(Object.class, InvocationLogger.class);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Resolves through the loader of this class first, so that generated classes see
+     * {@link InvocationLogger}, and then through the loader of the interface.
+     */
+    private static class GeneratedClassLoader extends ClassLoader {
+        private final ClassLoader interfaceLoader;
+
+        GeneratedClassLoader(ClassLoader interfaceLoader) {
+            super(LoggingProxyFactoryImpl.class.getClassLoader());
+            this.interfaceLoader = interfaceLoader;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            if (interfaceLoader == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return Class.forName(name, false, interfaceLoader);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private static String signature(Method method) {
+        return method.getName() + Type.getMethodDescriptor(method);
+    }
+
+    private static boolean isObjectMethod(Method method) {
+        try {
+            return Modifier.isPublic(Object.class.getMethod(method.getName(), method.getParameterTypes())
+                    .getModifiers());
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static ProxyClass proxyClass(Class<?> interfaceClass) {
+        ProxyClass proxyClass = PROXY_CLASSES.get(interfaceClass);
+        if (proxyClass == null) {
+            PROXY_CLASSES.putIfAbsent(interfaceClass, new ProxyClass(interfaceClass));
+            proxyClass = PROXY_CLASSES.get(interfaceClass);
+        }
+        return proxyClass;
+    }
+
+    private static String[] headers(Class<?> interfaceClass, Class<?> implementationClass, ProxyClass proxyClass) {
+        List<Class<?>> key = Arrays.<Class<?>>asList(interfaceClass, implementationClass);
+        String[] headers = HEADERS.get(key);
+        if (headers == null) {
+            HEADERS.putIfAbsent(key, InvocationLogger.buildHeaders(implementationClass, proxyClass.methods));
+            headers = HEADERS.get(key);
+        }
+        return headers;
+    }
 
-public class LoggingProxyFactoryImpl implements LoggingProxyFactory {
     public Object wrap(final Writer writer, final Object implementation, Class<?> interfaceClass) {
         if (writer == null) {
             throw new IllegalArgumentException("Writer is null");
@@ -27,109 +167,64 @@ public class LoggingProxyFactoryImpl implements LoggingProxyFactory {
         if (interfaceClass == null) {
             throw new IllegalArgumentException("Interface class is null");
         }
+        if (!interfaceClass.isInterface()) {
+            throw new IllegalArgumentException("Interface class is not an interface");
+        }
         if (!interfaceClass.isInstance(implementation)) {
             throw new IllegalArgumentException("Implementation does not implement interface");
         }
-        InvocationHandler handler = new InvocationHandler() {
-            private void buildArgumentsTree(XMLStreamWriter xmlWriter, Iterable args,
-                                            IdentityHashMap<Object, Iterable> finishedArguments, int level)
-                    throws XMLStreamException {
-                for (Iterator i = args.iterator(); i.hasNext(); ) {
-                    Object next = i.next();
-                    xmlWriter.writeStartElement(level == 0 ? "argument" : "value");
-                    if (finishedArguments.containsKey(next)) {
-                        xmlWriter.writeCharacters("cyclic");
-                    } else {
-                        finishedArguments.put(next, args);
-                        if (next instanceof Iterable) {
-                            xmlWriter.writeStartElement("list");
-                            buildArgumentsTree(xmlWriter, (Iterable) next, finishedArguments, level + 1);
-                            xmlWriter.writeEndElement();
-                        } else {
-                            if (next == null) {
-                                xmlWriter.writeEmptyElement("null");
-                            } else {
-                                xmlWriter.writeCharacters(next.toString());
-                            }
-                        }
-                        finishedArguments.remove(next);
-                    }
-                    xmlWriter.writeEndElement();
-                }
+        final ProxyClass proxyClass = proxyClass(interfaceClass);
+        String[] headers = headers(interfaceClass, implementation.getClass(), proxyClass);
+        final InvocationLogger logger = async ? new InvocationLogger(asyncWriter(writer), headers)
+                : new InvocationLogger(writer, headers);
+        if (proxyClass.constructor != null) {
+            try {
+                return proxyClass.constructor.newInstance(implementation, logger);
+            } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException(e);
             }
-
+        }
+        InvocationHandler handler = new InvocationHandler() {
             public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
                 if (method.getDeclaringClass().equals(Object.class)) {
                     return method.invoke(implementation, args);
                 }
-                StringWriter buffer = new StringWriter();
-                XMLStreamWriter xmlWriter = null;
-                boolean xmlBuilt = true;
-                try {
-                    xmlWriter = XMLOutputFactory.newInstance().createXMLStreamWriter(buffer);
-                    xmlWriter.writeStartElement("invoke");
-                    xmlWriter.writeAttribute("timestamp", String.valueOf(System.currentTimeMillis()));
-                    xmlWriter.writeAttribute("class", implementation.getClass().getName());
-                    xmlWriter.writeAttribute("name", method.getName());
-                    if (args == null || args.length == 0) {
-                        xmlWriter.writeEmptyElement("arguments");
-                    } else {
-                        xmlWriter.writeStartElement("arguments");
-                        buildArgumentsTree(xmlWriter, Arrays.asList(args), new IdentityHashMap<Object, Iterable>(), 0);
-                        xmlWriter.writeEndElement();
-                    }
-
-                } catch (XMLStreamException xmlE) {
-                    xmlBuilt = false;
-                }
-                boolean thrown = false;
-                Object ret = null;
+                StringBuilder record = logger.begin(proxyClass.indexes.get(signature(method)), args);
+                Object ret;
                 try {
                     ret = method.invoke(implementation, args);
                 } catch (InvocationTargetException e) {
-                    thrown = true;
-                    try {
-                        xmlWriter.writeStartElement("thrown");
-                        xmlWriter.writeCharacters(e.getTargetException().toString());
-                        xmlWriter.writeEndElement();
-                    } catch (XMLStreamException xmlE) {
-                        xmlBuilt = false;
-                    }
+                    logger.thrown(record, e.getTargetException());
                     throw e.getTargetException();
-                } finally {
-                    if (!thrown && !method.getReturnType().equals(Void.TYPE)) {
-                        try {
-                            xmlWriter.writeStartElement("return");
-                            if (ret == null) {
-                                xmlWriter.writeEmptyElement("null");
-                            } else {
-                                xmlWriter.writeCharacters(ret.toString());
-                            }
-                            xmlWriter.writeEndElement();
-                        } catch (XMLStreamException xmlE) {
-                            xmlBuilt = false;
-                        }
-                    }
-                    try {
-                        xmlWriter.writeEndElement(); // </invoke>
-                        xmlWriter.writeCharacters("\n");
-                    } catch (XMLStreamException xmlE) {
-                        xmlBuilt = false;
-                    }
-                    try {
-                        if (xmlBuilt) {
-                            synchronized (writer) {
-                                writer.write(buffer.toString());
-                            }
-                        }
-                    } catch (IOException e) {
-                        // According to the task, exception must be ignored
-                    }
+                }
+                if (method.getReturnType().equals(Void.TYPE)) {
+                    logger.returned(record);
+                } else {
+                    logger.returned(record, ret);
                 }
                 return ret;
             }
         };
         return interfaceClass.cast(Proxy.newProxyInstance(interfaceClass.getClassLoader(),
-                new Class[] {interfaceClass}, handler));
+                new Class<?>[] {interfaceClass}, handler));
+    }
+
+    private synchronized AsyncLogWriter asyncWriter(Writer writer) {
+        AsyncLogWriter asyncWriter = asyncWriters.get(writer);
+        if (asyncWriter == null) {
+            asyncWriter = new AsyncLogWriter(writer, capacity, policy, batchSize, flushMillis);
+            asyncWriters.put(writer, asyncWriter);
+        }
+        return asyncWriter;
+    }
+
+    /**
+     * Writes out the records still waiting and stops the background threads. Proxies made before
+     * go on logging, but synchronously.
+     */
+    public synchronized void close() {
+        for (AsyncLogWriter asyncWriter : asyncWriters.values()) {
+            asyncWriter.close();
+        }
     }
 }
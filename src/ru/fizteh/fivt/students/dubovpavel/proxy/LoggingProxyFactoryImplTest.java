@@ -1,10 +1,14 @@
 package ru.fizteh.fivt.students.dubovpavel.proxy;
 
 import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Proxy;
 import java.util.HashSet;
 
 public class LoggingProxyFactoryImplTest {
@@ -45,6 +49,97 @@ public class LoggingProxyFactoryImplTest {
         testObj.test(10);
     }
 
+    @Test
+    public void testGeneratedProxy() {
+        PublicInterface testObj = (PublicInterface) log.wrap(xml, new PublicClass(), PublicInterface.class);
+        Assert.assertFalse(Proxy.isProxyClass(testObj.getClass()));
+        Assert.assertEquals(5, testObj.add(2, 3));
+        Assert.assertEquals(testObj.getClass(), log.wrap(xml, new PublicClass(), PublicInterface.class).getClass());
+        Assert.assertTrue(xml.toString().matches("<invoke timestamp=\"\\d+\" class=\"[^\"]+PublicClass\" name=\"add\">"
+                + "<arguments><argument>2</argument><argument>3</argument></arguments>"
+                + "<return>5</return></invoke>\n"));
+    }
+
+    @Test
+    public void testGeneratedProxyThrowing() {
+        PublicInterface testObj = (PublicInterface) log.wrap(xml, new PublicClass(), PublicInterface.class);
+        try {
+            testObj.fail();
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertEquals("message", e.getMessage());
+        }
+        Assert.assertTrue(xml.toString().contains(
+                "<arguments/><thrown>java.io.IOException: message</thrown></invoke>"));
+    }
+
+    @Test
+    public void testAsyncLogging() throws InterruptedException {
+        LoggingProxyFactoryImpl asyncLog = new LoggingProxyFactoryImpl(16, AsyncLogWriter.Policy.BLOCK, 256, 10);
+        final PublicInterface testObj = (PublicInterface) asyncLog.wrap(xml, new PublicClass(), PublicInterface.class);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        testObj.add(j, 1);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        asyncLog.close();
+        Assert.assertEquals(4000, xml.toString().split("\n").length);
+        testObj.add(1, 1);
+        Assert.assertEquals(4001, xml.toString().split("\n").length);
+    }
+
+    @Test
+    public void testAsyncDropping() {
+        final StringBuilder written = new StringBuilder();
+        Writer slowWriter = new Writer() {
+            public void write(char[] buffer, int offset, int length) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                written.append(buffer, offset, length);
+            }
+
+            public void flush() {
+            }
+
+            public void close() {
+            }
+        };
+        AsyncLogWriter asyncWriter = new AsyncLogWriter(slowWriter, 2, AsyncLogWriter.Policy.DROP, 1, 1000);
+        for (int i = 0; i < 100; i++) {
+            asyncWriter.write("record\n");
+        }
+        asyncWriter.close();
+        Assert.assertTrue(asyncWriter.getDropped() > 0);
+        Assert.assertEquals(100, written.toString().split("\n").length + asyncWriter.getDropped());
+    }
+
+    @Test
+    public void testAsyncWriterStopsWhenIdle() throws InterruptedException {
+        AsyncLogWriter asyncWriter = new AsyncLogWriter(xml, 16, AsyncLogWriter.Policy.BLOCK, 256, 10, 20);
+        asyncWriter.write("first\n");
+        asyncWriter.flush();
+        for (int i = 0; i < 200 && asyncWriter.isDraining(); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(asyncWriter.isDraining());
+        asyncWriter.write("second\n");
+        asyncWriter.flush();
+        Assert.assertEquals("first\nsecond\n", xml.toString());
+        asyncWriter.close();
+    }
+
     class TestClass<T> implements TestInterface<T> {
         public int test(T i) {
             return -1;
@@ -60,4 +155,20 @@ public class LoggingProxyFactoryImplTest {
     interface TestInterface<T> {
         int test(T i);
     }
+
+    public static class PublicClass implements PublicInterface {
+        public int add(int a, int b) {
+            return a + b;
+        }
+
+        public void fail() throws IOException {
+            throw new IOException("message");
+        }
+    }
+
+    public interface PublicInterface {
+        int add(int a, int b);
+
+        void fail() throws IOException;
+    }
 }
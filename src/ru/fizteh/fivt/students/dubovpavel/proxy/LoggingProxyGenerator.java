@@ -0,0 +1,179 @@
+package ru.fizteh.fivt.students.dubovpavel.proxy;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+import org.objectweb.asm.commons.Method;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates the logging proxy class of a public interface. For method number i the class does
+ * <pre>
+ *     StringBuilder record = logger.begin(i, new Object[] {arguments});
+ *     try {
+ *         result = target.method(arguments);
+ *     } catch (Throwable e) {
+ *         logger.thrown(record, e);
+ *         throw e;
+ *     }
+ *     logger.returned(record, result);
+ *     return result;
+ * </pre>
+ * so the implementation is called by a plain invokeinterface. toString, hashCode and equals go to
+ * the target without logging, as with {@link java.lang.reflect.Proxy}.
+ */
+class LoggingProxyGenerator {
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+    private static final Type OBJECT_TYPE = Type.getType(Object.class);
+    private static final Type LOGGER_TYPE = Type.getType(InvocationLogger.class);
+    private static final Type RECORD_TYPE = Type.getType(StringBuilder.class);
+    private static final Type THROWABLE_TYPE = Type.getType(Throwable.class);
+    private static final String TARGET = "target";
+    private static final String LOGGER = "logger";
+
+    private final java.lang.reflect.Method[] methods;
+    private final Type type;
+    private final Type interfaceType;
+
+    LoggingProxyGenerator(Class<?> interfaceClass, java.lang.reflect.Method[] methods) {
+        this.methods = methods;
+        interfaceType = Type.getType(interfaceClass);
+        type = Type.getObjectType(String.format("%s$%s%d", Type.getInternalName(LoggingProxyGenerator.class),
+                interfaceClass.getSimpleName(), COUNTER.incrementAndGet()));
+    }
+
+    String getClassName() {
+        return type.getClassName();
+    }
+
+    byte[] generate() {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, type.getInternalName(),
+                null, OBJECT_TYPE.getInternalName(), new String[] {interfaceType.getInternalName()});
+        cw.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, TARGET, interfaceType.getDescriptor(), null, null)
+                .visitEnd();
+        cw.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, LOGGER, LOGGER_TYPE.getDescriptor(), null, null)
+                .visitEnd();
+
+        generateConstructor(cw);
+        for (int i = 0; i < methods.length; i++) {
+            generateLoggingMethod(cw, i);
+        }
+        generateDelegatingMethod(cw, new Method("toString", "()Ljava/lang/String;"));
+        generateDelegatingMethod(cw, new Method("hashCode", "()I"));
+        generateDelegatingMethod(cw, new Method("equals", "(Ljava/lang/Object;)Z"));
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private void generateConstructor(ClassWriter cw) {
+        Method constructor = new Method("<init>", Type.VOID_TYPE, new Type[] {OBJECT_TYPE, LOGGER_TYPE});
+        GeneratorAdapter ga = newMethod(cw, Opcodes.ACC_PUBLIC, constructor, null);
+        ga.loadThis();
+        ga.invokeConstructor(OBJECT_TYPE, new Method("<init>", "()V"));
+        ga.loadThis();
+        ga.loadArg(0);
+        ga.checkCast(interfaceType);
+        ga.putField(type, TARGET, interfaceType);
+        ga.loadThis();
+        ga.loadArg(1);
+        ga.putField(type, LOGGER, LOGGER_TYPE);
+        ga.returnValue();
+        ga.endMethod();
+    }
+
+    private void generateLoggingMethod(ClassWriter cw, int index) {
+        java.lang.reflect.Method method = methods[index];
+        Method signature = Method.getMethod(method);
+        Type returnType = signature.getReturnType();
+        Class<?>[] exceptions = method.getExceptionTypes();
+        Type[] exceptionTypes = new Type[exceptions.length];
+        for (int i = 0; i < exceptions.length; i++) {
+            exceptionTypes[i] = Type.getType(exceptions[i]);
+        }
+        GeneratorAdapter ga = newMethod(cw, Opcodes.ACC_PUBLIC, signature, exceptionTypes);
+
+        // StringBuilder record = logger.begin(index, args);
+        int record = ga.newLocal(RECORD_TYPE);
+        loadLogger(ga);
+        ga.push(index);
+        ga.loadArgArray();
+        ga.invokeVirtual(LOGGER_TYPE, new Method("begin", RECORD_TYPE, new Type[] {Type.INT_TYPE,
+                Type.getType(Object[].class)}));
+        ga.storeLocal(record);
+
+        // result = target.method(args);
+        Label start = ga.mark();
+        ga.loadThis();
+        ga.getField(type, TARGET, interfaceType);
+        ga.loadArgs();
+        ga.invokeInterface(interfaceType, signature);
+        Label end = ga.mark();
+
+        // logger.returned(record[, result]); return result;
+        if (returnType.equals(Type.VOID_TYPE)) {
+            loadLogger(ga);
+            ga.loadLocal(record);
+            ga.invokeVirtual(LOGGER_TYPE, new Method("returned", Type.VOID_TYPE, new Type[] {RECORD_TYPE}));
+        } else {
+            int result = ga.newLocal(returnType);
+            ga.storeLocal(result);
+            loadLogger(ga);
+            ga.loadLocal(record);
+            ga.loadLocal(result);
+            ga.valueOf(returnType);
+            ga.invokeVirtual(LOGGER_TYPE, new Method("returned", Type.VOID_TYPE, new Type[] {RECORD_TYPE,
+                    OBJECT_TYPE}));
+            ga.loadLocal(result);
+        }
+        ga.returnValue();
+
+        // catch (Throwable e) { logger.thrown(record, e); throw e; }
+        ga.catchException(start, end, THROWABLE_TYPE);
+        int thrown = ga.newLocal(THROWABLE_TYPE);
+        ga.storeLocal(thrown);
+        loadLogger(ga);
+        ga.loadLocal(record);
+        ga.loadLocal(thrown);
+        ga.invokeVirtual(LOGGER_TYPE, new Method("thrown", Type.VOID_TYPE, new Type[] {RECORD_TYPE,
+                THROWABLE_TYPE}));
+        ga.loadLocal(thrown);
+        ga.throwException();
+        ga.endMethod();
+    }
+
+    private void generateDelegatingMethod(ClassWriter cw, Method signature) {
+        GeneratorAdapter ga = newMethod(cw, Opcodes.ACC_PUBLIC, signature, null);
+        ga.loadThis();
+        ga.getField(type, TARGET, interfaceType);
+        ga.loadArgs();
+        ga.invokeVirtual(OBJECT_TYPE, signature);
+        ga.returnValue();
+        ga.endMethod();
+    }
+
+    private void loadLogger(GeneratorAdapter ga) {
+        ga.loadThis();
+        ga.getField(type, LOGGER, LOGGER_TYPE);
+    }
+
+    private static GeneratorAdapter newMethod(ClassWriter cw, int access, Method signature, Type[] exceptions) {
+        String[] exceptionNames = null;
+        if (exceptions != null) {
+            exceptionNames = new String[exceptions.length];
+            for (int i = 0; i < exceptions.length; i++) {
+                exceptionNames[i] = exceptions[i].getInternalName();
+            }
+        }
+        MethodVisitor mv = cw.visitMethod(access, signature.getName(), signature.getDescriptor(), null,
+                exceptionNames);
+        GeneratorAdapter ga = new GeneratorAdapter(mv, access, signature.getName(), signature.getDescriptor());
+        ga.visitCode();
+        return ga;
+    }
+}
@@ -6,7 +6,6 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -75,35 +74,18 @@ public class DataBase {
         nfile = numbFile;
         filePath = tablePath + File.separator + getFileName(ndir, nfile);
         File tmpFile = new File(filePath);
-        RandomAccessFile dataFile = null;
-        
+
         if (tmpFile.exists()) {
+            exists = true;
             try {
-                dataFile = new RandomAccessFile(filePath, "r");
-                exists = true;
-                load(dataFile);
-            } catch (FileNotFoundException e1) {
-                throw new RuntimeException(filePath + ": can't find file", e1);
+                load(tmpFile);
             } catch (IOException e3) {
                 throw new RuntimeException(
                         filePath + ": error in loading file", e3);
-            } finally {
-                try {
-                    closeDataFile(dataFile);
-                } catch (Throwable e5) {
-                    //
-                }
             }
         }
     }
 
-    public void checkOffset(long offset, long currPtr, RandomAccessFile dataFile) throws IOException {
-        if (offset < currPtr || offset > dataFile.length()) {
-            IOException e = new IOException();
-            throw e;
-        }
-    }
-
     public boolean isCorrectPlace(String key) {
         int hashcode = Math.abs(key.hashCode());
         int currNumbDir = hashcode % 16;
@@ -111,90 +93,29 @@ public class DataBase {
         return (currNumbDir == ndir && currNumbFile == nfile);
     }
 
-    public String getKeyFromFile(RandomAccessFile dataFile) throws IOException {
-        byte ch = 0;
-        ArrayList<Byte> v = new ArrayList<Byte>();
-        ch = dataFile.readByte();
-        while (ch != 0) {
-            v.add(ch);
-            ch = dataFile.readByte();
-        }
-        byte[] res = new byte[v.size()];
-        for (int i = 0; i < v.size(); i++) {
-            res[i] = v.get(i).byteValue();
-        }
-        String result = new String(res, StandardCharsets.UTF_8);
-        if (!isCorrectPlace(result)) {
-            IOException e = new IOException();
-            throw e;
-        }
-        return result;
-    }
-
-    public String getValueFromFile(long nextOffset, RandomAccessFile dataFile) throws IOException {
-        int beginPtr = (int) dataFile.getFilePointer();
-        byte[] res = new byte[(int) (nextOffset - beginPtr)];
-        dataFile.read(res);
-        String result = new String(res, StandardCharsets.UTF_8);
-        return result;
-    }
-
-    public void load(RandomAccessFile dataFile)
+    public void load(File dataFile)
             throws RuntimeException, IOException, ParseException {
         try {
             if (dataFile.length() == 0) {
                 return;
             }
-
-            long currPtr = 0;
-            long firstOffset = 0;
-            long newOffset = 0;
-            long nextOffset = 0;
-            String keyFirst = "";
-            String keySecond = "";
-            String value;
-
-            dataFile.seek(currPtr);
-            keyFirst = getKeyFromFile(dataFile);
-
-            newOffset = dataFile.readInt();
-            currPtr = dataFile.getFilePointer();
-            checkOffset(newOffset, currPtr, dataFile);
-            firstOffset = newOffset;
-            do {
-                dataFile.seek(currPtr);
-                if (currPtr < firstOffset) {
-                    keySecond = getKeyFromFile(dataFile);
-                    nextOffset = dataFile.readInt();
-                    currPtr = dataFile.getFilePointer();
-                    checkOffset(nextOffset, currPtr, dataFile);
-                } else if (currPtr == firstOffset) {
-                    nextOffset = dataFile.length();
-                    currPtr++;
-                }
-                if (nextOffset < newOffset) {
-                    IOException e1 = new IOException();
-                    throw e1;
+            DataFileReader reader = new DataFileReader(dataFile);
+            for (int i = 0; i < reader.size(); i++) {
+                String key = reader.getKey(i);
+                if (!isCorrectPlace(key)) {
+                    throw new IOException("wrong key placement: " + key);
                 }
-
-                dataFile.seek(newOffset);
-                value = getValueFromFile(nextOffset, dataFile);
-
                 MyStoreable val;
                 try {
                     val = (MyStoreable) table.getProvider().deserialize(table,
-                            value);
+                            reader.getValue(i));
                 } catch (ParseException e) {
                     throw new ParseException(filePath
                             + " can't deserialize values from file "
                             + e.getMessage(), e.getErrorOffset());
                 }
-                data.put(keyFirst, val);
-//                table.getHashMap().put(keyFirst, val);*/
-
-                keyFirst = keySecond;
-                newOffset = nextOffset;
-            } while (currPtr <= firstOffset);
+                data.put(key, val);
+            }
             hasChanged = true;
         } catch (IOException e1) {
             throw new IOException(filePath + " can't read values from file", e1);
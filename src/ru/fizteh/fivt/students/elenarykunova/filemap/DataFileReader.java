@@ -0,0 +1,89 @@
+package ru.fizteh.fivt.students.elenarykunova.filemap;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class DataFileReader {
+
+    private byte[] bytes;
+    private ByteBuffer buffer;
+    private int length;
+    private int count = 0;
+    private int[] keyStarts = new int[16];
+    private int[] keyEnds = new int[16];
+    private int[] offsets = new int[16];
+
+    public DataFileReader(File file) throws IOException {
+        if (file.length() > Integer.MAX_VALUE) {
+            throw new IOException(file + ": file is too big");
+        }
+        length = (int) file.length();
+        bytes = new byte[length];
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            input.readFully(bytes);
+        }
+        buffer = ByteBuffer.wrap(bytes);
+        parseHeader();
+    }
+
+    private void parseHeader() throws IOException {
+        int currPtr = 0;
+        int firstOffset = length;
+        while (currPtr < firstOffset) {
+            int keyStart = currPtr;
+            while (currPtr < length && buffer.get(currPtr) != 0) {
+                ++currPtr;
+            }
+            if (currPtr + 5 > length) {
+                throw new IOException("unexpected end of file");
+            }
+            int keyEnd = currPtr;
+            int offset = buffer.getInt(currPtr + 1);
+            currPtr += 5;
+            if (offset < currPtr || offset > length || (count > 0 && offset < offsets[count - 1])) {
+                throw new IOException("wrong offset " + offset);
+            }
+            if (count == 0) {
+                firstOffset = offset;
+            }
+            add(keyStart, keyEnd, offset);
+        }
+        if (currPtr != firstOffset) {
+            throw new IOException("keys overlap values");
+        }
+    }
+
+    private void add(int keyStart, int keyEnd, int offset) {
+        if (count == offsets.length) {
+            keyStarts = Arrays.copyOf(keyStarts, count * 2);
+            keyEnds = Arrays.copyOf(keyEnds, count * 2);
+            offsets = Arrays.copyOf(offsets, count * 2);
+        }
+        keyStarts[count] = keyStart;
+        keyEnds[count] = keyEnd;
+        offsets[count] = offset;
+        ++count;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public String getKey(int index) {
+        return decode(keyStarts[index], keyEnds[index]);
+    }
+
+    public String getValue(int index) {
+        int end = (index + 1 < count) ? offsets[index + 1] : length;
+        return decode(offsets[index], end);
+    }
+
+    private String decode(int start, int end) {
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+}
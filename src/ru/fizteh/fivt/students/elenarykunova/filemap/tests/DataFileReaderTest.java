@@ -0,0 +1,71 @@
+package ru.fizteh.fivt.students.elenarykunova.filemap.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ru.fizteh.fivt.students.elenarykunova.filemap.DataFileReader;
+
+public class DataFileReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File writeFile(String[] keys, String[] values) throws IOException {
+        File file = folder.newFile("1.dat");
+        try (RandomAccessFile dataFile = new RandomAccessFile(file, "rw")) {
+            int offset = 0;
+            for (String key : keys) {
+                offset += key.getBytes(StandardCharsets.UTF_8).length + 5;
+            }
+            for (int i = 0; i < keys.length; i++) {
+                dataFile.write(keys[i].getBytes(StandardCharsets.UTF_8));
+                dataFile.writeByte(0);
+                dataFile.writeInt(offset);
+                offset += values[i].getBytes(StandardCharsets.UTF_8).length;
+            }
+            for (String value : values) {
+                dataFile.write(value.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return file;
+    }
+
+    @Test
+    public void testReadKeysAndValues() throws IOException {
+        String[] keys = {"ключ", "key2", "k"};
+        String[] values = {"<row><col>значение</col></row>", "", "<row><null/></row>"};
+        DataFileReader reader = new DataFileReader(writeFile(keys, values));
+        assertEquals(3, reader.size());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(keys[i], reader.getKey(i));
+            assertEquals(values[i], reader.getValue(i));
+        }
+    }
+
+    @Test (expected = IOException.class)
+    public void testWrongOffset() throws IOException {
+        File file = writeFile(new String[] {"key"}, new String[] {"value"});
+        try (RandomAccessFile dataFile = new RandomAccessFile(file, "rw")) {
+            dataFile.seek(4);
+            dataFile.writeInt(1000);
+        }
+        new DataFileReader(file);
+    }
+
+    @Test (expected = IOException.class)
+    public void testTruncatedHeader() throws IOException {
+        File file = writeFile(new String[] {"key"}, new String[] {"value"});
+        try (RandomAccessFile dataFile = new RandomAccessFile(file, "rw")) {
+            dataFile.setLength(5);
+        }
+        new DataFileReader(file);
+    }
+}
@@ -5,8 +5,12 @@ import ru.fizteh.fivt.students.eltyshev.multifilemap.DatabaseFileDescriptor;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -15,7 +19,7 @@ public abstract class AbstractStorage<Key, Value> implements AutoCloseable {
 
     public static final Charset CHARSET = StandardCharsets.UTF_8;
     // Data
-    protected HashMap<Key, Value> oldData;
+    protected TreeMap<Key, Value> oldData;
     protected final ThreadLocal<TransactionChanges<Key, Value>> transaction = new ThreadLocal<TransactionChanges<Key, Value>>() {
         @Override
         public TransactionChanges<Key, Value> initialValue() {
@@ -44,7 +48,7 @@ public abstract class AbstractStorage<Key, Value> implements AutoCloseable {
     public AbstractStorage(String directory, String tableName) {
         this.directory = directory;
         this.tableName = tableName;
-        oldData = new HashMap<Key, Value>();
+        oldData = new TreeMap<Key, Value>();
         state = ContainerState.NOT_INITIALIZED;
         try {
             load();
@@ -109,7 +113,11 @@ public abstract class AbstractStorage<Key, Value> implements AutoCloseable {
         return transaction.get().getSize();
     }
 
-    public int storageCommit() {
+    /**
+     * Applies the changes of the current transaction and saves them. If saving fails the changes
+     * stay applied in memory, but the exception is passed on so the caller knows they are not on disk.
+     */
+    public int storageCommit() throws IOException {
         state.checkOperationsAllowed();
 
         try {
@@ -117,12 +125,7 @@ public abstract class AbstractStorage<Key, Value> implements AutoCloseable {
             int recordsCommitted = transaction.get().applyChanges();
             transaction.get().clear();
 
-            try {
-                save();
-            } catch (IOException e) {
-                System.err.println("storageCommit: " + e.getMessage());
-                return 0;
-            }
+            save();
 
             return recordsCommitted;
         } finally {
@@ -138,6 +141,29 @@ public abstract class AbstractStorage<Key, Value> implements AutoCloseable {
         return recordsDeleted;
     }
 
+    /**
+     * Up to {@code limit} committed rows in key order, starting after {@code after} or from the
+     * first key if it is null. The page is copied under the commit lock, so no commit is half applied.
+     */
+    public List<Map.Entry<Key, Value>> committedPage(Key after, int limit) {
+        state.checkOperationsAllowed();
+
+        List<Map.Entry<Key, Value>> page = new ArrayList<>(limit);
+        transactionLock.lock();
+        try {
+            Map<Key, Value> rows = after == null ? oldData : oldData.tailMap(after, false);
+            for (Map.Entry<Key, Value> row : rows.entrySet()) {
+                if (page.size() == limit) {
+                    break;
+                }
+                page.add(new AbstractMap.SimpleImmutableEntry<>(row));
+            }
+        } finally {
+            transactionLock.unlock();
+        }
+        return page;
+    }
+
     public String getDatabaseDirectory() {
         return directory;
     }
@@ -2,6 +2,8 @@ package ru.fizteh.fivt.students.eltyshev.filemap.base;
 
 import ru.fizteh.fivt.storage.strings.Table;
 
+import java.io.IOException;
+
 public abstract class StringTable extends AbstractStorage<String, String> implements Table {
     protected StringTable(String directory, String tableName) {
         super(directory, tableName);
@@ -29,7 +31,12 @@ public abstract class StringTable extends AbstractStorage<String, String> implem
 
     @Override
     public int commit() {
-        return storageCommit();
+        try {
+            return storageCommit();
+        } catch (IOException e) {
+            System.err.println("storageCommit: " + e.getMessage());
+            return 0;
+        }
     }
 
     @Override
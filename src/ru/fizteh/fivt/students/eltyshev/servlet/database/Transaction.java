@@ -20,62 +20,105 @@ public class Transaction {
     }
 
     String transactionId;
+    boolean finished;
 
-    public Transaction(DatabaseTableProvider provider, String tableName, TransactionManager manager) {
+    public Transaction(DatabaseTableProvider provider, String tableName, TransactionManager manager,
+                       String transactionId) {
         this.provider = provider;
         this.manager = manager;
         table = (DatabaseTable) provider.getTable(tableName);
         defaultTransaction = table.getTransaction();
         localChanges = new TransactionChanges();
         localChanges.setStorage(table);
-        transactionId = manager.makeTransactionId();
+        this.transactionId = transactionId;
     }
 
-    public int commit() throws IOException {
+    private void checkFinished() {
+        if (finished) {
+            throw new IllegalStateException("transaction is finished");
+        }
+    }
+
+    /**
+     * Commits and ends the transaction. It ends even if the changes could not be saved, because
+     * they are applied to the table by then; the IOException tells that they are not on disk.
+     */
+    public synchronized int commit() throws IOException {
+        checkFinished();
         table.setTransaction(localChanges);
-        int result = table.commit();
-        table.setTransaction(defaultTransaction);
-        manager.endTransaction(transactionId);
-        return result;
+        try {
+            return table.commit();
+        } finally {
+            table.setTransaction(defaultTransaction);
+            finished = true;
+            manager.endTransaction(this);
+        }
     }
 
-    public int rollback() throws IOException {
+    public synchronized int rollback() throws IOException {
+        checkFinished();
         table.setTransaction(localChanges);
         int result = table.rollback();
         table.setTransaction(defaultTransaction);
-        manager.endTransaction(transactionId);
+        finished = true;
+        manager.endTransaction(this);
         return result;
     }
 
     public String get(String key) {
-        table.setTransaction(localChanges);
-        try {
-            Storeable value = table.get(key);
-            if (value == null) {
-                throw new IllegalArgumentException("key not found");
-            }
-            return provider.serialize(table, value);
-        } finally {
-            table.setTransaction(defaultTransaction);
+        String value = find(key);
+        if (value == null) {
+            throw new IllegalArgumentException("key not found");
         }
+        return value;
     }
 
     public String put(String key, String value) throws IOException {
-        table.setTransaction(localChanges);
         try {
-            Storeable oldValue = table.put(key, provider.deserialize(table, value));
+            String oldValue = replace(key, parse(value));
             if (oldValue == null) {
                 throw new IllegalArgumentException("key not found");
             }
-            return provider.serialize(table, oldValue);
+            return oldValue;
         } catch (ParseException e) {
             throw new IOException(e);
+        }
+    }
+
+    /**
+     * Serialized value of the key in this transaction, or null if there is none.
+     */
+    public synchronized String find(String key) {
+        checkFinished();
+        table.setTransaction(localChanges);
+        try {
+            Storeable value = table.get(key);
+            return value == null ? null : provider.serialize(table, value);
+        } finally {
+            table.setTransaction(defaultTransaction);
+        }
+    }
+
+    public Storeable parse(String value) throws ParseException {
+        return provider.deserialize(table, value);
+    }
+
+    /**
+     * Puts a parsed value and returns the serialized old one, or null if there was none.
+     */
+    public synchronized String replace(String key, Storeable value) {
+        checkFinished();
+        table.setTransaction(localChanges);
+        try {
+            Storeable oldValue = table.put(key, value);
+            return oldValue == null ? null : provider.serialize(table, oldValue);
         } finally {
             table.setTransaction(defaultTransaction);
         }
     }
 
-    public int size() {
+    public synchronized int size() {
+        checkFinished();
         table.setTransaction(localChanges);
         try {
             return table.size();
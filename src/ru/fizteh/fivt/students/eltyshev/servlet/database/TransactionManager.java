@@ -1,42 +1,76 @@
 package ru.fizteh.fivt.students.eltyshev.servlet.database;
 
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.students.eltyshev.storable.database.DatabaseTable;
 import ru.fizteh.fivt.students.eltyshev.storable.database.DatabaseTableProvider;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Open transactions by id. A {@link Transaction} locks itself for its requests, so the registry
+ * needs no lock of its own. Ids are five-digit counter values; one still in use is skipped.
+ */
 public class TransactionManager {
+    static final int MAX_TRANSACTIONS = 100000;
 
-    Map<String, Transaction> transactions = new HashMap<String, Transaction>();
+    ConcurrentMap<String, Transaction> transactions = new ConcurrentHashMap<String, Transaction>();
     DatabaseTableProvider provider;
 
-    int transactionCounter = 0;
+    AtomicInteger transactionCounter = new AtomicInteger();
+    final int maxTransactions;
 
     public TransactionManager(DatabaseTableProvider provider) {
+        this(provider, MAX_TRANSACTIONS);
+    }
+
+    /**
+     * Ids are still padded to five digits, so {@code maxTransactions} must not exceed the default.
+     */
+    public TransactionManager(DatabaseTableProvider provider, int maxTransactions) {
         this.provider = provider;
+        this.maxTransactions = maxTransactions;
     }
 
     public String beginTransaction(String tableName) {
-        Transaction transaction = new Transaction(provider, tableName, this);
-        transactions.put(transaction.getTransactionId(), transaction);
-        return transaction.getTransactionId();
+        for (int attempt = 0; attempt < maxTransactions; ++attempt) {
+            String transactionId = makeTransactionId();
+            if (transactions.containsKey(transactionId)) {
+                continue;
+            }
+            Transaction transaction = new Transaction(provider, tableName, this, transactionId);
+            if (transactions.putIfAbsent(transactionId, transaction) == null) {
+                return transactionId;
+            }
+        }
+        throw new IllegalStateException("too many transactions");
     }
 
     public Transaction getTransaction(String transactionId) {
         return transactions.get(transactionId);
     }
 
-    void endTransaction(String transactionId) {
-        transactions.remove(transactionId);
+    public DatabaseTable getTable(String tableName) {
+        return (DatabaseTable) provider.getTable(tableName);
+    }
+
+    public String serialize(DatabaseTable table, Storeable value) {
+        return provider.serialize(table, value);
+    }
+
+    void endTransaction(Transaction transaction) {
+        transactions.remove(transaction.getTransactionId(), transaction);
     }
 
     String makeTransactionId() {
+        int counter = (transactionCounter.getAndIncrement() & Integer.MAX_VALUE) % maxTransactions;
+
         StringBuilder sb = new StringBuilder();
-        sb.append(transactionCounter);
+        sb.append(counter);
         while (sb.length() < 5) {
             sb.insert(0, 0);
         }
-        transactionCounter += 1;
         return sb.toString();
     }
 }
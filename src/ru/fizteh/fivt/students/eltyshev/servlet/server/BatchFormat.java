@@ -0,0 +1,126 @@
+package ru.fizteh.fivt.students.eltyshev.servlet.server;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Body format of the batch requests: one record per line, fields separated by a tab. A tab, a line
+ * break or a backslash inside a field is escaped with a backslash, so values may contain them.
+ */
+public class BatchFormat {
+    // Records are flushed to the client in groups of this size
+    public static final int FLUSH_RECORDS = 256;
+
+    // Result statuses
+    public static final String FOUND = "found";
+    public static final String NOT_FOUND = "not found";
+    public static final String NEW = "new";
+    public static final String OVERWRITE = "overwrite";
+    public static final String ERROR = "error";
+
+    /**
+     * Parameter of the query string only. HttpServletRequest.getParameter would read a body sent
+     * as a form, and a batch body has to stay a stream.
+     */
+    public static String queryParameter(HttpServletRequest req, String name) {
+        String query = req.getQueryString();
+        if (query == null) {
+            return null;
+        }
+        try {
+            for (String pair : query.split("&")) {
+                int separator = pair.indexOf('=');
+                if (separator > 0 && URLDecoder.decode(pair.substring(0, separator), "UTF-8").equals(name)) {
+                    return URLDecoder.decode(pair.substring(separator + 1), "UTF-8");
+                }
+            }
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return null;
+        }
+        return null;
+    }
+
+    public static List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        int start = 0;
+        for (int index = 0; index <= line.length(); ++index) {
+            if (index == line.length() || line.charAt(index) == '\t') {
+                fields.add(unescape(line.substring(start, index)));
+                start = index + 1;
+            }
+        }
+        return fields;
+    }
+
+    public static void writeRecord(PrintWriter writer, String... fields) {
+        StringBuilder sb = new StringBuilder();
+        for (int index = 0; index < fields.length; ++index) {
+            if (index > 0) {
+                sb.append('\t');
+            }
+            escape(sb, fields[index]);
+        }
+        sb.append('\n');
+        writer.write(sb.toString());
+    }
+
+    private static void escape(StringBuilder sb, String field) {
+        for (int index = 0; index < field.length(); ++index) {
+            char c = field.charAt(index);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String field) {
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+        StringBuilder sb = new StringBuilder(field.length());
+        for (int index = 0; index < field.length(); ++index) {
+            char c = field.charAt(index);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (++index == field.length()) {
+                throw new IllegalArgumentException("unfinished escape sequence");
+            }
+            switch (field.charAt(index)) {
+                case '\\':
+                    sb.append('\\');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown escape sequence: \\" + field.charAt(index));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -3,17 +3,30 @@ package ru.fizteh.fivt.students.eltyshev.servlet.server;
 import ru.fizteh.fivt.students.eltyshev.servlet.database.Transaction;
 import ru.fizteh.fivt.students.eltyshev.servlet.database.TransactionManager;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
+/**
+ * Commits on the I/O executor of the server instead of the request thread, which is given back
+ * to Jetty at once; the response is completed when the changes are on disk. When the cap of
+ * commits in progress is reached the request is refused with 503 instead of queued.
+ */
 public class CommitServlet extends HttpServlet {
     private TransactionManager manager;
+    private ExecutorService executor;
+    private Semaphore inFlight;
 
-    public CommitServlet(TransactionManager manager) {
+    public CommitServlet(TransactionManager manager, ExecutorService executor, Semaphore inFlight) {
         this.manager = manager;
+        this.executor = executor;
+        this.inFlight = inFlight;
     }
 
     @Override
@@ -24,19 +37,55 @@ public class CommitServlet extends HttpServlet {
             return;
         }
 
-        Transaction transaction = manager.getTransaction(transactionId);
+        final Transaction transaction = manager.getTransaction(transactionId);
         if (transaction == null) {
             resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Transaction not found");
             return;
         }
 
+        if (!inFlight.tryAcquire()) {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many commits in progress");
+            return;
+        }
+
+        final AsyncContext context = req.startAsync();
+        context.setTimeout(0);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        commit(transaction, (HttpServletResponse) context.getResponse());
+                    } finally {
+                        inFlight.release();
+                        context.complete();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server is stopping");
+            context.complete();
+        }
+    }
 
-        int result = transaction.commit();
+    private void commit(Transaction transaction, HttpServletResponse resp) {
+        try {
+            int result;
+            try {
+                result = transaction.commit();
+            } catch (IOException | RuntimeException e) {
+                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+                return;
+            }
 
-        resp.setStatus(HttpServletResponse.SC_OK);
-        resp.setContentType("text/plain");
-        resp.setCharacterEncoding("UTF8");
+            resp.setStatus(HttpServletResponse.SC_OK);
+            resp.setContentType("text/plain");
+            resp.setCharacterEncoding("UTF8");
 
-        resp.getWriter().println(String.format("%s=%d", Constants.DIFF, result));
+            resp.getWriter().println(String.format("%s=%d", Constants.DIFF, result));
+        } catch (IOException e) {
+            // Client has gone, the changes are committed anyway
+        }
     }
 }
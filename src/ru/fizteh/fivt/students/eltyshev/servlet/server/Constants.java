@@ -9,6 +9,9 @@ public class Constants {
     public static final String PUT = "/put";
     public static final String SIZE = "/size";
     public static final String TEST = "/test";
+    public static final String MGET = "/mget";
+    public static final String MPUT = "/mput";
+    public static final String SCAN = "/scan";
 
     // Parameters' names
     public static final String TABLE_NAME = "table";
@@ -16,4 +19,6 @@ public class Constants {
     public static final String KEY = "key";
     public static final String VALUE = "value";
     public static final String DIFF = "diff";
+    public static final String AFTER = "after";
+    public static final String LIMIT = "limit";
 }
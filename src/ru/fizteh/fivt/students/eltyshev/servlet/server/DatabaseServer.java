@@ -6,14 +6,33 @@ import org.eclipse.jetty.servlet.ServletHolder;
 import ru.fizteh.fivt.students.eltyshev.servlet.database.TransactionManager;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class DatabaseServer {
     private static final int DEFAULT_PORT = 8080;
+    private static final int DEFAULT_MAX_COMMITS = 8;
+    private static final int STOP_TIMEOUT_SECONDS = 30;
     private Server server;
     private TransactionManager manager;
+    private int maxCommits;
+    private ExecutorService commitExecutor;
 
     public DatabaseServer(TransactionManager manager) {
+        this(manager, DEFAULT_MAX_COMMITS);
+    }
+
+    /**
+     * @param maxCommits how many commits may be in progress at once; more are refused with 503
+     */
+    public DatabaseServer(TransactionManager manager, int maxCommits) {
+        if (maxCommits <= 0) {
+            throw new IllegalArgumentException("maxCommits must be positive");
+        }
         this.manager = manager;
+        this.maxCommits = maxCommits;
     }
 
     public void start(int port) throws Exception {
@@ -33,10 +52,17 @@ public class DatabaseServer {
         context.addServlet(new ServletHolder(new BeginServlet(manager)), Constants.BEGIN);
         context.addServlet(new ServletHolder(new GetServlet(manager)), Constants.GET);
         context.addServlet(new ServletHolder(new PutServlet(manager)), Constants.PUT);
-        context.addServlet(new ServletHolder(new CommitServlet(manager)), Constants.COMMIT);
+        commitExecutor = Executors.newFixedThreadPool(Math.min(maxCommits, Runtime.getRuntime().availableProcessors()));
+        ServletHolder commitHolder = new ServletHolder(new CommitServlet(manager, commitExecutor,
+                new Semaphore(maxCommits)));
+        commitHolder.setAsyncSupported(true);
+        context.addServlet(commitHolder, Constants.COMMIT);
         context.addServlet(new ServletHolder(new RollbackServlet(manager)), Constants.ROLLBACK);
         context.addServlet(new ServletHolder(new SizeServlet(manager)), Constants.SIZE);
         context.addServlet(new ServletHolder(new TestServlet()), Constants.TEST);
+        context.addServlet(new ServletHolder(new MultiGetServlet(manager)), Constants.MGET);
+        context.addServlet(new ServletHolder(new MultiPutServlet(manager)), Constants.MPUT);
+        context.addServlet(new ServletHolder(new ScanServlet(manager)), Constants.SCAN);
 
         server.setHandler(context);
         server.start();
@@ -54,6 +80,16 @@ public class DatabaseServer {
             server.stop();
         } catch (Exception e) {
             throw new IOException(e);
+        } finally {
+            commitExecutor.shutdown();
+        }
+        try {
+            if (!commitExecutor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IOException("commits are still in progress");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
         }
     }
 
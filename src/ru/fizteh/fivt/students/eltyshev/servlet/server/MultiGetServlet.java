@@ -0,0 +1,77 @@
+package ru.fizteh.fivt.students.eltyshev.servlet.server;
+
+import ru.fizteh.fivt.students.eltyshev.servlet.database.Transaction;
+import ru.fizteh.fivt.students.eltyshev.servlet.database.TransactionManager;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Reads one key per line of the body and answers with a tab-separated record per key, in the
+ * same order: key, "found", value; key, "not found"; or key, "error", message. Fields are escaped
+ * as in {@link BatchFormat}. Keys are read and answered as the body arrives, so the response
+ * starts before the request is over.
+ */
+public class MultiGetServlet extends HttpServlet {
+    private TransactionManager manager;
+
+    public MultiGetServlet(TransactionManager manager) {
+        this.manager = manager;
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        String transactionId = BatchFormat.queryParameter(req, Constants.TRANSACTION_ID);
+        if (transactionId == null) {
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Transaction id expected");
+            return;
+        }
+
+        Transaction transaction = manager.getTransaction(transactionId);
+        if (transaction == null) {
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Transaction not found");
+            return;
+        }
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType("text/plain");
+        resp.setCharacterEncoding("UTF8");
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(req.getInputStream(), StandardCharsets.UTF_8));
+        PrintWriter writer = resp.getWriter();
+        int records = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String key = line;
+            try {
+                List<String> fields = BatchFormat.split(line);
+                key = fields.get(0);
+                if (fields.size() != 1) {
+                    throw new IllegalArgumentException("one key per line expected");
+                }
+                String value = transaction.find(key);
+                if (value == null) {
+                    BatchFormat.writeRecord(writer, key, BatchFormat.NOT_FOUND);
+                } else {
+                    BatchFormat.writeRecord(writer, key, BatchFormat.FOUND, value);
+                }
+            } catch (IllegalArgumentException e) {
+                BatchFormat.writeRecord(writer, key, BatchFormat.ERROR, String.valueOf(e.getMessage()));
+            }
+            if (++records % BatchFormat.FLUSH_RECORDS == 0) {
+                resp.flushBuffer();
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package ru.fizteh.fivt.students.eltyshev.servlet.server;
+
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.students.eltyshev.servlet.database.Transaction;
+import ru.fizteh.fivt.students.eltyshev.servlet.database.TransactionManager;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads tab-separated key, value records and puts them into the transaction in chunks of
+ * {@link BatchFormat#FLUSH_RECORDS} records, so a large body is neither held in memory nor answered
+ * only at its end. A chunk is parsed before anything in it is put. The answer has a record per key:
+ * key, "new"; key, "overwrite", old value; or key, "error", message, with fields escaped as in
+ * {@link BatchFormat}. A malformed line stops the request: if nothing has been answered yet the
+ * response is 400, otherwise it ends with an empty key, "error", message. The chunk of that line is
+ * not put, the earlier ones stay in the transaction, which can be rolled back.
+ */
+public class MultiPutServlet extends HttpServlet {
+    private TransactionManager manager;
+
+    public MultiPutServlet(TransactionManager manager) {
+        this.manager = manager;
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        String transactionId = BatchFormat.queryParameter(req, Constants.TRANSACTION_ID);
+        if (transactionId == null) {
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Transaction id expected");
+            return;
+        }
+
+        Transaction transaction = manager.getTransaction(transactionId);
+        if (transaction == null) {
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Transaction not found");
+            return;
+        }
+
+        List<String> keys = new ArrayList<>(BatchFormat.FLUSH_RECORDS);
+        List<Storeable> values = new ArrayList<>(BatchFormat.FLUSH_RECORDS);
+        PrintWriter writer = null;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(req.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            ++lineNumber;
+            if (line.isEmpty()) {
+                continue;
+            }
+            try {
+                List<String> fields = BatchFormat.split(line);
+                if (fields.size() != 2) {
+                    throw new IllegalArgumentException("key and value expected");
+                }
+                keys.add(fields.get(0));
+                values.add(transaction.parse(fields.get(1)));
+            } catch (IllegalArgumentException | ParseException e) {
+                String message = String.format("line %d: %s", lineNumber, e.getMessage());
+                if (writer == null) {
+                    resp.sendError(HttpServletResponse.SC_BAD_REQUEST, message);
+                } else {
+                    BatchFormat.writeRecord(writer, "", BatchFormat.ERROR, message);
+                }
+                return;
+            }
+            if (keys.size() == BatchFormat.FLUSH_RECORDS) {
+                writer = putChunk(transaction, keys, values, resp, writer);
+            }
+        }
+        putChunk(transaction, keys, values, resp, writer);
+    }
+
+    private PrintWriter putChunk(Transaction transaction, List<String> keys, List<Storeable> values,
+                                 HttpServletResponse resp, PrintWriter writer) throws IOException {
+        if (writer == null) {
+            resp.setStatus(HttpServletResponse.SC_OK);
+            resp.setContentType("text/plain");
+            resp.setCharacterEncoding("UTF8");
+            writer = resp.getWriter();
+        }
+        for (int index = 0; index < keys.size(); ++index) {
+            String key = keys.get(index);
+            try {
+                String oldValue = transaction.replace(key, values.get(index));
+                if (oldValue == null) {
+                    BatchFormat.writeRecord(writer, key, BatchFormat.NEW);
+                } else {
+                    BatchFormat.writeRecord(writer, key, BatchFormat.OVERWRITE, oldValue);
+                }
+            } catch (IllegalArgumentException e) {
+                BatchFormat.writeRecord(writer, key, BatchFormat.ERROR, String.valueOf(e.getMessage()));
+            }
+        }
+        keys.clear();
+        values.clear();
+        resp.flushBuffer();
+        return writer;
+    }
+}
@@ -0,0 +1,83 @@
+package ru.fizteh.fivt.students.eltyshev.servlet.server;
+
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.students.eltyshev.servlet.database.TransactionManager;
+import ru.fizteh.fivt.students.eltyshev.storable.database.DatabaseTable;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams the committed rows of a table in key order as tab-separated key, value records, escaped
+ * as in {@link BatchFormat}. Optional parameters: "after" starts past that key and "limit" caps the
+ * number of rows. Rows are read a page at a time, each page from one committed state, and the
+ * response is flushed after every page.
+ */
+public class ScanServlet extends HttpServlet {
+    private TransactionManager manager;
+
+    public ScanServlet(TransactionManager manager) {
+        this.manager = manager;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        String tableName = req.getParameter(Constants.TABLE_NAME);
+        if (tableName == null) {
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Table name expected");
+            return;
+        }
+
+        DatabaseTable table;
+        try {
+            table = manager.getTable(tableName);
+        } catch (IllegalArgumentException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (table == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Table not found");
+            return;
+        }
+
+        String after = req.getParameter(Constants.AFTER);
+        int limit = Integer.MAX_VALUE;
+        String limitParameter = req.getParameter(Constants.LIMIT);
+        if (limitParameter != null) {
+            try {
+                limit = Integer.parseInt(limitParameter);
+            } catch (NumberFormatException e) {
+                limit = -1;
+            }
+            if (limit < 0) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid limit");
+                return;
+            }
+        }
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType("text/plain");
+        resp.setCharacterEncoding("UTF8");
+
+        PrintWriter writer = resp.getWriter();
+        while (limit > 0) {
+            int pageSize = Math.min(limit, BatchFormat.FLUSH_RECORDS);
+            List<Map.Entry<String, Storeable>> page = table.committedPage(after, pageSize);
+            for (Map.Entry<String, Storeable> row : page) {
+                BatchFormat.writeRecord(writer, row.getKey(), manager.serialize(table, row.getValue()));
+            }
+            resp.flushBuffer();
+            if (page.size() < pageSize) {
+                break;
+            }
+            limit -= pageSize;
+            after = page.get(pageSize - 1).getKey();
+        }
+    }
+}
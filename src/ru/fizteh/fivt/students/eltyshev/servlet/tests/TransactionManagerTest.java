@@ -0,0 +1,58 @@
+package ru.fizteh.fivt.students.eltyshev.servlet.tests;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.fizteh.fivt.students.eltyshev.servlet.database.TransactionManager;
+import ru.fizteh.fivt.students.eltyshev.storable.database.DatabaseTableProvider;
+import ru.fizteh.fivt.students.eltyshev.storable.database.DatabaseTableProviderFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TransactionManagerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    DatabaseTableProvider provider;
+
+    @Before
+    public void beforeTest() throws IOException {
+        provider = (DatabaseTableProvider) new DatabaseTableProviderFactory().create(folder.getRoot().toString());
+        List<Class<?>> columnTypes = new ArrayList<>();
+        columnTypes.add(Integer.class);
+        provider.createTable("table", columnTypes);
+    }
+
+    @Test
+    public void idsAreReusedOnlyAfterTheRange() throws IOException {
+        TransactionManager manager = new TransactionManager(provider, 3);
+        Assert.assertEquals("00000", manager.beginTransaction("table"));
+        Assert.assertEquals("00001", manager.beginTransaction("table"));
+        manager.getTransaction("00000").rollback();
+        Assert.assertNull(manager.getTransaction("00000"));
+        Assert.assertEquals("00002", manager.beginTransaction("table"));
+        Assert.assertEquals("00000", manager.beginTransaction("table"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void fullRangeShouldFail() {
+        TransactionManager manager = new TransactionManager(provider, 2);
+        manager.beginTransaction("table");
+        manager.beginTransaction("table");
+        manager.beginTransaction("table");
+    }
+
+    @Test
+    public void freedIdIsFoundInFullRange() throws IOException {
+        TransactionManager manager = new TransactionManager(provider, 3);
+        for (int i = 0; i < 3; ++i) {
+            manager.beginTransaction("table");
+        }
+        manager.getTransaction("00001").commit();
+        Assert.assertEquals("00001", manager.beginTransaction("table"));
+    }
+}
@@ -5,6 +5,7 @@ import ru.fizteh.fivt.storage.structured.Storeable;
 import ru.fizteh.fivt.storage.structured.Table;
 import ru.fizteh.fivt.students.kochetovnicolai.shell.FileManager;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -20,22 +21,34 @@ import java.text.ParseException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class DistributedTable extends FileManager implements Table, AutoCloseable {
 
-    private Path currentFile;
     private Path currentPath;
     private String tableName;
-    private HashMap<String, Storeable> cache;
+    private ShardCache cache;
     private ThreadLocal<HashMap<String, Storeable>> changes;
     private ThreadLocal<HashMap<String, Storeable>> defaultChanges;
     private HashMap<Integer, HashMap<String, Storeable>> changesPool;
 
-    private final int partsNumber = 16;
+    static final int PARTS_NUMBER = 16;
+
+    // Rough heap bytes on a 64-bit JVM: a map entry with its key String, a TableRecord with its
+    // value list, and a reference plus boxed object per column; characters take two bytes.
+    private static final int ENTRY_BYTES = 96;
+    private static final int RECORD_BYTES = 64;
+    private static final int COLUMN_BYTES = 24;
+    private static final int STRING_BYTES = 40;
+
+    private final int partsNumber = PARTS_NUMBER;
     private Path[] directoriesList = new Path[partsNumber];
     private Path[][] filesList = new Path[partsNumber][partsNumber];
+    private int[][] shardSizes = new int[partsNumber][partsNumber];
+    private int tableSize = 0;
     private Path signature;
     private List<Class<?>> types;
     private DistributedTableProvider provider;
@@ -96,44 +109,112 @@ public class DistributedTable extends FileManager implements Table, AutoCloseabl
         return true;
     }
 
-    private int getCurrentFileLength(int dirNumber, int fileNumber) throws IOException {
-        int fileRecordNumber = 0;
-        currentFile = filesList[dirNumber][fileNumber];
-        if (Files.size(currentFile) == 0) {
-            throw new IOException(currentFile + ": empty file");
+    private int getDirNumber(String key) {
+        return getFirstByte(key) % partsNumber;
+    }
+
+    private int getFileNumber(String key) {
+        return (getFirstByte(key) / partsNumber) % partsNumber;
+    }
+
+    private int countRecords(int dirNumber, int fileNumber) throws IOException {
+        Path file = filesList[dirNumber][fileNumber];
+        if (Files.size(file) == 0) {
+            throw new IOException(file + ": empty file");
         }
-        try (DataInputStream inputStream = new DataInputStream(new FileInputStream(currentFile.toFile()))) {
+        HashSet<String> keys = new HashSet<>();
+        try (DataInputStream inputStream = new DataInputStream(new FileInputStream(file.toFile()))) {
+            String key;
+            while ((key = readNextKey(inputStream)) != null) {
+                if (getDirNumber(key) != dirNumber || getFileNumber(key) != fileNumber) {
+                    throw new IOException("invalid key in file " + file);
+                }
+                if (!isValidKey(key)) {
+                    throw new IOException("invalid key format in file " + file);
+                }
+                // A repeated key is loaded once, the last value wins
+                keys.add(key);
+            }
+        } catch (IOException e) {
+            throw new IOException(file + ": " + e.getMessage());
+        }
+        return keys.size();
+    }
+
+    private HashMap<String, Storeable> loadShard(int dirNumber, int fileNumber) throws IOException {
+        HashMap<String, Storeable> shard = new HashMap<>();
+        Path file = filesList[dirNumber][fileNumber];
+        if (!Files.exists(file)) {
+            return shard;
+        }
+        try (DataInputStream inputStream = new DataInputStream(new FileInputStream(file.toFile()))) {
             String[] pair;
             try {
                 while ((pair = readNextPair(inputStream)) != null) {
-                    byte firstByte = getFirstByte(pair[0]);
-                    if (firstByte % partsNumber != dirNumber || (firstByte / partsNumber) % partsNumber != fileNumber) {
-                        throw new IOException("invalid key in file " + currentFile);
+                    if (getDirNumber(pair[0]) != dirNumber || getFileNumber(pair[0]) != fileNumber) {
+                        throw new IOException("invalid key in file " + file);
                     }
                     if (!isValidKey(pair[0])) {
-                        throw new IOException("invalid key format in file " + currentFile);
+                        throw new IOException("invalid key format in file " + file);
                     }
                     try {
                         Storeable value = DistributedTableProvider.deserialiseByTypesList(types, pair[1]);
                         if (!isValidValue(value)) {
-                            throw new IOException("invalid value format in file " + currentFile);
+                            throw new IOException("invalid value format in file " + file);
                         }
-                        cache.put(pair[0], value);
+                        shard.put(pair[0], value);
                     } catch (ParseException e) {
-                        throw new IOException("invalid value format in file " + currentFile, e);
+                        throw new IOException("invalid value format in file " + file, e);
                     }
-                    fileRecordNumber++;
                 }
             } catch (IOException e) {
-                throw new IOException(currentFile + ": " + e.getMessage());
+                throw new IOException(file + ": " + e.getMessage());
             }
         }
-        return fileRecordNumber;
+        return shard;
+    }
+
+    private HashMap<String, Storeable> getShard(String key) {
+        try {
+            return cache.get(getDirNumber(key), getFileNumber(key));
+        } catch (IOException e) {
+            throw new IllegalStateException("couldn't load table " + tableName + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void writeShard(int dirNumber, int fileNumber, HashMap<String, Storeable> shard) throws IOException {
+        Path file = filesList[dirNumber][fileNumber];
+        if (shard.isEmpty()) {
+            Files.deleteIfExists(file);
+            if (Files.exists(directoriesList[dirNumber]) && directoriesList[dirNumber].toFile().list().length == 0) {
+                Files.delete(directoriesList[dirNumber]);
+            }
+            return;
+        }
+        if (!Files.exists(directoriesList[dirNumber])) {
+            Files.createDirectory(directoriesList[dirNumber]);
+        }
+        try (DataOutputStream outputStream = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file.toFile())))) {
+            for (String key : shard.keySet()) {
+                writeNextPair(outputStream, key, DistributedTableProvider.serializeByTypesList(types, shard.get(key)));
+            }
+        }
+    }
+
+    public void setCacheBudget(long bytes) {
+        checkState();
+        cache.setBudget(bytes);
+    }
+
+    public ShardCache getCache() {
+        checkState();
+        return cache;
     }
 
     private int readTable() throws IOException {
         int directoriesNumber = 0;
-        int tableSize = 0;
+        tableSize = 0;
         if (Files.exists(signature)) {
             directoriesNumber++;
         }
@@ -144,7 +225,8 @@ public class DistributedTable extends FileManager implements Table, AutoCloseabl
                 for (int j = 0; j < partsNumber; j++) {
                     if (Files.exists(filesList[i][j])) {
                         filesNumber++;
-                        tableSize += getCurrentFileLength(i, j);
+                        shardSizes[i][j] = countRecords(i, j);
+                        tableSize += shardSizes[i][j];
                     }
                 }
                 int filesFoundNumber = directoriesList[i].toFile().list().length;
@@ -214,7 +296,17 @@ public class DistributedTable extends FileManager implements Table, AutoCloseabl
                 filesList[i][j] = directoriesList[i].resolve(j + ".dat");
             }
         }
-        cache = new HashMap<>();
+        cache = new ShardCache(ShardCache.DEFAULT_BUDGET) {
+            @Override
+            protected HashMap<String, Storeable> load(int dirNumber, int fileNumber) throws IOException {
+                return loadShard(dirNumber, fileNumber);
+            }
+
+            @Override
+            protected long weight(HashMap<String, Storeable> shard) {
+                return estimateSize(shard);
+            }
+        };
         changes = new ThreadLocal<HashMap<String, Storeable>>() {
             @Override
             protected HashMap<String, Storeable> initialValue() {
@@ -258,12 +350,13 @@ public class DistributedTable extends FileManager implements Table, AutoCloseabl
     private int findDifference() {
         int diff = 0;
         for (String key : changes.get().keySet()) {
+            HashMap<String, Storeable> shard = getShard(key);
             if (changes.get().get(key) == null) {
-                if (cache.containsKey(key)) {
+                if (shard.containsKey(key)) {
                     diff++;
                 }
             } else {
-                if (!cache.containsKey(key) || !changes.get().get(key).equals(cache.get(key))) {
+                if (!shard.containsKey(key) || !changes.get().get(key).equals(shard.get(key))) {
                     diff++;
                 }
             }
@@ -300,7 +393,7 @@ public class DistributedTable extends FileManager implements Table, AutoCloseabl
         } else {
             cacheLock.readLock().lock();
             try {
-                return cache.get(key);
+                return getShard(key).get(key);
             } finally {
                 cacheLock.readLock().unlock();
             }
@@ -343,14 +436,15 @@ public class DistributedTable extends FileManager implements Table, AutoCloseabl
         checkState();
         cacheLock.readLock().lock();
         try {
-            int size = cache.size();
+            int size = tableSize;
             for (String key : changes.get().keySet()) {
+                HashMap<String, Storeable> shard = getShard(key);
                 if (changes.get().get(key) == null) {
-                    if (cache.containsKey(key)) {
+                    if (shard.containsKey(key)) {
                         size--;
                     }
                 } else {
-                    if (!cache.containsKey(key)) {
+                    if (!shard.containsKey(key)) {
                         size++;
                     }
                 }
@@ -361,73 +455,64 @@ public class DistributedTable extends FileManager implements Table, AutoCloseabl
         }
     }
 
+    /**
+     * Writes the changed shards as new maps and only then puts them into the cache. If a write
+     * fails, the shards written before it are published, since they are on disk, and the changes
+     * are kept, so the commit can be repeated or rolled back.
+     */
     @Override
     public int commit() throws IOException {
         checkState();
         cacheLock.writeLock().lock();
         try {
-            boolean[][] changedFiles = new boolean[partsNumber][partsNumber];
-            boolean[][] removedFiles = new boolean[partsNumber][partsNumber];
-            boolean[] changedFolders = new boolean[partsNumber];
             int difference = findDifference();
+            HashMap<Integer, HashMap<String, Storeable>> changedShards = new HashMap<>();
             for (String key : changes.get().keySet()) {
-                byte first = getFirstByte(key);
-                changedFiles[first % partsNumber][(first / partsNumber) % partsNumber] = true;
-                changedFolders[first % partsNumber] = true;
+                int id = getDirNumber(key) * partsNumber + getFileNumber(key);
+                HashMap<String, Storeable> shard = changedShards.get(id);
+                if (shard == null) {
+                    shard = new HashMap<>(getShard(key));
+                    changedShards.put(id, shard);
+                }
                 if (changes.get().get(key) == null) {
-                    if (cache.containsKey(key)) {
-                        cache.remove(key);
-                        removedFiles[first % partsNumber][(first / partsNumber) % partsNumber] = true;
-                    }
+                    shard.remove(key);
                 } else {
-                    cache.put(key, changes.get().get(key));
+                    shard.put(key, changes.get().get(key));
                 }
             }
-            changes.get().clear();
-            HashMap<Byte, HashMap<String, String>> serealized = new HashMap<>();
-            for (String key : cache.keySet()) {
-                byte first = getFirstByte(key);
-                if (!serealized.containsKey(first)) {
-                    serealized.put(first, new HashMap<String, String>());
-                }
-                serealized.get(first).put(key, DistributedTableProvider.serializeByTypesList(types, cache.get(key)));
-            }
-            for (int i = 0; i < partsNumber; i++) {
-                if (changedFolders[i]) {
-                    if (!Files.exists(directoriesList[i])) {
-                        Files.createDirectory(directoriesList[i]);
-                    }
-                    for (int j = 0; j < partsNumber; j++) {
-                        if (changedFiles[i][j]) {
-                            if (Files.exists(filesList[i][j]) && removedFiles[i][j]) {
-                                Files.delete(filesList[i][j]);
-                            }
-                            byte first = (byte) (i + partsNumber * j);
-                            if (serealized.containsKey(first)) {
-                                if (!Files.exists(filesList[i][j])) {
-                                    Files.createFile(filesList[i][j]);
-                                }
-                                HashMap<String, String> map = serealized.get(first);
-                                try (DataOutputStream outputStream = new
-                                        DataOutputStream(new FileOutputStream(filesList[i][j].toFile(), true))) {
-                                    for (String key : map.keySet()) {
-                                        writeNextPair(outputStream, key, map.get(key));
-                                    }
-                                }
-                            }
-                        }
-                    }
-                    if (directoriesList[i].toFile().list().length == 0) {
-                        Files.delete(directoriesList[i]);
-                    }
-                }
+            for (int id : changedShards.keySet()) {
+                int i = id / partsNumber;
+                int j = id % partsNumber;
+                HashMap<String, Storeable> shard = changedShards.get(id);
+                writeShard(i, j, shard);
+                cache.put(i, j, shard);
+                tableSize += shard.size() - shardSizes[i][j];
+                shardSizes[i][j] = shard.size();
             }
+            changes.get().clear();
             return difference;
         } finally {
             cacheLock.writeLock().unlock();
         }
     }
 
+    private long estimateSize(HashMap<String, Storeable> shard) {
+        long size = 0;
+        for (Map.Entry<String, Storeable> entry : shard.entrySet()) {
+            size += ENTRY_BYTES + 2L * entry.getKey().length() + RECORD_BYTES;
+            for (int i = 0; i < types.size(); i++) {
+                size += COLUMN_BYTES;
+                if (types.get(i) == String.class) {
+                    String value = entry.getValue().getStringAt(i);
+                    if (value != null) {
+                        size += STRING_BYTES + 2L * value.length();
+                    }
+                }
+            }
+        }
+        return size;
+    }
+
     @Override
     public int getColumnsCount() {
         checkState();
@@ -481,20 +566,26 @@ public class DistributedTable extends FileManager implements Table, AutoCloseabl
         return pair;
     }
 
-    private String readValue(String key) throws IOException {
-        if (currentFile == null || !Files.exists(currentFile)) {
+    private String readNextKey(DataInputStream inputStream) throws IOException {
+        if (inputStream.available() == 0) {
             return null;
         }
-        try (DataInputStream inputStream = new DataInputStream(new FileInputStream(currentFile.toFile()))) {
-            String[] pair;
-            while ((pair = readNextPair(inputStream)) != null) {
-                if (pair[0].equals(key)) {
-                    inputStream.close();
-                    return pair[1];
-                }
-            }
+        int keySize;
+        int valueSize;
+        try {
+            keySize = inputStream.readInt();
+            valueSize = inputStream.readInt();
+        } catch (IOException e) {
+            throw new EOFException("the file is corrupt or has an incorrect format");
+        }
+        if (keySize < 1 || valueSize < 1 || inputStream.available() < keySize + valueSize) {
+            throw new EOFException("the file is corrupt or has an incorrect format");
+        }
+        byte[] keyBytes = new byte[keySize];
+        if (inputStream.read(keyBytes) != keySize || inputStream.skipBytes(valueSize) != valueSize) {
+            throw new EOFException("the file is corrupt or has an incorrect format");
         }
-        return null;
+        return new String(keyBytes, StandardCharsets.UTF_8);
     }
 
     public void clear() throws IOException {
@@ -0,0 +1,96 @@
+package ru.fizteh.fivt.students.kochetovnicolai.fileMap;
+
+import ru.fizteh.fivt.storage.structured.Storeable;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used shards of one table, kept while their weight fits the budget. The weight
+ * is an estimate of the heap taken by the decoded shard, given by {@link #weight}.
+ */
+public abstract class ShardCache {
+
+    public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+    private final LinkedHashMap<Integer, HashMap<String, Storeable>> shards = new LinkedHashMap<>(16, 0.75f, true);
+    private final HashMap<Integer, Long> weights = new HashMap<>();
+    private long budget;
+    private long used = 0;
+
+    public ShardCache(long budget) {
+        setBudget(budget);
+    }
+
+    protected abstract HashMap<String, Storeable> load(int dirNumber, int fileNumber) throws IOException;
+
+    protected abstract long weight(HashMap<String, Storeable> shard);
+
+    public synchronized void setBudget(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("cache budget shouldn't be negative");
+        }
+        this.budget = budget;
+        evict(-1);
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    public synchronized int getLoadedCount() {
+        return shards.size();
+    }
+
+    public synchronized boolean isLoaded(int dirNumber, int fileNumber) {
+        return shards.containsKey(id(dirNumber, fileNumber));
+    }
+
+    public synchronized HashMap<String, Storeable> get(int dirNumber, int fileNumber) throws IOException {
+        int id = id(dirNumber, fileNumber);
+        HashMap<String, Storeable> shard = shards.get(id);
+        if (shard == null) {
+            shard = load(dirNumber, fileNumber);
+            store(id, shard, weight(shard));
+        }
+        return shard;
+    }
+
+    public synchronized void put(int dirNumber, int fileNumber, HashMap<String, Storeable> shard) {
+        store(id(dirNumber, fileNumber), shard, weight(shard));
+    }
+
+    public synchronized void clear() {
+        shards.clear();
+        weights.clear();
+        used = 0;
+    }
+
+    private static int id(int dirNumber, int fileNumber) {
+        return dirNumber * DistributedTable.PARTS_NUMBER + fileNumber;
+    }
+
+    private void store(int id, HashMap<String, Storeable> shard, long weight) {
+        Long old = weights.put(id, weight);
+        if (old != null) {
+            used -= old;
+        }
+        used += weight;
+        shards.put(id, shard);
+        evict(id);
+    }
+
+    private void evict(int keep) {
+        Iterator<Map.Entry<Integer, HashMap<String, Storeable>>> iterator = shards.entrySet().iterator();
+        while (used > budget && iterator.hasNext()) {
+            int id = iterator.next().getKey();
+            if (id != keep) {
+                used -= weights.remove(id);
+                iterator.remove();
+            }
+        }
+    }
+}
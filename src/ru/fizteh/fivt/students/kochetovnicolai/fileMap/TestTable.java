@@ -11,6 +11,9 @@ import ru.fizteh.fivt.storage.structured.Storeable;
 import java.text.ParseException;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 
 @RunWith(Theories.class)
@@ -149,6 +152,82 @@ public class TestTable {
         Assert.assertEquals("key should not exists in file", table.get("key5"), null);
     }
 
+    @Test
+    public void shardsShouldBeLoadedLazilyAndEvicted() throws ParseException, IOException {
+        Storeable value1 = provider.deserialize(table, "<row><col>value1</col></row>");
+        Storeable value2 = provider.deserialize(table, "<row><col>value2</col></row>");
+        Assert.assertTrue("put new key should be null", table.put("a", value1) == null);
+        Assert.assertTrue("put new key should be null", table.put("b", value2) == null);
+        Assert.assertEquals("commit should return 2", table.commit(), 2);
+
+        factory = new DistributedTableProviderFactory();
+        provider = factory.create(folder.getRoot().getPath());
+        table = provider.getTable(validTableName);
+        Assert.assertEquals("table size should be known without loading", table.size(), 2);
+        Assert.assertEquals("no shard should be loaded", table.getCache().getLoadedCount(), 0);
+
+        table.setCacheBudget(0);
+        Assert.assertEquals("key should exists in file", table.get("a"), value1);
+        Assert.assertEquals("key should exists in file", table.get("b"), value2);
+        Assert.assertEquals("only last shard should stay in cache", table.getCache().getLoadedCount(), 1);
+        Assert.assertEquals("evicted shard should be reloaded", table.get("a"), value1);
+        Assert.assertEquals("remove should return old value", table.remove("b"), value2);
+        Assert.assertEquals("commit should return 1", table.commit(), 1);
+        Assert.assertEquals("table size should equals 1", table.size(), 1);
+    }
+
+    @Test
+    public void openShouldCheckKeysAndSkipRepeatedOnes() throws ParseException, IOException {
+        Storeable value = provider.deserialize(table, "<row><col>value1</col></row>");
+        Assert.assertTrue("put new key should be null", table.put("a", value) == null);
+        Assert.assertEquals("commit should return 1", table.commit(), 1);
+        Path file = folder.getRoot().toPath().resolve(validTableName).resolve("1.dir").resolve("6.dat");
+        byte[] record = Files.readAllBytes(file);
+        Files.write(file, record, StandardOpenOption.APPEND);
+
+        factory = new DistributedTableProviderFactory();
+        provider = factory.create(folder.getRoot().getPath());
+        table = provider.getTable(validTableName);
+        Assert.assertEquals("repeated key should be counted once", table.size(), 1);
+        Assert.assertEquals("key should exists in file", table.get("a"), value);
+
+        Files.move(file, file.resolveSibling("7.dat"));
+        factory = new DistributedTableProviderFactory();
+        provider = factory.create(folder.getRoot().getPath());
+        Assert.assertNull("key in a wrong file should be rejected on open", provider.getTable(validTableName));
+    }
+
+    @Test
+    public void failedCommitShouldPublishNothing() throws Exception {
+        Storeable value = provider.deserialize(table, "<row><col>value1</col></row>");
+        table.put("a", value);
+        Path directory = folder.getRoot().toPath().resolve(validTableName).resolve("1.dir");
+        Files.createFile(directory);
+        try {
+            table.commit();
+            Assert.fail("commit into a file instead of a directory should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        final Storeable[] seen = new Storeable[1];
+        final int[] size = new int[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                seen[0] = table.get("a");
+                size[0] = table.size();
+            }
+        });
+        reader.start();
+        reader.join();
+        Assert.assertNull("unwritten key shouldn't be visible", seen[0]);
+        Assert.assertEquals("unwritten key shouldn't be counted", size[0], 0);
+
+        Files.delete(directory);
+        Assert.assertEquals("changes should be kept for another commit", table.commit(), 1);
+        Assert.assertEquals("key should be committed", table.get("a"), value);
+    }
+
     @Test
     public void doubleCloseShouldWork() throws IOException {
         table.close();
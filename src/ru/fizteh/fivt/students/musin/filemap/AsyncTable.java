@@ -0,0 +1,20 @@
+package ru.fizteh.fivt.students.musin.filemap;
+
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.storage.structured.Table;
+
+/**
+ * Table whose calls return at once. Calls of one thread are applied in the order they were made
+ * and belong to the transaction of that thread. Blocking calls may be mixed with them safely, but
+ * one made before the futures of earlier calls are done may see the table without those calls.
+ *
+ * <p>All asynchronous calls of a provider run on one thread, so {@link #getAsync} also waits for
+ * every commit queued before it.
+ */
+public interface AsyncTable extends Table {
+    StorageFuture<Storeable> getAsync(String key);
+
+    StorageFuture<Storeable> putAsync(String key, Storeable value);
+
+    StorageFuture<Integer> commitAsync();
+}
@@ -0,0 +1,91 @@
+package ru.fizteh.fivt.students.musin.filemap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Framed binary protocol of the storage server. A client switches to it by sending the text
+ * line {@link #HELLO} as its first line; a server that knows the protocol answers
+ * {@link #ACCEPTED}, any other answer means that only the text protocol is available.
+ *
+ * <p>After that every request is a frame: 4-byte length, opcode byte, arguments. Every response
+ * is a frame too: 4-byte length, status byte, result. Strings are a 4-byte length and UTF-8
+ * bytes, rows use {@link RowCodec}, column types are indexes in {@link FixedList#CLASSES}.
+ */
+public class BinaryProtocol {
+    public static final String HELLO = "binary";
+    public static final String ACCEPTED = "binary ok";
+    static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    static final byte CREATE = 1;
+    static final byte DROP = 2;
+    static final byte DESCRIBE = 3;
+    static final byte USE = 4;
+    static final byte GET = 5;
+    static final byte PUT = 6;
+    static final byte REMOVE = 7;
+    static final byte SIZE = 8;
+    static final byte COMMIT = 9;
+    static final byte ROLLBACK = 10;
+    static final byte PING = 11;
+
+    static final byte OK = 0;
+    static final byte NOT_FOUND = 1;
+    static final byte EXISTS = 2;
+    static final byte UNSAVED = 3;
+    static final byte NO_TABLE = 4;
+    static final byte ERROR = 5;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Frame under construction: the length is filled in by {@link #toByteArray}.
+     */
+    static class Frame extends DataOutputStream {
+        Frame(byte code) throws IOException {
+            super(new ByteArrayOutputStream());
+            writeInt(0);
+            writeByte(code);
+        }
+
+        byte[] toByteArray() throws IOException {
+            flush();
+            byte[] bytes = ((ByteArrayOutputStream) out).toByteArray();
+            ByteBuffer.wrap(bytes).putInt(0, bytes.length - 4);
+            return bytes;
+        }
+    }
+
+    static void writeTypes(DataOutputStream output, List<Class<?>> columnTypes) throws IOException {
+        output.writeInt(columnTypes.size());
+        for (Class<?> type : columnTypes) {
+            for (byte i = 0; i < FixedList.CLASSES.length; i++) {
+                if (FixedList.CLASSES[i] == type) {
+                    output.writeByte(i);
+                }
+            }
+        }
+    }
+
+    static List<Class<?>> readTypes(ByteBuffer input) throws ParseException {
+        int count = input.getInt();
+        if (count < 0 || count > input.remaining()) {
+            throw new ParseException("Wrong column count", input.position());
+        }
+        List<Class<?>> columnTypes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int index = input.get();
+            if (index < 0 || index >= FixedList.CLASSES.length) {
+                throw new ParseException("Unknown column type", input.position());
+            }
+            columnTypes.add(FixedList.CLASSES[index]);
+        }
+        return columnTypes;
+    }
+}
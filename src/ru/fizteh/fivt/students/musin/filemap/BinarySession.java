@@ -0,0 +1,162 @@
+package ru.fizteh.fivt.students.musin.filemap;
+
+import ru.fizteh.fivt.storage.structured.Storeable;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Server side of one {@link BinaryProtocol} connection. Like {@link ShellDatabaseHandler} it keeps
+ * the current table and its own transaction diff, so it is not bound to a thread.
+ */
+public class BinarySession {
+    private FileMapProvider database;
+    private MultiFileMap current;
+    private List<Class<?>> currentTypes;
+    private TransactionDiff diff;
+
+    public BinarySession(FileMapProvider database) {
+        this.database = database;
+        current = null;
+        diff = new TransactionDiff();
+    }
+
+    /**
+     * Executes one request frame without its length and returns the whole response frame.
+     */
+    public byte[] handle(ByteBuffer request) throws IOException {
+        try {
+            return execute(request.get(), request);
+        } catch (BufferUnderflowException e) {
+            return error("Truncated request");
+        } catch (ParseException e) {
+            return error(e.getMessage());
+        } catch (RuntimeException e) {
+            return error(e.getMessage() == null ? e.toString() : e.getMessage());
+        }
+    }
+
+    public void close() {
+        diff.clear();
+        current = null;
+    }
+
+    private byte[] execute(byte opcode, ByteBuffer request) throws IOException, ParseException {
+        switch (opcode) {
+            case BinaryProtocol.CREATE: {
+                String name = RowCodec.readString(request);
+                List<Class<?>> columnTypes = BinaryProtocol.readTypes(request);
+                MultiFileMap table = database.createTable(name, columnTypes);
+                return status(table == null ? BinaryProtocol.EXISTS : BinaryProtocol.OK);
+            }
+            case BinaryProtocol.DROP: {
+                String name = RowCodec.readString(request);
+                try {
+                    database.removeTable(name);
+                } catch (IllegalStateException e) {
+                    return status(BinaryProtocol.NOT_FOUND);
+                }
+                if (current != null && current.getName().equals(name)) {
+                    current = null;
+                }
+                return status(BinaryProtocol.OK);
+            }
+            case BinaryProtocol.DESCRIBE: {
+                MultiFileMap table = database.getTable(RowCodec.readString(request));
+                if (table == null) {
+                    return status(BinaryProtocol.NOT_FOUND);
+                }
+                BinaryProtocol.Frame frame = new BinaryProtocol.Frame(BinaryProtocol.OK);
+                BinaryProtocol.writeTypes(frame, columnTypes(table));
+                return frame.toByteArray();
+            }
+            case BinaryProtocol.PING:
+                return status(BinaryProtocol.OK);
+            case BinaryProtocol.USE: {
+                MultiFileMap table = database.getTable(RowCodec.readString(request));
+                if (table == null) {
+                    return status(BinaryProtocol.NOT_FOUND);
+                }
+                if (table == current) {
+                    return status(BinaryProtocol.OK);
+                }
+                if (current != null && current.uncommittedChanges(diff) != 0) {
+                    BinaryProtocol.Frame frame = new BinaryProtocol.Frame(BinaryProtocol.UNSAVED);
+                    frame.writeInt(current.uncommittedChanges(diff));
+                    return frame.toByteArray();
+                }
+                current = table;
+                currentTypes = columnTypes(table);
+                diff = new TransactionDiff();
+                return status(BinaryProtocol.OK);
+            }
+            default:
+                break;
+        }
+        if (current == null) {
+            return status(BinaryProtocol.NO_TABLE);
+        }
+        switch (opcode) {
+            case BinaryProtocol.GET:
+                return row(current.get(diff, RowCodec.readString(request)));
+            case BinaryProtocol.PUT: {
+                String key = RowCodec.readString(request);
+                Storeable value = RowCodec.read(request, currentTypes);
+                return row(current.put(diff, key, value));
+            }
+            case BinaryProtocol.REMOVE:
+                return row(current.remove(diff, RowCodec.readString(request)));
+            case BinaryProtocol.SIZE:
+                return number(current.size(diff));
+            case BinaryProtocol.COMMIT: {
+                int changes = current.commit(diff);
+                diff.clear();
+                return number(changes);
+            }
+            case BinaryProtocol.ROLLBACK: {
+                int changes = current.rollback(diff);
+                diff.clear();
+                return number(changes);
+            }
+            default:
+                return error(String.format("Unknown opcode %d", opcode));
+        }
+    }
+
+    private static List<Class<?>> columnTypes(MultiFileMap table) {
+        List<Class<?>> columnTypes = new ArrayList<>();
+        for (int i = 0; i < table.getColumnsCount(); i++) {
+            columnTypes.add(table.getColumnType(i));
+        }
+        return columnTypes;
+    }
+
+    private byte[] row(Storeable value) throws IOException {
+        if (value == null) {
+            return status(BinaryProtocol.NOT_FOUND);
+        }
+        BinaryProtocol.Frame frame = new BinaryProtocol.Frame(BinaryProtocol.OK);
+        RowCodec.write(frame, currentTypes, value);
+        return frame.toByteArray();
+    }
+
+    private static byte[] number(int value) throws IOException {
+        BinaryProtocol.Frame frame = new BinaryProtocol.Frame(BinaryProtocol.OK);
+        frame.writeInt(value);
+        return frame.toByteArray();
+    }
+
+    private static byte[] status(byte code) throws IOException {
+        return new BinaryProtocol.Frame(code).toByteArray();
+    }
+
+    private static byte[] error(String message) throws IOException {
+        BinaryProtocol.Frame frame = new BinaryProtocol.Frame(BinaryProtocol.ERROR);
+        RowCodec.writeString(frame, message);
+        return frame.toByteArray();
+    }
+}
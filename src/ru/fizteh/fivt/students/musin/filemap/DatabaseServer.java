@@ -2,24 +2,45 @@ package ru.fizteh.fivt.students.musin.filemap;
 
 import ru.fizteh.fivt.students.musin.shell.Shell;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.util.HashMap;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Telnet server on one selector thread. Connections are non-blocking; complete lines are handed
+ * to a small fixed pool of workers that run the shell commands, at most one worker per connection
+ * at a time, so the commands of a connection keep their order. Each connection has its own shell
+ * session with its own transaction, and an idle connection costs no thread. A connection whose
+ * first line is {@link BinaryProtocol#HELLO} speaks the framed binary protocol from then on.
+ */
 public class DatabaseServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+    private static final int INITIAL_INPUT_SIZE = 1024;
+    private static final int MAX_QUEUED_REQUESTS = 64;
+
     private FileMapProvider database;
-    private boolean started;
+    private volatile boolean started;
     private Thread serverThread;
     private ServerHandler server;
     private int port;
@@ -30,26 +51,22 @@ public class DatabaseServer {
     }
 
     void start(int port) throws InterruptedException, ServerStartException {
-        Object lock = new Object();
-        server = new ServerHandler(port, lock);
-        synchronized (lock) {
-            serverThread = new Thread(server);
-            serverThread.start();
-            while (server.state == ServerStartState.NOT_SET) {
-                lock.wait();
-            }
-        }
-        if (server.state != ServerStartState.STARTED) {
-            serverThread.join();
-            started = false;
-            throw new ServerStartException(server.message);
+        try {
+            server = new ServerHandler(port);
+        } catch (IllegalArgumentException e) {
+            throw new ServerStartException("Port number out of range");
+        } catch (IOException e) {
+            throw new ServerStartException("Unable to create socket server");
         }
+        serverThread = new Thread(server);
+        serverThread.start();
         started = true;
         this.port = port;
     }
 
     int stop() throws InterruptedException {
         server.stop = true;
+        server.selector.wakeup();
         serverThread.join();
         started = false;
         return port;
@@ -63,20 +80,11 @@ public class DatabaseServer {
         if (!started) {
             throw new IllegalStateException("Server not started");
         }
-        server.connectionLock.readLock().lock();
-        try {
-            String[] result = new String[server.connections.size()];
-            int index = 0;
-            for (Map.Entry<Integer, ClientHandler> entry : server.connections.entrySet()) {
-                result[index] = String.format("%s:%d",
-                        entry.getValue().socket.getInetAddress().getHostAddress(),
-                        entry.getValue().socket.getPort());
-                index++;
-            }
-            return result;
-        } finally {
-            server.connectionLock.readLock().unlock();
+        List<String> result = new ArrayList<>();
+        for (Connection connection : server.connections.keySet()) {
+            result.add(connection.address);
         }
+        return result.toArray(new String[result.size()]);
     }
 
     class ServerStartException extends Exception {
@@ -85,127 +93,425 @@ public class DatabaseServer {
         }
     }
 
-    enum ServerStartState {
-        NOT_SET,
-        STARTED,
-        FAILED
-    }
-
     class ServerHandler implements Runnable {
-        int port;
-        ServerStartState state;
-        Object lock;
-        String message;
-        boolean stop;
-        HashMap<Integer, ClientHandler> connections;
-        ReadWriteLock connectionLock;
-
-        public ServerHandler(int port, Object lock) {
-            this.port = port;
-            this.lock = lock;
-            connectionLock = new ReentrantReadWriteLock();
-            state = ServerStartState.NOT_SET;
-            message = "undefined error";
+        final Selector selector;
+        final ServerSocketChannel serverChannel;
+        final ExecutorService workers;
+        final Map<Connection, Boolean> connections = new ConcurrentHashMap<>();
+        final Queue<Connection> changed = new ConcurrentLinkedQueue<>();
+        volatile boolean stop;
+
+        ServerHandler(int port) throws IOException {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            try {
+                serverChannel.bind(new InetSocketAddress(port));
+                serverChannel.configureBlocking(false);
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException | IllegalArgumentException e) {
+                serverChannel.close();
+                selector.close();
+                throw e;
+            }
+            workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
             stop = false;
-            connections = new HashMap<>();
         }
 
         @Override
         public void run() {
-            try (ServerSocket serverSocket = new ServerSocket(port)) {
-                synchronized (lock) {
-                    state = ServerStartState.STARTED;
-                    lock.notify();
-                }
-                serverSocket.setSoTimeout(1000);
-                ExecutorService service = Executors.newCachedThreadPool();
+            ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            try {
                 while (!stop) {
-                    try {
-                        Socket socket = serverSocket.accept();
-                        ClientHandler socketHandler = new ClientHandler(socket);
-                        connectionLock.writeLock().lock();
-                        try {
-                            connections.put(socket.getLocalPort(), socketHandler);
-                        } finally {
-                            connectionLock.writeLock().unlock();
-                        }
-                        service.submit(socketHandler);
-                    } catch (SocketTimeoutException e) {
-                        //All is well check stop value
-                    }
-                }
-                try {
-                    service.shutdown();
-                    if (!service.awaitTermination(5, TimeUnit.SECONDS)) {
-                        service.shutdownNow();
+                    selector.select();
+                    Connection connection;
+                    while ((connection = changed.poll()) != null) {
+                        connection.updateInterest();
                     }
-                } catch (InterruptedException e) {
-                    service.shutdownNow();
-                }
-                connectionLock.writeLock().lock();
-                try {
-                    for (Map.Entry<Integer, ClientHandler> entry : connections.entrySet()) {
-                        if (!entry.getValue().socket.isClosed()) {
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
                             try {
-                                entry.getValue().socket.close();
+                                accept();
                             } catch (IOException e) {
-                                //Unable to close
+                                //Client went away before it was registered
+                            }
+                            continue;
+                        }
+                        connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
                             }
+                        } catch (IOException e) {
+                            connection.close();
                         }
                     }
-                    connections.clear();
-                } finally {
-                    connectionLock.writeLock().unlock();
                 }
             } catch (IOException e) {
-                synchronized (lock) {
-                    state = ServerStartState.FAILED;
-                    message = "Unable to create socket server";
-                    lock.notify();
+                //Selector failed, shut the server down
+            } finally {
+                workers.shutdown();
+                for (Connection connection : connections.keySet()) {
+                    connection.close();
                 }
-            } catch (IllegalArgumentException e) {
-                synchronized (lock) {
-                    state = ServerStartState.FAILED;
-                    message = "Port number out of range";
-                    lock.notify();
+                try {
+                    serverChannel.close();
+                    selector.close();
+                    if (!workers.awaitTermination(5, TimeUnit.SECONDS)) {
+                        workers.shutdownNow();
+                    }
+                } catch (IOException e) {
+                    //Unable to close
+                } catch (InterruptedException e) {
+                    workers.shutdownNow();
                 }
             }
         }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                Connection connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connections.put(connection, Boolean.TRUE);
+            }
+        }
     }
 
-    class ClientHandler implements Runnable {
-        Socket socket;
-        ServerHandler server;
+    /**
+     * State of one client: the bytes of an unfinished line or frame, the lines or frames waiting
+     * for a worker and the replies waiting for the socket. The socket is not read while replies
+     * are waiting, so a client that does not read its replies cannot make the server queue more.
+     * Nor is it read while MAX_QUEUED_REQUESTS lines or frames wait for the worker: the
+     * rest of the received bytes stay unparsed until the worker has taken them all, so a client
+     * that pipelines faster than its commands run is held back by TCP.
+     */
+    class Connection implements Runnable {
+        final ServerHandler server;
+        final SocketChannel channel;
+        final String address;
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final Shell shell;
+        final Queue<String> lines = new ArrayDeque<>();
+        final Queue<ByteBuffer> frames = new ArrayDeque<>();
+        final Queue<ByteBuffer> replies = new ConcurrentLinkedQueue<>();
+        SelectionKey key;
+        // Received bytes not yet taken as lines or frames, in write mode between reads
+        ByteBuffer input = ByteBuffer.allocate(INITIAL_INPUT_SIZE);
+        // Bytes at the start of input already known to hold no line end
+        int scanned;
+        boolean firstLine = true;
+        boolean binary;
+        BinarySession session;
+        boolean scheduled;
+        boolean endOfInput;
+        // Selector thread only: reading stopped until the worker takes the queued requests
+        boolean readPaused;
+        volatile boolean closing;
 
-        public ClientHandler(Socket socket) {
-            this.socket = socket;
+        Connection(ServerHandler server, SocketChannel channel) throws IOException {
+            this.server = server;
+            this.channel = channel;
+            InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+            address = String.format("%s:%d", remote.getAddress().getHostAddress(), remote.getPort());
+            shell = new Shell(null, new PrintStream(output, true, "UTF-8"));
+            shell.setGreeting("");
+            new ShellDatabaseHandler(database).integrate(shell);
         }
 
-        @Override
-        public void run() {
+        void read(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int count = channel.read(buffer);
+            if (count < 0) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                synchronized (this) {
+                    endOfInput = true;
+                }
+                schedule();
+                return;
+            }
+            buffer.flip();
+            append(buffer);
+            parseInput();
+        }
+
+        private void parseInput() throws IOException {
+            input.flip();
             try {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintStream writer = new PrintStream(socket.getOutputStream());
-                Shell shell = new Shell(null, writer);
-                shell.setGreeting("");
-                ShellDatabaseHandler databaseHandler = new ShellDatabaseHandler(database);
-                databaseHandler.integrate(shell);
-                shell.run(reader);
-            } catch (IOException e) {
-                //Child thread do nothing
+                if (binary) {
+                    readFrames();
+                } else {
+                    readLines();
+                }
             } finally {
-                int port = socket.getLocalPort();
+                input.compact();
+                if (input.position() == 0 && input.capacity() > READ_BUFFER_SIZE) {
+                    input = ByteBuffer.allocate(INITIAL_INPUT_SIZE);
+                }
+            }
+        }
+
+        private synchronized boolean queueFull() {
+            return lines.size() + frames.size() >= MAX_QUEUED_REQUESTS;
+        }
+
+        private synchronized boolean queueEmpty() {
+            return lines.isEmpty() && frames.isEmpty();
+        }
+
+        private void pauseReading() {
+            readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        private void append(ByteBuffer data) {
+            if (input.remaining() < data.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(input.capacity() * 2,
+                        input.position() + data.remaining()));
+                input.flip();
+                larger.put(input);
+                input = larger;
+            }
+            input.put(data);
+        }
+
+        private void readLines() throws IOException {
+            boolean newLines = false;
+            while (true) {
+                if (queueFull()) {
+                    pauseReading();
+                    break;
+                }
+                int end = input.position() + scanned;
+                while (end < input.limit() && input.get(end) != '\n') {
+                    ++end;
+                }
+                if (end - input.position() > MAX_LINE_LENGTH) {
+                    throw new IOException("Line too long");
+                }
+                if (end == input.limit()) {
+                    scanned = input.remaining();
+                    break;
+                }
+                scanned = 0;
+                byte[] line = new byte[end - input.position()];
+                input.get(line);
+                input.get();
+                int length = line.length;
+                if (length > 0 && line[length - 1] == '\r') {
+                    --length;
+                }
+                String text = new String(line, 0, length, StandardCharsets.UTF_8);
+                if (firstLine) {
+                    firstLine = false;
+                    if (text.equals(BinaryProtocol.HELLO)) {
+                        switchToBinary();
+                        readFrames();
+                        return;
+                    }
+                }
+                synchronized (this) {
+                    lines.add(text);
+                }
+                newLines = true;
+            }
+            if (newLines) {
+                schedule();
+            }
+        }
+
+        private void switchToBinary() {
+            synchronized (this) {
+                binary = true;
+                session = new BinarySession(database);
+            }
+            replies.add(ByteBuffer.wrap((BinaryProtocol.ACCEPTED + "\n").getBytes(StandardCharsets.UTF_8)));
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        private void readFrames() throws IOException {
+            boolean newFrames = false;
+            while (input.remaining() >= 4) {
+                if (queueFull()) {
+                    pauseReading();
+                    break;
+                }
+                int length = input.getInt(input.position());
+                if (length <= 0 || length > BinaryProtocol.MAX_FRAME_SIZE) {
+                    throw new IOException("Wrong frame length");
+                }
+                if (input.remaining() < 4 + length) {
+                    break;
+                }
+                input.position(input.position() + 4);
+                byte[] frame = new byte[length];
+                input.get(frame);
+                synchronized (this) {
+                    frames.add(ByteBuffer.wrap(frame));
+                }
+                newFrames = true;
+            }
+            if (newFrames) {
+                schedule();
+            }
+        }
+
+        private void schedule() {
+            synchronized (this) {
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            try {
+                server.workers.execute(this);
+            } catch (RejectedExecutionException e) {
+                //Server is stopping
+            }
+        }
+
+        /**
+         * Runs the queued lines or frames on a worker thread.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                Object request;
+                synchronized (this) {
+                    request = binary ? frames.poll() : lines.poll();
+                }
+                if (request == null) {
+                    boolean finished;
+                    synchronized (this) {
+                        finished = endOfInput;
+                    }
+                    if (finished) {
+                        finish();
+                    }
+                    sendOutput(finished);
+                    synchronized (this) {
+                        if (finished || (lines.isEmpty() && frames.isEmpty())) {
+                            scheduled = finished;
+                            return;
+                        }
+                    }
+                    continue;
+                }
+                if (request instanceof ByteBuffer) {
+                    try {
+                        replies.add(ByteBuffer.wrap(session.handle((ByteBuffer) request)));
+                    } catch (IOException e) {
+                        synchronized (this) {
+                            endOfInput = true;
+                        }
+                    }
+                    continue;
+                }
+                if (shell.isStopped()) {
+                    continue;
+                }
                 try {
-                    socket.close();
-                } catch (IOException e) {
-                    //No action required
+                    shell.execute((String) request);
+                } catch (RuntimeException e) {
+                    shell.writer.println(e.getMessage());
+                }
+                if (shell.isStopped()) {
+                    synchronized (this) {
+                        endOfInput = true;
+                    }
                 }
-                server.connectionLock.writeLock().lock();
+                if (output.size() >= READ_BUFFER_SIZE) {
+                    sendOutput(false);
+                }
+            }
+        }
+
+        private void finish() {
+            if (session != null) {
+                session.close();
+            } else if (!shell.isStopped()) {
+                shell.stop();
+            }
+        }
+
+        private void sendOutput(boolean close) {
+            if (output.size() > 0) {
+                replies.add(ByteBuffer.wrap(output.toByteArray()));
+                output.reset();
+            }
+            if (close) {
+                closing = true;
+            }
+            server.changed.add(this);
+            server.selector.wakeup();
+        }
+
+        /**
+         * Called on the selector thread after a worker has produced replies.
+         */
+        void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            if (readPaused && queueEmpty()) {
+                readPaused = false;
                 try {
-                    server.connections.remove(port);
-                } finally {
-                    server.connectionLock.writeLock().unlock();
+                    parseInput();
+                } catch (IOException e) {
+                    close();
+                    return;
+                }
+                if (!readPaused && replies.isEmpty() && !closing && !isEndOfInput()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            }
+            if (!replies.isEmpty()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (closing) {
+                close();
+            }
+        }
+
+        private synchronized boolean isEndOfInput() {
+            return endOfInput;
+        }
+
+        void write() throws IOException {
+            ByteBuffer reply;
+            while ((reply = replies.peek()) != null) {
+                channel.write(reply);
+                if (reply.hasRemaining()) {
+                    return;
                 }
+                replies.poll();
+            }
+            if (closing) {
+                close();
+                return;
+            }
+            key.interestOps(isEndOfInput() || readPaused ? 0 : SelectionKey.OP_READ);
+        }
+
+        void close() {
+            server.connections.remove(this);
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (ClosedChannelException e) {
+                //Already closed
+            } catch (IOException e) {
+                //Unable to close
             }
         }
     }
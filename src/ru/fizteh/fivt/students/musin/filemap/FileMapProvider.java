@@ -14,12 +14,17 @@ import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class FileMapProvider implements TableProvider, AutoCloseable {
     private File location;
     private HashMap<String, MultiFileMap> used;
     private TransactionPool transactionPool;
     private volatile boolean valid;
+    private ExecutorService asyncExecutor;
 
     public FileMapProvider(File location) {
         if (location == null) {
@@ -361,8 +366,33 @@ public class FileMapProvider implements TableProvider, AutoCloseable {
         }
     }
 
+    /**
+     * Runs an asynchronous table call. All of them share one daemon thread, so the calls keep
+     * their order and the disk is written by one thread at a time. Reads share the thread too, so a
+     * read waits for the commits queued before it.
+     */
+    synchronized <T> StorageFuture<T> submit(Callable<T> call) {
+        checkState();
+        if (asyncExecutor == null) {
+            asyncExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "filemap-io");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        StorageFuture<T> future = new StorageFuture<>(call);
+        asyncExecutor.execute(future);
+        return future;
+    }
+
     public synchronized void close() {
         valid = false;
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+        }
         for (MultiFileMap entry : used.values()) {
             entry.close();
         }
@@ -8,13 +8,23 @@ import ru.fizteh.fivt.storage.structured.ColumnFormatException;
 import ru.fizteh.fivt.storage.structured.Storeable;
 
 import javax.xml.stream.XMLStreamException;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.StringWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 
 public class FileMapUnitTest {
@@ -345,6 +355,36 @@ public class FileMapUnitTest {
         factory.close();
     }
 
+    @Test
+    public void sizeIsKeptAcrossConcurrentCommitsAndPersisted() throws IOException {
+        File testFolder = new File(folder.getRoot(), "test");
+        testFolder.mkdir();
+        FileMapProviderFactory factory = new FileMapProviderFactory();
+        FileMapProvider provider = factory.create(testFolder.getCanonicalPath());
+        MultiFileMap table = provider.createTable("new", getColumnTypeList());
+        TransactionDiff first = new TransactionDiff();
+        TransactionDiff second = new TransactionDiff();
+        table.put(first, "a", getSampleStoreable());
+        table.put(first, "b", getSampleStoreable());
+        table.put(second, "a", getSampleStoreable());
+        table.remove(second, "a");
+        Assert.assertEquals(2, table.size(first));
+        Assert.assertEquals(0, table.size(second));
+        table.put(second, "a", getSampleStoreable());
+        Assert.assertEquals(1, table.commit(second));
+        Assert.assertEquals(2, table.size(first));
+        table.remove(first, "a");
+        Assert.assertEquals(1, table.size(first));
+        Assert.assertEquals(2, table.commit(first));
+        Assert.assertEquals(1, table.size(new TransactionDiff()));
+        factory.close();
+
+        factory = new FileMapProviderFactory();
+        provider = factory.create(testFolder.getCanonicalPath());
+        Assert.assertEquals(1, provider.getTable("new").size());
+        factory.close();
+    }
+
     @Test
     public void removeDeletesKeyFromTable() throws IOException {
         File testFolder = new File(folder.getRoot(), "test");
@@ -1113,6 +1153,354 @@ public class FileMapUnitTest {
         factory.close();
         provider.createFor(table);
     }
+
+    @Test
+    public void remoteBatchOperationsArePipelined() throws Exception {
+        File testFolder = new File(folder.getRoot(), "test");
+        testFolder.mkdir();
+        FileMapProviderFactory factory = new FileMapProviderFactory();
+        DatabaseServer server = new DatabaseServer(factory.create(testFolder.getCanonicalPath()));
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server.start(port);
+        try (RemoteFileMapProviderFactory remoteFactory = new RemoteFileMapProviderFactory()) {
+            RemoteFileMapProvider provider = remoteFactory.connect("localhost", port);
+            RemoteFileMap table = provider.createTable("remote", getColumnTypeList());
+            Map<String, Storeable> rows = new LinkedHashMap<>();
+            for (int i = 0; i < 200; i++) {
+                rows.put("key" + i, provider.createFor(table, Arrays.asList(i, "value" + i, (byte) 1)));
+            }
+            Map<String, Storeable> old = table.putAll(rows);
+            Assert.assertEquals(200, old.size());
+            Assert.assertNull(old.get("key17"));
+            Map<String, Storeable> found = table.getAll(Arrays.asList("key5", "missing", "key199"));
+            Assert.assertEquals(5, found.get("key5").getColumnAt(0));
+            Assert.assertNull(found.get("missing"));
+            Assert.assertEquals("value199", found.get("key199").getStringAt(1));
+            Assert.assertEquals(7, table.remove("key7").getColumnAt(0));
+            Assert.assertNull(table.remove("key7"));
+            Assert.assertEquals(199, table.size());
+            Assert.assertEquals(199, table.commit());
+        } finally {
+            server.stop();
+        }
+        factory.close();
+    }
+
+    @Test
+    public void binaryProtocolIsNegotiatedAndTextStillWorks() throws Exception {
+        File testFolder = new File(folder.getRoot(), "test");
+        testFolder.mkdir();
+        FileMapProviderFactory factory = new FileMapProviderFactory();
+        DatabaseServer server = new DatabaseServer(factory.create(testFolder.getCanonicalPath()));
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server.start(port);
+        try (RemoteFileMapProviderFactory remoteFactory = new RemoteFileMapProviderFactory();
+             Socket text = new Socket("localhost", port)) {
+            RemoteFileMapProvider provider = remoteFactory.connect("localhost", port);
+            Assert.assertTrue(provider.isBinary());
+            RemoteFileMap table = provider.createTable("binary", getColumnTypeList());
+            Assert.assertNull(provider.createTable("binary", getColumnTypeList()));
+            Assert.assertNull(table.put("key", provider.createFor(table, Arrays.asList(1, null, (byte) 2))));
+            Assert.assertNull(table.get("key").getColumnAt(1));
+            Assert.assertEquals(1, table.commit());
+            table.put("other", provider.createFor(table, Arrays.asList(2, "two", null)));
+            RemoteFileMap second = provider.createTable("second", getColumnTypeList());
+            try {
+                second.size();
+                Assert.fail("Switching with unsaved changes must fail");
+            } catch (RemoteFileMapProvider.UnsavedChangesException e) {
+                Assert.assertEquals("1 unsaved changes", e.getMessage());
+            }
+            Assert.assertEquals(1, table.rollback());
+            Assert.assertEquals(0, second.size());
+            Assert.assertEquals(getColumnTypeList(), columnTypes(provider.getTable("binary")));
+            Assert.assertNull(provider.getTable("missing"));
+            RemoteFileMapProvider other = remoteFactory.connect("localhost", port);
+            Assert.assertNull(other.createTable("binary", Arrays.<Class<?>>asList(String.class)));
+            Assert.assertEquals(getColumnTypeList(), columnTypes(other.getTable("binary")));
+
+            text.getOutputStream().write("use binary\nget key\n".getBytes(StandardCharsets.UTF_8));
+            BufferedReader reader = new BufferedReader(new InputStreamReader(text.getInputStream(),
+                    StandardCharsets.UTF_8));
+            Assert.assertEquals("using binary", reader.readLine());
+            Assert.assertEquals("found", reader.readLine());
+            Assert.assertEquals("[1,null,2]", reader.readLine());
+        } finally {
+            server.stop();
+        }
+        factory.close();
+    }
+
+    private List<Class<?>> columnTypes(RemoteFileMap table) {
+        List<Class<?>> result = new ArrayList<>();
+        for (int i = 0; i < table.getColumnsCount(); i++) {
+            result.add(table.getColumnType(i));
+        }
+        return result;
+    }
+
+    @Test
+    public void pooledProviderSharesConnectionsAndReconnects() throws Exception {
+        File testFolder = new File(folder.getRoot(), "test");
+        testFolder.mkdir();
+        FileMapProviderFactory factory = new FileMapProviderFactory();
+        DatabaseServer server = new DatabaseServer(factory.create(testFolder.getCanonicalPath()));
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server.start(port);
+        try (RemoteFileMapProviderFactory remoteFactory = new RemoteFileMapProviderFactory()) {
+            final PooledRemoteFileMapProvider pool = remoteFactory.connectPooled("localhost", port, 3);
+            final PooledRemoteFileMap table = pool.createTable("pooled", getColumnTypeList());
+            ExecutorService clients = Executors.newFixedThreadPool(8);
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                final int client = i;
+                results.add(clients.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int committed = 0;
+                        for (int j = 0; j < 20; j++) {
+                            String key = String.format("key%d_%d", client, j);
+                            table.put(key, pool.createFor(table, Arrays.asList(j, key, (byte) client)));
+                            Assert.assertEquals(key, table.get(key).getStringAt(1));
+                            committed += table.commit();
+                        }
+                        return committed;
+                    }
+                }));
+            }
+            for (Future<Integer> result : results) {
+                Assert.assertEquals(20, (int) result.get());
+            }
+            clients.shutdown();
+            Assert.assertTrue(pool.openConnections() <= 3);
+            Assert.assertEquals(160, table.size());
+
+            server.stop();
+            server.start(port);
+            Assert.assertEquals(160, table.size());
+            table.put("lost", pool.createFor(table, Arrays.asList(1, "lost", (byte) 1)));
+            server.stop();
+            server.start(port);
+            try {
+                table.get("lost");
+                Assert.fail("Changes of a dropped connection must not be kept silently");
+            } catch (IllegalStateException e) {
+                Assert.assertNull(table.get("lost"));
+            }
+        } finally {
+            server.stop();
+        }
+        factory.close();
+    }
+
+    @Test
+    public void pooledProviderReclaimsConnectionsOfDeadThreads() throws Exception {
+        File testFolder = new File(folder.getRoot(), "test");
+        testFolder.mkdir();
+        FileMapProviderFactory factory = new FileMapProviderFactory();
+        DatabaseServer server = new DatabaseServer(factory.create(testFolder.getCanonicalPath()));
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server.start(port);
+        try (RemoteFileMapProviderFactory remoteFactory = new RemoteFileMapProviderFactory()) {
+            final PooledRemoteFileMapProvider pool = remoteFactory.connectPooled("localhost", port, 1);
+            final PooledRemoteFileMap table = pool.createTable("pooled", getColumnTypeList());
+            Thread abandoned = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    table.put("abandoned", pool.createFor(table, Arrays.asList(1, "abandoned", (byte) 1)));
+                }
+            });
+            abandoned.start();
+            abandoned.join();
+            Assert.assertNull(table.get("abandoned"));
+            Assert.assertEquals(0, table.size());
+        } finally {
+            server.stop();
+        }
+        factory.close();
+    }
+
+    @Test
+    public void asyncCallsKeepOrderLocallyAndRemotely() throws Exception {
+        File testFolder = new File(folder.getRoot(), "test");
+        testFolder.mkdir();
+        FileMapProviderFactory factory = new FileMapProviderFactory();
+        FileMapProvider provider = factory.create(testFolder.getCanonicalPath());
+        MultiFileMap local = provider.createTable("async", getColumnTypeList());
+        List<StorageFuture<Storeable>> puts = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            puts.add(local.putAsync("key" + i, provider.createFor(local, Arrays.asList(i, "value", (byte) 0))));
+        }
+        StorageFuture<Storeable> found = local.getAsync("key49");
+        StorageFuture<Integer> committed = local.commitAsync();
+        final CountDownLatch called = new CountDownLatch(1);
+        committed.addCallback(new StorageFuture.Callback<Integer>() {
+            @Override
+            public void onSuccess(Integer result) {
+                called.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+            }
+        });
+        Assert.assertNull(puts.get(0).get());
+        Assert.assertEquals(49, found.get().getColumnAt(0));
+        Assert.assertEquals(50, (int) committed.get());
+        Assert.assertTrue(called.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, local.uncommittedChanges());
+        Assert.assertEquals(50, local.size());
+
+        DatabaseServer server = new DatabaseServer(provider);
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server.start(port);
+        try (RemoteFileMapProviderFactory remoteFactory = new RemoteFileMapProviderFactory()) {
+            RemoteFileMapProvider remoteProvider = remoteFactory.connect("localhost", port);
+            RemoteFileMap remote = remoteProvider.getTable("async");
+            StorageFuture<Storeable> old = remote.putAsync("key0",
+                    remoteProvider.createFor(remote, Arrays.asList(-1, null, (byte) 1)));
+            StorageFuture<Storeable> fresh = remote.getAsync("key0");
+            StorageFuture<Integer> remoteCommit = remote.commitAsync();
+            Assert.assertEquals(0, old.get().getColumnAt(0));
+            Assert.assertEquals(-1, fresh.get().getColumnAt(0));
+            Assert.assertEquals(1, (int) remoteCommit.get());
+        } finally {
+            server.stop();
+        }
+        Assert.assertEquals(-1, local.get("key0").getColumnAt(0));
+        factory.close();
+    }
+
+    @Test
+    public void serverKeepsManyConnectionsWithoutThreads() throws Exception {
+        File testFolder = new File(folder.getRoot(), "test");
+        testFolder.mkdir();
+        FileMapProviderFactory factory = new FileMapProviderFactory();
+        DatabaseServer server = new DatabaseServer(factory.create(testFolder.getCanonicalPath()));
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server.start(port);
+        int threadsBefore = Thread.activeCount();
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < 100; i++) {
+                sockets.add(new Socket("localhost", port));
+            }
+            for (Socket socket : sockets) {
+                socket.getOutputStream().write("describe missing\n".getBytes(StandardCharsets.UTF_8));
+            }
+            for (Socket socket : sockets) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                        StandardCharsets.UTF_8));
+                Assert.assertEquals("missing not exists", reader.readLine());
+            }
+            Assert.assertEquals(100, server.listConnections().length);
+            Assert.assertTrue(Thread.activeCount() - threadsBefore <= Runtime.getRuntime().availableProcessors());
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            server.stop();
+        }
+        factory.close();
+    }
+
+    @Test
+    public void serverJoinsSplitLinesAndDropsOverlongOnes() throws Exception {
+        File testFolder = new File(folder.getRoot(), "test");
+        testFolder.mkdir();
+        FileMapProviderFactory factory = new FileMapProviderFactory();
+        DatabaseServer server = new DatabaseServer(factory.create(testFolder.getCanonicalPath()));
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server.start(port);
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream output = socket.getOutputStream();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            for (String part : new String[] {"desc", "ribe mis", "sing\r", "\n"}) {
+                output.write(part.getBytes(StandardCharsets.UTF_8));
+                output.flush();
+                Thread.sleep(10);
+            }
+            Assert.assertEquals("missing not exists", reader.readLine());
+
+            byte[] chunk = new byte[64 * 1024];
+            Arrays.fill(chunk, (byte) 'a');
+            try {
+                for (int i = 0; i < 32; i++) {
+                    output.write(chunk);
+                }
+                Assert.assertNull(reader.readLine());
+            } catch (SocketException e) {
+                // The server has reset the connection
+            }
+        } finally {
+            server.stop();
+        }
+        factory.close();
+    }
+
+    @Test
+    public void serverAnswersEveryPipelinedLine() throws Exception {
+        File testFolder = new File(folder.getRoot(), "test");
+        testFolder.mkdir();
+        FileMapProviderFactory factory = new FileMapProviderFactory();
+        DatabaseServer server = new DatabaseServer(factory.create(testFolder.getCanonicalPath()));
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server.start(port);
+        final int count = 20000;
+        try (Socket socket = new Socket("localhost", port)) {
+            final OutputStream output = socket.getOutputStream();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    StringBuilder lines = new StringBuilder();
+                    for (int i = 0; i < count; i++) {
+                        lines.append("describe missing").append(i).append('\n');
+                    }
+                    try {
+                        output.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+                        output.flush();
+                    } catch (IOException e) {
+                        // The reader below fails the test
+                    }
+                }
+            });
+            writer.start();
+            for (int i = 0; i < count; i++) {
+                Assert.assertEquals("missing" + i + " not exists", reader.readLine());
+            }
+            writer.join();
+        } finally {
+            server.stop();
+        }
+        factory.close();
+    }
 }
 
 interface InterfaceToProxy {
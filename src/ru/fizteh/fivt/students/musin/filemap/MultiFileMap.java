@@ -2,14 +2,14 @@ package ru.fizteh.fivt.students.musin.filemap;
 
 import ru.fizteh.fivt.storage.structured.ColumnFormatException;
 import ru.fizteh.fivt.storage.structured.Storeable;
-import ru.fizteh.fivt.storage.structured.Table;
 
 import java.io.*;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class MultiFileMap implements Table, AutoCloseable {
+public class MultiFileMap implements AsyncTable, AutoCloseable {
     private File location;
     private FileMap[][] map;
     private ThreadLocal<TransactionHandler> transaction;
@@ -19,6 +19,8 @@ public class MultiFileMap implements Table, AutoCloseable {
     private final int arraySize;
     private ReentrantReadWriteLock lock;
     private volatile boolean valid;
+    private int committedSize;
+    private long version;
 
     public MultiFileMap(File location, int arraySize, FileMapProvider tableProvider, TransactionPool pool) {
         if (location == null) {
@@ -32,6 +34,8 @@ public class MultiFileMap implements Table, AutoCloseable {
         this.location = location;
         this.arraySize = arraySize;
         valid = true;
+        committedSize = 0;
+        version = 0;
         lock = new ReentrantReadWriteLock();
         columnTypes = new ArrayList<>();
         map = new FileMap[arraySize][arraySize];
@@ -116,32 +120,59 @@ public class MultiFileMap implements Table, AutoCloseable {
         return location;
     }
 
-    public int size(HashMap<String, Storeable> diff) {
+    private boolean committedContains(String key) {
+        int hashCode = Math.abs(key.hashCode());
+        int dir = (hashCode % 16 + 16) % 16;
+        int file = ((hashCode / 16 % 16) + 16) % 16;
+        return map[dir][file].get(key) != null;
+    }
+
+    /**
+     * Size change that the diff entry for the key would make on commit.
+     * Method is not synchronized, the lock must be held by the caller
+     */
+    private int sizeChange(TransactionDiff diff, String key) {
+        if (!diff.containsKey(key)) {
+            return 0;
+        }
+        boolean committed = committedContains(key);
+        if (diff.get(key) == null) {
+            return committed ? -1 : 0;
+        }
+        return committed ? 0 : 1;
+    }
+
+    /**
+     * Recounts the size delta of the diff if a commit happened since it was last counted.
+     * Method is not synchronized, the lock must be held by the caller
+     */
+    private void refreshSizeDelta(TransactionDiff diff) {
+        if (diff.getVersion() == version) {
+            return;
+        }
+        int delta = 0;
+        for (String key : diff.keySet()) {
+            delta += sizeChange(diff, key);
+        }
+        diff.setSizeDelta(delta, version);
+    }
+
+    /*
+     * A diff may be used by its own thread and by the asynchronous calls it has queued at the
+     * same time, so every method that reads or changes one holds its monitor, taken before the
+     * table lock.
+     */
+    public int size(TransactionDiff diff) {
         checkState();
-        int size = 0;
-        lock.readLock().lock();
-        try {
-            for (int i = 0; i < arraySize; i++) {
-                for (int j = 0; j < arraySize; j++) {
-                    size += map[i][j].size();
-                }
-            }
-            for (Map.Entry<String, Storeable> entry : diff.entrySet()) {
-                int hashCode = Math.abs(entry.getKey().hashCode());
-                int dir = (hashCode % 16 + 16) % 16;
-                int file = ((hashCode / 16 % 16) + 16) % 16;
-                if (entry.getValue() == null) {
-                    if (map[dir][file].get(entry.getKey()) != null) {
-                        size--;
-                    }
-                } else if (map[dir][file].get(entry.getKey()) == null) {
-                    size++;
-                }
+        synchronized (diff) {
+            lock.readLock().lock();
+            try {
+                refreshSizeDelta(diff);
+                return committedSize + diff.getSizeDelta();
+            } finally {
+                lock.readLock().unlock();
             }
-        } finally {
-            lock.readLock().unlock();
         }
-        return size;
     }
 
     public int size() {
@@ -263,6 +294,19 @@ public class MultiFileMap implements Table, AutoCloseable {
         if (!validateData()) {
             throw new RuntimeException("Wrong data format: key distribution among files is incorrect");
         }
+        // Every file is loaded anyway, so the count costs nothing next to it
+        committedSize = countSize();
+        version++;
+    }
+
+    private int countSize() {
+        int size = 0;
+        for (int i = 0; i < arraySize; i++) {
+            for (int j = 0; j < arraySize; j++) {
+                size += map[i][j].size();
+            }
+        }
+        return size;
     }
 
     /**
@@ -374,7 +418,7 @@ public class MultiFileMap implements Table, AutoCloseable {
         return true;
     }
 
-    public Storeable put(HashMap<String, Storeable> diff, String key, Storeable value)
+    public Storeable put(TransactionDiff diff, String key, Storeable value)
             throws ColumnFormatException {
         checkState();
         if (diff == null) {
@@ -401,16 +445,22 @@ public class MultiFileMap implements Table, AutoCloseable {
         int hashCode = Math.abs(key.hashCode());
         int dir = (hashCode % 16 + 16) % 16;
         int file = ((hashCode / 16 % 16) + 16) % 16;
-        if (diff.containsKey(key)) {
-            return diff.put(key, value);
-        }
         Storeable result = null;
-        lock.readLock().lock();
-        try {
-            result = map[dir][file].get(key);
-            diff.put(key, value);
-        } finally {
-            lock.readLock().unlock();
+        synchronized (diff) {
+            lock.readLock().lock();
+            try {
+                refreshSizeDelta(diff);
+                int change = -sizeChange(diff, key);
+                if (diff.containsKey(key)) {
+                    result = diff.put(key, value);
+                } else {
+                    result = map[dir][file].get(key);
+                    diff.put(key, value);
+                }
+                diff.addSizeDelta(change + sizeChange(diff, key));
+            } finally {
+                lock.readLock().unlock();
+            }
         }
         return result;
     }
@@ -419,7 +469,7 @@ public class MultiFileMap implements Table, AutoCloseable {
         return put(transaction.get().getDiff(), key, value);
     }
 
-    public Storeable get(HashMap<String, Storeable> diff, String key) {
+    public Storeable get(TransactionDiff diff, String key) {
         checkState();
         if (diff == null) {
             throw new IllegalArgumentException("Null diff");
@@ -433,24 +483,26 @@ public class MultiFileMap implements Table, AutoCloseable {
         int hashCode = Math.abs(key.hashCode());
         int dir = (hashCode % 16 + 16) % 16;
         int file = ((hashCode / 16 % 16) + 16) % 16;
-        if (diff.containsKey(key)) {
-            return diff.get(key);
-        }
-        Storeable result = null;
-        lock.readLock().lock();
-        try {
-            result = map[dir][file].get(key);
-        } finally {
-            lock.readLock().unlock();
+        synchronized (diff) {
+            if (diff.containsKey(key)) {
+                return diff.get(key);
+            }
+            Storeable result = null;
+            lock.readLock().lock();
+            try {
+                result = map[dir][file].get(key);
+            } finally {
+                lock.readLock().unlock();
+            }
+            return result;
         }
-        return result;
     }
 
     public Storeable get(String key) {
         return get(transaction.get().getDiff(), key);
     }
 
-    public Storeable remove(HashMap<String, Storeable> diff, String key) {
+    public Storeable remove(TransactionDiff diff, String key) {
         checkState();
         if (diff == null) {
             throw new IllegalArgumentException("Null diff");
@@ -464,18 +516,24 @@ public class MultiFileMap implements Table, AutoCloseable {
         int hashCode = Math.abs(key.hashCode());
         int dir = (hashCode % 16 + 16) % 16;
         int file = ((hashCode / 16 % 16) + 16) % 16;
-        if (diff.containsKey(key)) {
-            return diff.put(key, null);
-        }
         Storeable result = null;
-        lock.readLock().lock();
-        try {
-            result = map[dir][file].get(key);
-            if (result != null) {
-                diff.put(key, null);
+        synchronized (diff) {
+            lock.readLock().lock();
+            try {
+                refreshSizeDelta(diff);
+                int change = -sizeChange(diff, key);
+                if (diff.containsKey(key)) {
+                    result = diff.put(key, null);
+                } else {
+                    result = map[dir][file].get(key);
+                    if (result != null) {
+                        diff.put(key, null);
+                    }
+                }
+                diff.addSizeDelta(change + sizeChange(diff, key));
+            } finally {
+                lock.readLock().unlock();
             }
-        } finally {
-            lock.readLock().unlock();
         }
         return result;
     }
@@ -484,28 +542,30 @@ public class MultiFileMap implements Table, AutoCloseable {
         return remove(transaction.get().getDiff(), key);
     }
 
-    public int uncommittedChanges(HashMap<String, Storeable> diff) {
+    public int uncommittedChanges(TransactionDiff diff) {
         checkState();
         if (diff == null) {
             throw new IllegalArgumentException("Null diff");
         }
         int result = 0;
-        lock.readLock().lock();
-        try {
-            for (Map.Entry<String, Storeable> entry : diff.entrySet()) {
-                int hashCode = Math.abs(entry.getKey().hashCode());
-                int dir = (hashCode % 16 + 16) % 16;
-                int file = ((hashCode / 16 % 16) + 16) % 16;
-                if (entry.getValue() == null) {
-                    if (map[dir][file].get(entry.getKey()) != null) {
+        synchronized (diff) {
+            lock.readLock().lock();
+            try {
+                for (Map.Entry<String, Storeable> entry : diff.entrySet()) {
+                    int hashCode = Math.abs(entry.getKey().hashCode());
+                    int dir = (hashCode % 16 + 16) % 16;
+                    int file = ((hashCode / 16 % 16) + 16) % 16;
+                    if (entry.getValue() == null) {
+                        if (map[dir][file].get(entry.getKey()) != null) {
+                            result++;
+                        }
+                    } else if (!storeableEqual(entry.getValue(), map[dir][file].get(entry.getKey()))) {
                         result++;
                     }
-                } else if (!storeableEqual(entry.getValue(), map[dir][file].get(entry.getKey()))) {
-                    result++;
                 }
+            } finally {
+                lock.readLock().unlock();
             }
-        } finally {
-            lock.readLock().unlock();
         }
         return result;
     }
@@ -514,28 +574,33 @@ public class MultiFileMap implements Table, AutoCloseable {
         return uncommittedChanges(transaction.get().getDiff());
     }
 
-    public int commit(HashMap<String, Storeable> diff) throws IOException {
+    public int commit(TransactionDiff diff) throws IOException {
         checkState();
         if (diff == null) {
             throw new IllegalArgumentException("Null diff");
         }
         int changes = 0;
-        lock.writeLock().lock();
-        try {
-            changes = uncommittedChanges(diff);
-            for (Map.Entry<String, Storeable> entry : diff.entrySet()) {
-                int hashCode = Math.abs(entry.getKey().hashCode());
-                int dir = (hashCode % 16 + 16) % 16;
-                int file = ((hashCode / 16 % 16) + 16) % 16;
-                if (entry.getValue() == null) {
-                    map[dir][file].remove(entry.getKey());
-                } else {
-                    map[dir][file].put(entry.getKey(), entry.getValue());
+        synchronized (diff) {
+            lock.writeLock().lock();
+            try {
+                changes = uncommittedChanges(diff);
+                refreshSizeDelta(diff);
+                committedSize += diff.getSizeDelta();
+                version++;
+                for (Map.Entry<String, Storeable> entry : diff.entrySet()) {
+                    int hashCode = Math.abs(entry.getKey().hashCode());
+                    int dir = (hashCode % 16 + 16) % 16;
+                    int file = ((hashCode / 16 % 16) + 16) % 16;
+                    if (entry.getValue() == null) {
+                        map[dir][file].remove(entry.getKey());
+                    } else {
+                        map[dir][file].put(entry.getKey(), entry.getValue());
+                    }
                 }
+                writeToDisk();
+            } finally {
+                lock.writeLock().unlock();
             }
-            writeToDisk();
-        } finally {
-            lock.writeLock().unlock();
         }
         return changes;
     }
@@ -546,7 +611,41 @@ public class MultiFileMap implements Table, AutoCloseable {
         return result;
     }
 
-    public int rollback(HashMap<String, Storeable> diff) {
+    public StorageFuture<Storeable> getAsync(final String key) {
+        final TransactionDiff diff = transaction.get().getDiff();
+        return tableProvider.submit(new Callable<Storeable>() {
+            @Override
+            public Storeable call() {
+                return get(diff, key);
+            }
+        });
+    }
+
+    public StorageFuture<Storeable> putAsync(final String key, final Storeable value) {
+        final TransactionDiff diff = transaction.get().getDiff();
+        return tableProvider.submit(new Callable<Storeable>() {
+            @Override
+            public Storeable call() {
+                return put(diff, key, value);
+            }
+        });
+    }
+
+    /**
+     * Hands the current changes to the I/O thread and starts a new transaction at once.
+     */
+    public StorageFuture<Integer> commitAsync() {
+        final TransactionDiff diff = transaction.get().getDiff();
+        transaction.get().clear();
+        return tableProvider.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                return commit(diff);
+            }
+        });
+    }
+
+    public int rollback(TransactionDiff diff) {
         checkState();
         if (diff == null) {
             throw new IllegalArgumentException("Null diff");
@@ -0,0 +1,131 @@
+package ru.fizteh.fivt.students.musin.filemap;
+
+import ru.fizteh.fivt.storage.structured.ColumnFormatException;
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.storage.structured.Table;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Table of a {@link PooledRemoteFileMapProvider}. Every call runs on the connection of the calling
+ * thread: changes bind the connection to the thread, commit and rollback give it back.
+ */
+public class PooledRemoteFileMap implements Table {
+    private final PooledRemoteFileMapProvider pool;
+    private final String name;
+    private final List<Class<?>> columnTypes;
+
+    PooledRemoteFileMap(PooledRemoteFileMapProvider pool, String name, List<Class<?>> columnTypes) {
+        this.pool = pool;
+        this.name = name;
+        this.columnTypes = new ArrayList<>(columnTypes);
+    }
+
+    private RemoteFileMap table(RemoteFileMapProvider connection) {
+        RemoteFileMap table = connection.getTable(name);
+        if (table == null) {
+            throw new IllegalStateException("Table no longer exists");
+        }
+        return table;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Storeable get(final String key) {
+        return pool.executeUnchecked(PooledRemoteFileMapProvider.Affinity.KEEP,
+                new PooledRemoteFileMapProvider.Call<Storeable>() {
+                    @Override
+                    Storeable run(RemoteFileMapProvider connection) {
+                        return table(connection).get(key);
+                    }
+                });
+    }
+
+    public Storeable put(final String key, final Storeable value) throws ColumnFormatException {
+        return pool.executeUnchecked(PooledRemoteFileMapProvider.Affinity.BIND,
+                new PooledRemoteFileMapProvider.Call<Storeable>() {
+                    @Override
+                    Storeable run(RemoteFileMapProvider connection) {
+                        return table(connection).put(key, value);
+                    }
+                });
+    }
+
+    public Storeable remove(final String key) {
+        return pool.executeUnchecked(PooledRemoteFileMapProvider.Affinity.BIND,
+                new PooledRemoteFileMapProvider.Call<Storeable>() {
+                    @Override
+                    Storeable run(RemoteFileMapProvider connection) {
+                        return table(connection).remove(key);
+                    }
+                });
+    }
+
+    public Map<String, Storeable> getAll(final Collection<String> keys) {
+        return pool.executeUnchecked(PooledRemoteFileMapProvider.Affinity.KEEP,
+                new PooledRemoteFileMapProvider.Call<Map<String, Storeable>>() {
+                    @Override
+                    Map<String, Storeable> run(RemoteFileMapProvider connection) {
+                        return table(connection).getAll(keys);
+                    }
+                });
+    }
+
+    public Map<String, Storeable> putAll(final Map<String, Storeable> values) {
+        return pool.executeUnchecked(PooledRemoteFileMapProvider.Affinity.BIND,
+                new PooledRemoteFileMapProvider.Call<Map<String, Storeable>>() {
+                    @Override
+                    Map<String, Storeable> run(RemoteFileMapProvider connection) {
+                        return table(connection).putAll(values);
+                    }
+                });
+    }
+
+    public int size() {
+        return pool.executeUnchecked(PooledRemoteFileMapProvider.Affinity.KEEP,
+                new PooledRemoteFileMapProvider.Call<Integer>() {
+                    @Override
+                    Integer run(RemoteFileMapProvider connection) {
+                        return table(connection).size();
+                    }
+                });
+    }
+
+    public int commit() throws IOException {
+        return pool.execute(PooledRemoteFileMapProvider.Affinity.RELEASE,
+                new PooledRemoteFileMapProvider.Call<Integer>() {
+                    @Override
+                    Integer run(RemoteFileMapProvider connection) throws IOException {
+                        return table(connection).commit();
+                    }
+                });
+    }
+
+    public int rollback() {
+        return pool.executeUnchecked(PooledRemoteFileMapProvider.Affinity.RELEASE,
+                new PooledRemoteFileMapProvider.Call<Integer>() {
+                    @Override
+                    Integer run(RemoteFileMapProvider connection) {
+                        return table(connection).rollback();
+                    }
+                });
+    }
+
+    public int getColumnsCount() {
+        return columnTypes.size();
+    }
+
+    public Class<?> getColumnType(int columnIndex) throws IndexOutOfBoundsException {
+        if (columnIndex >= getColumnsCount() || columnIndex < 0) {
+            throw new IndexOutOfBoundsException(String.format("Index out of bounds: array size %d, found %d",
+                    columnTypes.size(), columnIndex));
+        }
+        return columnTypes.get(columnIndex);
+    }
+}
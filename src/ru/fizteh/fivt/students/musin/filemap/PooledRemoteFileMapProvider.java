@@ -0,0 +1,384 @@
+package ru.fizteh.fivt.students.musin.filemap;
+
+import ru.fizteh.fivt.storage.structured.ColumnFormatException;
+import ru.fizteh.fivt.storage.structured.RemoteTableProvider;
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.storage.structured.Table;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remote provider shared by many threads over a bounded set of connections. A thread borrows a
+ * connection for one call and gives it back, except that a thread which has changed a table keeps
+ * its connection, and so its transaction on the server, until it commits or rolls back.
+ *
+ * <p>A connection idle for longer than {@link #IDLE_CHECK_MILLIS}, or since another connection
+ * broke, is pinged before reuse. A broken connection is replaced; a call outside a transaction is
+ * then retried once on another connection, a call inside one fails, since the server has dropped
+ * its changes.
+ *
+ * <p>A thread waits at most {@link #ACQUIRE_TIMEOUT_MILLIS} for a connection. While it waits, the
+ * connections kept by threads that have died or left their transaction untouched for
+ * {@link #BOUND_IDLE_MILLIS} are closed, which rolls their transactions back.
+ */
+public class PooledRemoteFileMapProvider implements RemoteTableProvider, AutoCloseable {
+    static final long IDLE_CHECK_MILLIS = 5000;
+    static final long ACQUIRE_TIMEOUT_MILLIS = 30000;
+    static final long BOUND_IDLE_MILLIS = 300000;
+    private static final long RECLAIM_CHECK_MILLIS = 1000;
+
+    /**
+     * What a call does to the connection of the calling thread.
+     */
+    enum Affinity {
+        KEEP,
+        BIND,
+        RELEASE
+    }
+
+    /**
+     * One call on a pooled connection.
+     */
+    abstract static class Call<T> {
+        abstract T run(RemoteFileMapProvider connection) throws IOException;
+    }
+
+    private static class IdleConnection {
+        final RemoteFileMapProvider connection;
+        final long since;
+
+        IdleConnection(RemoteFileMapProvider connection) {
+            this.connection = connection;
+            since = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Connection kept by a thread with an open transaction.
+     */
+    private static class Binding {
+        final RemoteFileMapProvider connection;
+        private long lastUse = System.currentTimeMillis();
+        private boolean busy = true;
+        private boolean reclaimed = false;
+
+        Binding(RemoteFileMapProvider connection) {
+            this.connection = connection;
+        }
+
+        synchronized boolean claim() {
+            if (reclaimed) {
+                return false;
+            }
+            busy = true;
+            return true;
+        }
+
+        synchronized void unclaim() {
+            busy = false;
+            lastUse = System.currentTimeMillis();
+        }
+
+        /**
+         * Takes the connection away from its thread unless the thread is in a call.
+         */
+        synchronized boolean reclaim(boolean ownerDead, long idleDeadline) {
+            if (reclaimed || busy || (!ownerDead && lastUse >= idleDeadline)) {
+                return false;
+            }
+            reclaimed = true;
+            return true;
+        }
+
+        synchronized boolean isReclaimed() {
+            return reclaimed;
+        }
+    }
+
+    private final RemoteFileMapProviderFactory factory;
+    private final String host;
+    private final int port;
+    private final int maxConnections;
+    private final Semaphore permits;
+    private final BlockingDeque<IdleConnection> idle = new LinkedBlockingDeque<>();
+    private final Set<RemoteFileMapProvider> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<RemoteFileMapProvider, Boolean>());
+    private final ConcurrentMap<Thread, Binding> bindings = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, PooledRemoteFileMap> tables = new ConcurrentHashMap<>();
+    private volatile long lastFailure;
+    private volatile boolean valid;
+
+    PooledRemoteFileMapProvider(RemoteFileMapProviderFactory factory, String host, int port, int maxConnections)
+            throws IOException {
+        this.factory = factory;
+        this.host = host;
+        this.port = port;
+        this.maxConnections = maxConnections;
+        permits = new Semaphore(maxConnections, true);
+        idle.addFirst(new IdleConnection(open()));
+        valid = true;
+    }
+
+    private void checkState() {
+        if (!valid) {
+            throw new IllegalStateException("Provider is closed");
+        }
+    }
+
+    public String getHost() {
+        checkState();
+        return host;
+    }
+
+    public int getPort() {
+        checkState();
+        return port;
+    }
+
+    int openConnections() {
+        return connections.size();
+    }
+
+    private RemoteFileMapProvider open() throws IOException {
+        RemoteFileMapProvider connection = factory.open(host, port);
+        connections.add(connection);
+        return connection;
+    }
+
+    private RemoteFileMapProvider acquire() {
+        long deadline = System.currentTimeMillis() + ACQUIRE_TIMEOUT_MILLIS;
+        try {
+            while (!permits.tryAcquire()) {
+                reclaim();
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    throw new IllegalStateException("No free connection");
+                }
+                if (permits.tryAcquire(Math.min(left, RECLAIM_CHECK_MILLIS), TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a connection");
+        }
+        IdleConnection entry;
+        while ((entry = idle.pollFirst()) != null) {
+            boolean fresh = entry.since > lastFailure && System.currentTimeMillis() - entry.since < IDLE_CHECK_MILLIS;
+            if (fresh || entry.connection.ping()) {
+                return entry.connection;
+            }
+            closeQuietly(entry.connection);
+        }
+        try {
+            return open();
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw new RuntimeException("Unable to connect: ", e);
+        }
+    }
+
+    private void reclaim() {
+        long idleDeadline = System.currentTimeMillis() - BOUND_IDLE_MILLIS;
+        for (Map.Entry<Thread, Binding> entry : bindings.entrySet()) {
+            Thread owner = entry.getKey();
+            Binding binding = entry.getValue();
+            boolean dead = !owner.isAlive();
+            if (binding.reclaim(dead, idleDeadline)) {
+                closeQuietly(binding.connection);
+                permits.release();
+            }
+            // A live owner is told about it on its next call
+            if (dead && binding.isReclaimed()) {
+                bindings.remove(owner, binding);
+            }
+        }
+    }
+
+    private void giveBack(RemoteFileMapProvider connection, Binding binding, boolean keep) {
+        if (keep) {
+            if (binding == null) {
+                binding = new Binding(connection);
+                bindings.put(Thread.currentThread(), binding);
+            }
+            binding.unclaim();
+            return;
+        }
+        if (binding != null) {
+            bindings.remove(Thread.currentThread());
+        }
+        if (!valid || connections.size() > maxConnections) {
+            closeQuietly(connection);
+        } else {
+            idle.addFirst(new IdleConnection(connection));
+        }
+        permits.release();
+    }
+
+    private void discard(RemoteFileMapProvider connection) {
+        lastFailure = System.currentTimeMillis();
+        bindings.remove(Thread.currentThread());
+        closeQuietly(connection);
+        permits.release();
+    }
+
+    private void closeQuietly(RemoteFileMapProvider connection) {
+        connections.remove(connection);
+        try {
+            connection.close();
+        } catch (IOException | RuntimeException e) {
+            connection.abort();
+        }
+    }
+
+    private static boolean isConnectionError(RuntimeException e) {
+        return e.getCause() instanceof IOException
+                || (e instanceof IllegalStateException && "Socket is closed".equals(e.getMessage()));
+    }
+
+    <T> T execute(Affinity affinity, Call<T> call) throws IOException {
+        checkState();
+        Binding binding = bindings.get(Thread.currentThread());
+        RemoteFileMapProvider connection = null;
+        if (binding != null) {
+            if (!binding.claim()) {
+                bindings.remove(Thread.currentThread());
+                throw new IllegalStateException("Transaction was idle for too long, uncommitted changes are gone");
+            }
+            connection = binding.connection;
+        }
+        boolean inTransaction = connection != null;
+        boolean retried = false;
+        while (true) {
+            if (connection == null) {
+                connection = acquire();
+            }
+            try {
+                T result = call.run(connection);
+                giveBack(connection, binding,
+                        affinity == Affinity.BIND || (affinity == Affinity.KEEP && inTransaction));
+                return result;
+            } catch (RuntimeException e) {
+                if (!isConnectionError(e)) {
+                    // A failed call has not started a transaction on the server
+                    giveBack(connection, binding, inTransaction);
+                    throw e;
+                }
+                discard(connection);
+                if (inTransaction) {
+                    throw new IllegalStateException("Connection lost, uncommitted changes are gone", e);
+                }
+                if (retried) {
+                    throw e;
+                }
+                retried = true;
+                connection = null;
+            } catch (IOException e) {
+                giveBack(connection, binding, inTransaction);
+                throw e;
+            }
+        }
+    }
+
+    <T> T executeUnchecked(Affinity affinity, Call<T> call) {
+        try {
+            return execute(affinity, call);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    public PooledRemoteFileMap getTable(final String name) {
+        RemoteFileMap table = executeUnchecked(Affinity.KEEP, new Call<RemoteFileMap>() {
+            @Override
+            RemoteFileMap run(RemoteFileMapProvider connection) {
+                return connection.getTable(name);
+            }
+        });
+        if (table == null) {
+            tables.remove(name);
+            return null;
+        }
+        tables.putIfAbsent(name, new PooledRemoteFileMap(this, name, columnTypes(table)));
+        return tables.get(name);
+    }
+
+    public PooledRemoteFileMap createTable(final String name, final List<Class<?>> columnTypes) throws IOException {
+        RemoteFileMap table = execute(Affinity.KEEP, new Call<RemoteFileMap>() {
+            @Override
+            RemoteFileMap run(RemoteFileMapProvider connection) throws IOException {
+                return connection.createTable(name, columnTypes);
+            }
+        });
+        if (table == null) {
+            return null;
+        }
+        PooledRemoteFileMap newTable = new PooledRemoteFileMap(this, name, columnTypes);
+        return tables.putIfAbsent(name, newTable) == null ? newTable : null;
+    }
+
+    public void removeTable(final String name) throws IOException {
+        execute(Affinity.KEEP, new Call<Void>() {
+            @Override
+            Void run(RemoteFileMapProvider connection) throws IOException {
+                connection.removeTable(name);
+                return null;
+            }
+        });
+        tables.remove(name);
+    }
+
+    private static List<Class<?>> columnTypes(Table table) {
+        List<Class<?>> columnTypes = new ArrayList<>();
+        for (int i = 0; i < table.getColumnsCount(); i++) {
+            columnTypes.add(table.getColumnType(i));
+        }
+        return columnTypes;
+    }
+
+    public FixedList deserialize(Table table, String value) throws ParseException {
+        checkState();
+        return RemoteFileMapProvider.deserializeRow(table, value);
+    }
+
+    public String serialize(Table table, Storeable value) throws ColumnFormatException {
+        checkState();
+        return RemoteFileMapProvider.serializeRow(table, value);
+    }
+
+    public FixedList createFor(Table table) {
+        checkState();
+        return RemoteFileMapProvider.createRow(table);
+    }
+
+    public FixedList createFor(Table table, List<?> values) throws ColumnFormatException, IndexOutOfBoundsException {
+        checkState();
+        return RemoteFileMapProvider.createRow(table, values);
+    }
+
+    /**
+     * Closes every connection, including the ones kept by threads with open transactions.
+     */
+    public void close() {
+        if (!valid) {
+            return;
+        }
+        valid = false;
+        for (RemoteFileMapProvider connection : connections) {
+            closeQuietly(connection);
+        }
+        idle.clear();
+    }
+}
@@ -2,18 +2,30 @@ package ru.fizteh.fivt.students.musin.filemap;
 
 import ru.fizteh.fivt.storage.structured.ColumnFormatException;
 import ru.fizteh.fivt.storage.structured.Storeable;
-import ru.fizteh.fivt.storage.structured.Table;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+public class RemoteFileMap implements AsyncTable, AutoCloseable {
+    /**
+     * How many tagged text requests a batch keeps in flight before it starts reading replies, so
+     * that neither side blocks on a full socket buffer.
+     */
+    static final int PIPELINE_DEPTH = 64;
 
-public class RemoteFileMap implements Table, AutoCloseable {
     private Socket socket;
     private BufferedReader reader;
     private PrintStream writer;
@@ -22,6 +34,19 @@ public class RemoteFileMap implements Table, AutoCloseable {
     private RemoteFileMapProvider provider;
     private ArrayList<Class<?>> columnTypes;
     private boolean valid;
+    private long nextRequestId;
+    private final RemoteFileMapProvider.Decoder<Storeable> rowReply = new RemoteFileMapProvider.Decoder<Storeable>() {
+        @Override
+        Storeable decode(ByteBuffer reply) {
+            return readRow(reply);
+        }
+    };
+    private final RemoteFileMapProvider.Decoder<Integer> numberReply = new RemoteFileMapProvider.Decoder<Integer>() {
+        @Override
+        Integer decode(ByteBuffer reply) {
+            return readNumber(reply);
+        }
+    };
 
     public RemoteFileMap(String name, Socket socket, RemoteFileMapProvider provider) throws IOException {
         active = false;
@@ -31,7 +56,7 @@ public class RemoteFileMap implements Table, AutoCloseable {
         valid = true;
         columnTypes = new ArrayList<>();
         reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        writer = new PrintStream(socket.getOutputStream());
+        writer = new PrintStream(new BufferedOutputStream(socket.getOutputStream()));
     }
 
     public RemoteFileMap(String name, Socket socket, RemoteFileMapProvider provider, List<Class<?>> columnTypes)
@@ -104,6 +129,56 @@ public class RemoteFileMap implements Table, AutoCloseable {
     }
 
     public Storeable put(String key, Storeable value) throws ColumnFormatException {
+        checkPut(key, value);
+        if (!active) {
+            provider.activate(this);
+        }
+        if (provider.isBinary()) {
+            return readRow(provider.call(putRequest(key, value)));
+        }
+        writer.println(String.format("put %s %s", key, provider.serialize(this, value)));
+        writer.flush();
+        return readPutReply();
+    }
+
+    private byte[] putRequest(String key, Storeable value) {
+        try {
+            BinaryProtocol.Frame frame = new BinaryProtocol.Frame(BinaryProtocol.PUT);
+            RowCodec.writeString(frame, key);
+            RowCodec.write(frame, columnTypes, value);
+            return frame.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("Error building request: ", e);
+        }
+    }
+
+    /**
+     * Reads a binary reply that carries a row, or NOT_FOUND for null.
+     */
+    private Storeable readRow(ByteBuffer reply) {
+        byte status = reply.get();
+        if (status == BinaryProtocol.NOT_FOUND) {
+            return null;
+        }
+        if (status != BinaryProtocol.OK) {
+            throw RemoteFileMapProvider.serverError(status, reply);
+        }
+        try {
+            return RowCodec.read(reply, columnTypes);
+        } catch (ParseException e) {
+            throw new RuntimeException(String.format("Server side exception: %s", e.getMessage()));
+        }
+    }
+
+    private int readNumber(ByteBuffer reply) {
+        byte status = reply.get();
+        if (status != BinaryProtocol.OK) {
+            throw RemoteFileMapProvider.serverError(status, reply);
+        }
+        return reply.getInt();
+    }
+
+    private void checkPut(String key, Storeable value) {
         checkState();
         if (socket.isClosed()) {
             throw new IllegalStateException("Socket is closed");
@@ -126,11 +201,9 @@ public class RemoteFileMap implements Table, AutoCloseable {
         if (!whiteSpaceCheck(key)) {
             throw new IllegalArgumentException("Whitespace not allowed in key");
         }
-        if (!active) {
-            provider.activate(this);
-        }
-        String serializedValue = provider.serialize(this, value);
-        writer.println(String.format("put %s %s", key, serializedValue));
+    }
+
+    private Storeable readPutReply() {
         String message = null;
         try {
             message = StringUtils.readLine(reader);
@@ -151,6 +224,19 @@ public class RemoteFileMap implements Table, AutoCloseable {
     }
 
     public Storeable get(String key) {
+        checkKey(key);
+        if (!active) {
+            provider.activate(this);
+        }
+        if (provider.isBinary()) {
+            return readRow(provider.call(RemoteFileMapProvider.request(BinaryProtocol.GET, key)));
+        }
+        writer.println(String.format("get %s", key));
+        writer.flush();
+        return readGetReply();
+    }
+
+    private void checkKey(String key) {
         checkState();
         if (socket.isClosed()) {
             throw new IllegalStateException("Socket is closed");
@@ -161,10 +247,9 @@ public class RemoteFileMap implements Table, AutoCloseable {
         if (key.equals("")) {
             throw new IllegalArgumentException("Empty key");
         }
-        if (!active) {
-            provider.activate(this);
-        }
-        writer.println(String.format("get %s", key));
+    }
+
+    private Storeable readGetReply() {
         String message = null;
         try {
             message = StringUtils.readLine(reader);
@@ -184,45 +269,184 @@ public class RemoteFileMap implements Table, AutoCloseable {
         }
     }
 
+    /**
+     * Sends get and remove together, so the old value costs no extra round trip; the binary
+     * protocol returns the old value with the remove itself.
+     */
     public Storeable remove(String key) {
-        checkState();
-        if (socket.isClosed()) {
-            throw new IllegalStateException("Socket is closed");
-        }
-        if (key == null) {
-            throw new IllegalArgumentException("Null pointer instead of string");
-        }
-        if (key.equals("")) {
-            throw new IllegalArgumentException("Empty key");
-        }
+        checkKey(key);
         if (!active) {
             provider.activate(this);
         }
+        if (provider.isBinary()) {
+            return readRow(provider.call(RemoteFileMapProvider.request(BinaryProtocol.REMOVE, key)));
+        }
         writer.println(String.format("get %s", key));
+        writer.println(String.format("remove %s", key));
+        writer.flush();
+        Storeable result;
+        try {
+            result = readGetReply();
+        } finally {
+            readRemoveReply();
+        }
+        return result;
+    }
+
+    private void readRemoveReply() {
         String message = null;
         try {
             message = StringUtils.readLine(reader);
-            if (message.equals("not found")) {
-                return null;
-            }
-            if (message.equals("found")) {
-                message = StringUtils.readLine(reader);
-            } else {
+            if (!message.equals("removed") && !message.equals("not found")) {
                 throw new RuntimeException(String.format("Server side exception: %s", message));
             }
-            Storeable result = provider.deserialize(this, message);
-            writer.println(String.format("remove %s", key));
-            message = StringUtils.readLine(reader);
-            if (message.equals("removed") || message.equals("not found")) {
-                return result;
-            } else {
-                throw new RuntimeException(String.format("Server side exception: %s", message));
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading from socket: ", e);
+        }
+    }
+
+    /**
+     * Fetches many keys at once. Requests are pipelined on the connection, so the whole batch
+     * takes a round trip per {@link #PIPELINE_DEPTH} / 2 keys instead of one per key. Missing keys
+     * map to null.
+     */
+    public Map<String, Storeable> getAll(Collection<String> keys) {
+        for (String key : keys) {
+            checkKey(key);
+        }
+        if (!active) {
+            provider.activate(this);
+        }
+        Map<String, Storeable> result = new LinkedHashMap<>();
+        if (provider.isBinary()) {
+            List<byte[]> requests = new ArrayList<>();
+            for (String key : keys) {
+                requests.add(RemoteFileMapProvider.request(BinaryProtocol.GET, key));
+            }
+            return pipeline(new ArrayList<>(keys), requests, result);
+        }
+        Queue<String> pending = new ArrayDeque<>();
+        RuntimeException error = null;
+        for (String key : keys) {
+            sendRequest(String.format("get %s", key));
+            pending.add(key);
+            if (pending.size() == PIPELINE_DEPTH) {
+                writer.flush();
+                while (pending.size() > PIPELINE_DEPTH / 2) {
+                    error = readBatchReply(pending, result, "get", error);
+                }
+            }
+        }
+        writer.flush();
+        while (!pending.isEmpty()) {
+            error = readBatchReply(pending, result, "get", error);
+        }
+        if (error != null) {
+            throw error;
+        }
+        return result;
+    }
+
+    /**
+     * Puts many rows at once with pipelined requests and returns the old values (null for new
+     * keys). Every row is checked before anything is sent.
+     */
+    public Map<String, Storeable> putAll(Map<String, Storeable> values) {
+        for (Map.Entry<String, Storeable> entry : values.entrySet()) {
+            checkPut(entry.getKey(), entry.getValue());
+        }
+        if (!active) {
+            provider.activate(this);
+        }
+        Map<String, Storeable> result = new LinkedHashMap<>();
+        if (provider.isBinary()) {
+            List<String> keys = new ArrayList<>();
+            List<byte[]> requests = new ArrayList<>();
+            for (Map.Entry<String, Storeable> entry : values.entrySet()) {
+                keys.add(entry.getKey());
+                requests.add(putRequest(entry.getKey(), entry.getValue()));
+            }
+            return pipeline(keys, requests, result);
+        }
+        Queue<String> pending = new ArrayDeque<>();
+        RuntimeException error = null;
+        for (Map.Entry<String, Storeable> entry : values.entrySet()) {
+            sendRequest(String.format("put %s %s", entry.getKey(), provider.serialize(this, entry.getValue())));
+            pending.add(entry.getKey());
+            if (pending.size() == PIPELINE_DEPTH) {
+                writer.flush();
+                while (pending.size() > PIPELINE_DEPTH / 2) {
+                    error = readBatchReply(pending, result, "put", error);
+                }
+            }
+        }
+        writer.flush();
+        while (!pending.isEmpty()) {
+            error = readBatchReply(pending, result, "put", error);
+        }
+        if (error != null) {
+            throw error;
+        }
+        return result;
+    }
+
+    /**
+     * Binary frames need no tags: the server answers them in order, and the reader thread of the
+     * provider takes the replies while the requests are still being written.
+     */
+    private Map<String, Storeable> pipeline(List<String> keys, List<byte[]> requests, Map<String, Storeable> result) {
+        List<StorageFuture<Storeable>> replies = new ArrayList<>();
+        for (byte[] request : requests) {
+            replies.add(provider.submit(request, rowReply, false));
+        }
+        provider.flush();
+        RuntimeException error = null;
+        for (int i = 0; i < replies.size(); i++) {
+            try {
+                result.put(keys.get(i), replies.get(i).await());
+            } catch (RuntimeException e) {
+                result.put(keys.get(i), null);
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return result;
+    }
+
+    private void sendRequest(String command) {
+        writer.println(String.format("request %d %s", nextRequestId++, command));
+    }
+
+    /**
+     * Reads the reply to the oldest request in flight. Replies start with "response id"; lines
+     * left over from a reply that could not be parsed are skipped up to that header, and the
+     * first failure is kept until the whole batch is read.
+     */
+    private RuntimeException readBatchReply(Queue<String> pending, Map<String, Storeable> result, String command,
+                                            RuntimeException error) {
+        String header = String.format("response %d", nextRequestId - pending.size());
+        String key = pending.poll();
+        try {
+            String message = StringUtils.readLine(reader);
+            while (!message.equals(header)) {
+                message = StringUtils.readLine(reader);
             }
         } catch (IOException e) {
             throw new RuntimeException("Error reading from socket: ", e);
-        } catch (ParseException e) {
-            throw new RuntimeException(String.format("Server side exception: %s", message));
         }
+        try {
+            result.put(key, command.equals("get") ? readGetReply() : readPutReply());
+        } catch (RuntimeException e) {
+            result.put(key, null);
+            if (error == null) {
+                return e;
+            }
+        }
+        return error;
     }
 
     public int size() {
@@ -233,7 +457,11 @@ public class RemoteFileMap implements Table, AutoCloseable {
         if (!active) {
             provider.activate(this);
         }
+        if (provider.isBinary()) {
+            return readNumber(provider.call(RemoteFileMapProvider.request(BinaryProtocol.SIZE, null)));
+        }
         writer.println("size");
+        writer.flush();
         String message = null;
         try {
             message = StringUtils.readLine(reader);
@@ -253,7 +481,11 @@ public class RemoteFileMap implements Table, AutoCloseable {
         if (!active) {
             provider.activate(this);
         }
+        if (provider.isBinary()) {
+            return readNumber(provider.call(RemoteFileMapProvider.request(BinaryProtocol.COMMIT, null)));
+        }
         writer.println("commit");
+        writer.flush();
         String message = null;
         try {
             message = StringUtils.readLine(reader);
@@ -273,7 +505,11 @@ public class RemoteFileMap implements Table, AutoCloseable {
         if (!active) {
             provider.activate(this);
         }
+        if (provider.isBinary()) {
+            return readNumber(provider.call(RemoteFileMapProvider.request(BinaryProtocol.ROLLBACK, null)));
+        }
         writer.println("rollback");
+        writer.flush();
         String message = null;
         try {
             message = StringUtils.readLine(reader);
@@ -285,6 +521,58 @@ public class RemoteFileMap implements Table, AutoCloseable {
         }
     }
 
+    /**
+     * Over the binary protocol the future is completed by the reader thread of the provider; the
+     * text protocol has no such thread, so there the call is made at once.
+     */
+    public StorageFuture<Storeable> getAsync(String key) {
+        checkKey(key);
+        if (!active) {
+            provider.activate(this);
+        }
+        if (!provider.isBinary()) {
+            try {
+                return StorageFuture.completed(get(key));
+            } catch (RuntimeException e) {
+                return StorageFuture.failed(e);
+            }
+        }
+        return provider.submit(RemoteFileMapProvider.request(BinaryProtocol.GET, key), rowReply, true);
+    }
+
+    public StorageFuture<Storeable> putAsync(String key, Storeable value) {
+        checkPut(key, value);
+        if (!active) {
+            provider.activate(this);
+        }
+        if (!provider.isBinary()) {
+            try {
+                return StorageFuture.completed(put(key, value));
+            } catch (RuntimeException e) {
+                return StorageFuture.failed(e);
+            }
+        }
+        return provider.submit(putRequest(key, value), rowReply, true);
+    }
+
+    public StorageFuture<Integer> commitAsync() {
+        checkState();
+        if (socket.isClosed()) {
+            throw new IllegalStateException("Socket is closed");
+        }
+        if (!active) {
+            provider.activate(this);
+        }
+        if (!provider.isBinary()) {
+            try {
+                return StorageFuture.completed(commit());
+            } catch (IOException | RuntimeException e) {
+                return StorageFuture.failed(e);
+            }
+        }
+        return provider.submit(RemoteFileMapProvider.request(BinaryProtocol.COMMIT, null), numberReply, true);
+    }
+
     public int getColumnsCount() {
         checkState();
         return columnTypes.size();
@@ -7,21 +7,33 @@ import ru.fizteh.fivt.storage.structured.RemoteTableProvider;
 import ru.fizteh.fivt.storage.structured.Storeable;
 import ru.fizteh.fivt.storage.structured.Table;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class RemoteFileMapProvider implements RemoteTableProvider, AutoCloseable {
     private Socket socket;
     private BufferedReader reader;
     private PrintStream writer;
+    private DataInputStream binaryInput;
+    private DataOutputStream binaryOutput;
+    private final Object outputLock = new Object();
+    private final Queue<PendingRequest<?>> pending = new ConcurrentLinkedQueue<>();
+    private IOException broken;
     private RemoteFileMap currentActive;
     private boolean valid;
     private HashMap<String, RemoteFileMap> used;
@@ -39,6 +51,188 @@ public class RemoteFileMapProvider implements RemoteTableProvider, AutoCloseable
         this.host = host;
     }
 
+    /**
+     * Provider over a connection that has already switched to {@link BinaryProtocol}. Its
+     * responses are read by a daemon thread that completes the futures of the requests.
+     */
+    public RemoteFileMapProvider(Socket socket, String host, int port, boolean binary) throws IOException {
+        this(socket, host, port);
+        if (binary) {
+            binaryInput = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            binaryOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            Thread responseReader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readResponses();
+                }
+            }, String.format("remote-filemap-%s:%d", host, port));
+            responseReader.setDaemon(true);
+            responseReader.start();
+        }
+    }
+
+    /**
+     * Turns a response frame, positioned at its status byte, into the result of a request. Runs
+     * on the response reader thread.
+     */
+    abstract static class Decoder<T> {
+        abstract T decode(ByteBuffer reply);
+    }
+
+    private static final Decoder<ByteBuffer> RAW_REPLY = new Decoder<ByteBuffer>() {
+        @Override
+        ByteBuffer decode(ByteBuffer reply) {
+            return reply;
+        }
+    };
+
+    private static class PendingRequest<T> {
+        final StorageFuture<T> future = new StorageFuture<>();
+        final Decoder<T> decoder;
+
+        PendingRequest(Decoder<T> decoder) {
+            this.decoder = decoder;
+        }
+
+        void complete(ByteBuffer reply) {
+            T result;
+            try {
+                result = decoder.decode(reply);
+            } catch (RuntimeException e) {
+                future.fail(e);
+                return;
+            }
+            future.complete(result);
+        }
+    }
+
+    boolean isBinary() {
+        return binaryOutput != null;
+    }
+
+    /**
+     * Sends a request frame. Responses come in the order of the requests, so the reader thread
+     * completes the oldest pending request with each one. Callbacks of the returned future run on
+     * that thread and must not wait for other requests of this provider.
+     */
+    <T> StorageFuture<T> submit(byte[] frame, Decoder<T> decoder, boolean flush) {
+        PendingRequest<T> request = new PendingRequest<>(decoder);
+        synchronized (outputLock) {
+            if (broken != null) {
+                request.future.fail(new RuntimeException("Error writing to socket: ", broken));
+                return request.future;
+            }
+            pending.add(request);
+            try {
+                binaryOutput.write(frame);
+                if (flush) {
+                    binaryOutput.flush();
+                }
+            } catch (IOException e) {
+                breakConnection(e);
+            }
+        }
+        return request.future;
+    }
+
+    void flush() {
+        synchronized (outputLock) {
+            try {
+                binaryOutput.flush();
+            } catch (IOException e) {
+                breakConnection(e);
+            }
+        }
+    }
+
+    ByteBuffer call(byte[] frame) {
+        return submit(frame, RAW_REPLY, true).await();
+    }
+
+    /**
+     * Closes the socket after a failed write, so that the reader fails the pending requests.
+     */
+    private void breakConnection(IOException e) {
+        broken = e;
+        try {
+            socket.close();
+        } catch (IOException closeError) {
+            //Unable to close
+        }
+    }
+
+    private void readResponses() {
+        IOException error;
+        try {
+            while (true) {
+                int length = binaryInput.readInt();
+                if (length <= 0 || length > BinaryProtocol.MAX_FRAME_SIZE) {
+                    throw new IOException("Wrong frame length");
+                }
+                byte[] frame = new byte[length];
+                binaryInput.readFully(frame);
+                PendingRequest<?> request = pending.poll();
+                if (request == null) {
+                    throw new IOException("Response without a request");
+                }
+                request.complete(ByteBuffer.wrap(frame));
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+        synchronized (outputLock) {
+            if (broken == null) {
+                broken = error;
+            }
+            PendingRequest<?> request;
+            while ((request = pending.poll()) != null) {
+                request.future.fail(new RuntimeException("Error reading from socket: ", error));
+            }
+        }
+    }
+
+    /**
+     * Round trip that touches no table, used to check an idle connection.
+     */
+    boolean ping() {
+        if (!valid || socket.isClosed()) {
+            return false;
+        }
+        try {
+            if (isBinary()) {
+                return call(request(BinaryProtocol.PING, null)).get() == BinaryProtocol.OK;
+            }
+            writer.println("ping");
+            writer.flush();
+            return "pong".equals(StringUtils.readLine(reader));
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    static byte[] request(byte opcode, String argument) {
+        try {
+            BinaryProtocol.Frame frame = new BinaryProtocol.Frame(opcode);
+            if (argument != null) {
+                RowCodec.writeString(frame, argument);
+            }
+            return frame.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("Error building request: ", e);
+        }
+    }
+
+    static RuntimeException serverError(byte status, ByteBuffer reply) {
+        if (status == BinaryProtocol.ERROR) {
+            try {
+                return new RuntimeException(String.format("Server side exception: %s", RowCodec.readString(reply)));
+            } catch (ParseException | RuntimeException e) {
+                return new RuntimeException("Server side exception");
+            }
+        }
+        return new RuntimeException(String.format("Server side exception: unexpected status %d", status));
+    }
+
     private void checkState() {
         if (!valid) {
             throw new IllegalStateException("Provider is closed");
@@ -108,6 +302,24 @@ public class RemoteFileMapProvider implements RemoteTableProvider, AutoCloseable
         RemoteFileMap newMap = used.get(name);
         if (newMap != null && !newMap.isClosed()) {
             return newMap;
+        } else if (isBinary()) {
+            ByteBuffer reply = call(request(BinaryProtocol.DESCRIBE, name));
+            byte status = reply.get();
+            if (status == BinaryProtocol.NOT_FOUND) {
+                return null;
+            }
+            if (status != BinaryProtocol.OK) {
+                throw serverError(status, reply);
+            }
+            try {
+                newMap = new RemoteFileMap(name, socket, this, BinaryProtocol.readTypes(reply));
+            } catch (ParseException e) {
+                throw new RuntimeException(String.format("Server side exception: %s", e.getMessage()));
+            } catch (IOException e) {
+                throw new RuntimeException("Error assigning streams: ", e);
+            }
+            used.put(name, newMap);
+            return newMap;
         } else {
             writer.println(String.format("describe %s", name));
             ArrayList<Class<?>> columnTypes = null;
@@ -138,6 +350,10 @@ public class RemoteFileMapProvider implements RemoteTableProvider, AutoCloseable
         if (socket.isClosed()) {
             throw new IllegalStateException("Socket is closed");
         }
+        if (isBinary()) {
+            activateBinary(table);
+            return;
+        }
         writer.println(String.format("use %s", table.getName()));
         if (currentActive != null) {
             currentActive.setActive(false);
@@ -159,6 +375,24 @@ public class RemoteFileMapProvider implements RemoteTableProvider, AutoCloseable
         }
     }
 
+    private void activateBinary(RemoteFileMap table) {
+        ByteBuffer reply = call(request(BinaryProtocol.USE, table.getName()));
+        byte status = reply.get();
+        if (status == BinaryProtocol.OK) {
+            if (currentActive != null && !currentActive.isClosed()) {
+                currentActive.setActive(false);
+            }
+            table.setActive(true);
+            currentActive = table;
+        } else if (status == BinaryProtocol.NOT_FOUND) {
+            throw new IllegalStateException("Table no longer exists");
+        } else if (status == BinaryProtocol.UNSAVED) {
+            throw new UnsavedChangesException(String.format("%d unsaved changes", reply.getInt()));
+        } else {
+            throw serverError(status, reply);
+        }
+    }
+
     public RemoteFileMap createTable(String name, List<Class<?>> columnTypes) throws IOException {
         checkState();
         if (name == null) {
@@ -195,6 +429,22 @@ public class RemoteFileMapProvider implements RemoteTableProvider, AutoCloseable
         if (socket.isClosed()) {
             throw new IllegalStateException("Socket is closed");
         }
+        if (isBinary()) {
+            BinaryProtocol.Frame frame = new BinaryProtocol.Frame(BinaryProtocol.CREATE);
+            RowCodec.writeString(frame, name);
+            BinaryProtocol.writeTypes(frame, columnTypes);
+            ByteBuffer reply = call(frame.toByteArray());
+            byte status = reply.get();
+            if (status == BinaryProtocol.EXISTS) {
+                return null;
+            }
+            if (status != BinaryProtocol.OK) {
+                throw serverError(status, reply);
+            }
+            RemoteFileMap table = new RemoteFileMap(name, socket, this, columnTypes);
+            used.put(name, table);
+            return table;
+        }
         writer.println(String.format("create %s (%s)", name, StringUtils.classListToString(columnTypes)));
         try {
             String message = StringUtils.readLine(reader);
@@ -238,6 +488,16 @@ public class RemoteFileMapProvider implements RemoteTableProvider, AutoCloseable
             table.close();
             used.remove(name);
         }
+        if (isBinary()) {
+            ByteBuffer reply = call(request(BinaryProtocol.DROP, name));
+            byte status = reply.get();
+            if (status == BinaryProtocol.NOT_FOUND) {
+                throw new IllegalStateException(String.format("%s not exists", name));
+            } else if (status != BinaryProtocol.OK) {
+                throw serverError(status, reply);
+            }
+            return;
+        }
         writer.println(String.format("drop %s", name));
         try {
             String message = StringUtils.readLine(reader);
@@ -253,6 +513,10 @@ public class RemoteFileMapProvider implements RemoteTableProvider, AutoCloseable
 
     public FixedList deserialize(Table table, String value) throws ParseException {
         checkState();
+        return deserializeRow(table, value);
+    }
+
+    static FixedList deserializeRow(Table table, String value) throws ParseException {
         if (value == null) {
             throw new IllegalArgumentException("Null string as argument");
         }
@@ -343,6 +607,10 @@ public class RemoteFileMapProvider implements RemoteTableProvider, AutoCloseable
 
     public String serialize(Table table, Storeable value) throws ColumnFormatException {
         checkState();
+        return serializeRow(table, value);
+    }
+
+    static String serializeRow(Table table, Storeable value) throws ColumnFormatException {
         int columnCount = table.getColumnsCount();
         Object[] objects = new Object[columnCount];
         for (int i = 0; i < columnCount; i++) {
@@ -358,6 +626,10 @@ public class RemoteFileMapProvider implements RemoteTableProvider, AutoCloseable
 
     public FixedList createFor(Table table) {
         checkState();
+        return createRow(table);
+    }
+
+    static FixedList createRow(Table table) {
         ArrayList<Class<?>> columnTypes = new ArrayList<>();
         int columnCount = table.getColumnsCount();
         for (int i = 0; i < columnCount; i++) {
@@ -368,6 +640,10 @@ public class RemoteFileMapProvider implements RemoteTableProvider, AutoCloseable
 
     public FixedList createFor(Table table, List<?> values) throws ColumnFormatException, IndexOutOfBoundsException {
         checkState();
+        return createRow(table, values);
+    }
+
+    static FixedList createRow(Table table, List<?> values) throws ColumnFormatException, IndexOutOfBoundsException {
         ArrayList<Class<?>> columnTypes = new ArrayList<>();
         int columnCount = table.getColumnsCount();
         for (int i = 0; i < columnCount; i++) {
@@ -399,6 +675,18 @@ public class RemoteFileMapProvider implements RemoteTableProvider, AutoCloseable
         }
     }
 
+    /**
+     * Drops the connection without rolling back the tables, for a socket that is already broken.
+     */
+    void abort() {
+        valid = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //Unable to close
+        }
+    }
+
     public class UnsavedChangesException extends RuntimeException {
         public UnsavedChangesException(String message) {
             super(message);
@@ -1,13 +1,18 @@
 package ru.fizteh.fivt.students.musin.filemap;
 
+import ru.fizteh.fivt.storage.structured.RemoteTableProvider;
 import ru.fizteh.fivt.storage.structured.RemoteTableProviderFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
 public class RemoteFileMapProviderFactory implements RemoteTableProviderFactory, AutoCloseable {
-    private ArrayList<RemoteFileMapProvider> providers;
+    private ArrayList<RemoteTableProvider> providers;
     private volatile boolean valid;
 
     public RemoteFileMapProviderFactory() {
@@ -23,6 +28,29 @@ public class RemoteFileMapProviderFactory implements RemoteTableProviderFactory,
 
     public RemoteFileMapProvider connect(String hostname, int port) throws IOException {
         checkState();
+        RemoteFileMapProvider newProvider = open(hostname, port);
+        providers.add(newProvider);
+        return newProvider;
+    }
+
+    /**
+     * Provider shared by many threads over at most maxConnections sockets to the server.
+     */
+    public PooledRemoteFileMapProvider connectPooled(String hostname, int port, int maxConnections)
+            throws IOException {
+        checkState();
+        if (hostname == null) {
+            throw new IllegalArgumentException("Null hostname as argument");
+        }
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("Pool needs at least one connection");
+        }
+        PooledRemoteFileMapProvider pool = new PooledRemoteFileMapProvider(this, hostname, port, maxConnections);
+        providers.add(pool);
+        return pool;
+    }
+
+    RemoteFileMapProvider open(String hostname, int port) throws IOException {
         if (hostname == null) {
             throw new IllegalArgumentException("Null hostname as argument");
         }
@@ -30,16 +58,42 @@ public class RemoteFileMapProviderFactory implements RemoteTableProviderFactory,
         if (!socket.isConnected()) {
             new RuntimeException("Failed to connect");
         }
-        RemoteFileMapProvider newProvider = new RemoteFileMapProvider(socket, hostname, port);
-        providers.add(newProvider);
+        RemoteFileMapProvider newProvider;
+        try {
+            newProvider = new RemoteFileMapProvider(socket, hostname, port, negotiateBinary(socket));
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
         return newProvider;
     }
 
+    /**
+     * Asks the server for {@link BinaryProtocol}. A server without it answers the hello line
+     * with a one-line error and the connection stays in text mode.
+     */
+    private static boolean negotiateBinary(Socket socket) throws IOException {
+        OutputStream output = socket.getOutputStream();
+        output.write((BinaryProtocol.HELLO + "\n").getBytes(StandardCharsets.UTF_8));
+        output.flush();
+        InputStream input = socket.getInputStream();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int next;
+        while ((next = input.read()) != '\n') {
+            if (next < 0) {
+                throw new IOException("Connection closed by server");
+            }
+            line.write(next);
+        }
+        String answer = new String(line.toByteArray(), StandardCharsets.UTF_8).trim();
+        return answer.equals(BinaryProtocol.ACCEPTED);
+    }
+
     public void close() throws IOException {
         if (!valid) {
             return;
         }
-        for (RemoteFileMapProvider provider : providers) {
+        for (RemoteTableProvider provider : providers) {
             provider.close();
         }
         valid = false;
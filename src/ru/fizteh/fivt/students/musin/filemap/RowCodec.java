@@ -0,0 +1,102 @@
+package ru.fizteh.fivt.students.musin.filemap;
+
+import ru.fizteh.fivt.storage.structured.Storeable;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.List;
+
+/**
+ * Binary form of a row: a null bitmap, then every non-null column - int and float as 4 bytes,
+ * long and double as 8, byte and boolean as 1, String as a 4-byte length and UTF-8 bytes.
+ */
+public class RowCodec {
+    private RowCodec() {
+    }
+
+    public static void write(DataOutputStream output, List<Class<?>> columnTypes, Storeable row)
+            throws IOException {
+        byte[] nulls = new byte[(columnTypes.size() + 7) / 8];
+        for (int i = 0; i < columnTypes.size(); i++) {
+            if (row.getColumnAt(i) == null) {
+                nulls[i / 8] |= 1 << (i % 8);
+            }
+        }
+        output.write(nulls);
+        for (int i = 0; i < columnTypes.size(); i++) {
+            Object value = row.getColumnAt(i);
+            if (value == null) {
+                continue;
+            }
+            Class<?> type = columnTypes.get(i);
+            if (type == Integer.class) {
+                output.writeInt((Integer) value);
+            } else if (type == Long.class) {
+                output.writeLong((Long) value);
+            } else if (type == Byte.class) {
+                output.writeByte((Byte) value);
+            } else if (type == Float.class) {
+                output.writeFloat((Float) value);
+            } else if (type == Double.class) {
+                output.writeDouble((Double) value);
+            } else if (type == Boolean.class) {
+                output.writeBoolean((Boolean) value);
+            } else {
+                writeString(output, (String) value);
+            }
+        }
+    }
+
+    public static FixedList read(ByteBuffer input, List<Class<?>> columnTypes) throws ParseException {
+        FixedList row = new FixedList(columnTypes);
+        try {
+            byte[] nulls = new byte[(columnTypes.size() + 7) / 8];
+            input.get(nulls);
+            for (int i = 0; i < columnTypes.size(); i++) {
+                if ((nulls[i / 8] & (1 << (i % 8))) != 0) {
+                    continue;
+                }
+                Class<?> type = columnTypes.get(i);
+                if (type == Integer.class) {
+                    row.setColumnAt(i, input.getInt());
+                } else if (type == Long.class) {
+                    row.setColumnAt(i, input.getLong());
+                } else if (type == Byte.class) {
+                    row.setColumnAt(i, input.get());
+                } else if (type == Float.class) {
+                    row.setColumnAt(i, input.getFloat());
+                } else if (type == Double.class) {
+                    row.setColumnAt(i, input.getDouble());
+                } else if (type == Boolean.class) {
+                    row.setColumnAt(i, input.get() != 0);
+                } else {
+                    row.setColumnAt(i, readString(input));
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ParseException("Binary row is truncated", input.position());
+        }
+        return row;
+    }
+
+    public static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    public static String readString(ByteBuffer input) throws ParseException {
+        int length = input.getInt();
+        if (length < 0 || length > input.remaining()) {
+            throw new ParseException("Wrong string length", input.position());
+        }
+        String result = new String(input.array(), input.arrayOffset() + input.position(), length,
+                StandardCharsets.UTF_8);
+        input.position(input.position() + length);
+        return result;
+    }
+}
@@ -10,13 +10,19 @@ import java.io.PrintStream;
 import java.text.ParseException;
 import java.util.ArrayList;
 
+/**
+ * Commands of one server session. The session keeps its own transaction diff instead of the
+ * thread-bound one of the table, so it may be served by any worker thread.
+ */
 public class ShellDatabaseHandler {
     private FileMapProvider database;
     private MultiFileMap current;
+    private TransactionDiff diff;
 
     public ShellDatabaseHandler(FileMapProvider database) throws IOException {
         this.database = database;
         current = null;
+        diff = new TransactionDiff();
     }
 
     void printException(Throwable e, PrintStream errorLog) {
@@ -166,15 +172,16 @@ public class ShellDatabaseHandler {
                         shell.writer.println("use: Too few arguments");
                         return -1;
                     }
-                    if (current != null && current.uncommittedChanges() != 0) {
+                    if (current != null && current.uncommittedChanges(diff) != 0) {
                         shell.writer.printf("%d unsaved changes%s",
-                                current.uncommittedChanges(), System.lineSeparator());
+                                current.uncommittedChanges(diff), System.lineSeparator());
                         return 0;
                     }
                     try {
                         MultiFileMap newTable = database.getTable(args.get(0));
                         if (newTable != null) {
                             current = newTable;
+                            diff = new TransactionDiff();
                         } else {
                             shell.writer.printf("%s not exists%s", args.get(0), System.lineSeparator());
                             return 0;
@@ -195,7 +202,8 @@ public class ShellDatabaseHandler {
                         return -1;
                     }
                     try {
-                        shell.writer.println(current.commit());
+                        shell.writer.println(current.commit(diff));
+                        diff.clear();
                     } catch (RuntimeException e) {
                         printException(e, shell.writer);
                         return -1;
@@ -214,7 +222,8 @@ public class ShellDatabaseHandler {
                         return -1;
                     }
                     try {
-                        shell.writer.println(current.rollback());
+                        shell.writer.println(current.rollback(diff));
+                        diff.clear();
                     } catch (RuntimeException e) {
                         printException(e, shell.writer);
                         return -1;
@@ -230,7 +239,7 @@ public class ShellDatabaseHandler {
                         return -1;
                     }
                     try {
-                        shell.writer.println(current.size());
+                        shell.writer.println(current.size(diff));
                     } catch (RuntimeException e) {
                         printException(e, shell.writer);
                         return -1;
@@ -255,7 +264,7 @@ public class ShellDatabaseHandler {
                         return 0;
                     }
                     try {
-                        Storeable value = current.put(args.get(0), database.deserialize(current, args.get(1)));
+                        Storeable value = current.put(diff, args.get(0), database.deserialize(current, args.get(1)));
                         if (value == null) {
                             shell.writer.println("new");
                         } else {
@@ -288,7 +297,7 @@ public class ShellDatabaseHandler {
                         shell.writer.println("no table");
                         return 0;
                     }
-                    Storeable value = current.get(args.get(0));
+                    Storeable value = current.get(diff, args.get(0));
                     if (value == null) {
                         shell.writer.println("not found");
                     } else {
@@ -313,7 +322,7 @@ public class ShellDatabaseHandler {
                         shell.writer.println("no table");
                         return 0;
                     }
-                    Storeable value = current.remove(args.get(0));
+                    Storeable value = current.remove(diff, args.get(0));
                     if (value != null) {
                         shell.writer.printf("removed%s", System.lineSeparator());
                     } else {
@@ -322,6 +331,25 @@ public class ShellDatabaseHandler {
                     return 0;
                 }
             }),
+            new Shell.ShellCommand("request", false, new Shell.ShellExecutable() {
+                @Override
+                public int execute(Shell shell, ArrayList<String> args) {
+                    args = parseArguments(2, args.get(0));
+                    if (args.size() < 2) {
+                        shell.writer.println("request: Too few arguments");
+                        return -1;
+                    }
+                    shell.writer.printf("response %s%s", args.get(0), System.lineSeparator());
+                    return shell.execute(args.get(1));
+                }
+            }),
+            new Shell.ShellCommand("ping", new Shell.ShellExecutable() {
+                @Override
+                public int execute(Shell shell, ArrayList<String> args) {
+                    shell.writer.println("pong");
+                    return 0;
+                }
+            }),
             new Shell.ShellCommand("describe", new Shell.ShellExecutable() {
                 @Override
                 public int execute(Shell shell, ArrayList<String> args) {
@@ -380,7 +408,8 @@ public class ShellDatabaseHandler {
             public int execute(Shell shell, ArrayList<String> args) {
                 try {
                     if (current != null) {
-                        current.rollback();
+                        current.rollback(diff);
+                        diff.clear();
                     }
                 } catch (Exception e) {
                     printException(e, shell.writer);
@@ -0,0 +1,111 @@
+package ru.fizteh.fivt.students.musin.filemap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Result of an {@link AsyncTable} call. It is either run by an executor, like any
+ * {@link FutureTask}, or completed from outside by the reader of a connection. Callbacks run on
+ * the thread that completes the future, or at once if it is already done.
+ */
+public class StorageFuture<T> extends FutureTask<T> {
+    public interface Callback<T> {
+        void onSuccess(T result);
+
+        void onFailure(Throwable error);
+    }
+
+    private List<Callback<? super T>> callbacks = new ArrayList<>();
+
+    public StorageFuture(Callable<T> callable) {
+        super(callable);
+    }
+
+    StorageFuture() {
+        super(new Callable<T>() {
+            @Override
+            public T call() {
+                throw new IllegalStateException("Future is completed by its connection");
+            }
+        });
+    }
+
+    static <T> StorageFuture<T> completed(T value) {
+        StorageFuture<T> future = new StorageFuture<>();
+        future.complete(value);
+        return future;
+    }
+
+    static <T> StorageFuture<T> failed(Throwable error) {
+        StorageFuture<T> future = new StorageFuture<>();
+        future.fail(error);
+        return future;
+    }
+
+    void complete(T value) {
+        set(value);
+    }
+
+    void fail(Throwable error) {
+        setException(error);
+    }
+
+    public void addCallback(Callback<? super T> callback) {
+        synchronized (this) {
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        runCallback(callback);
+    }
+
+    /**
+     * Waits for the result and rethrows a runtime failure as it is.
+     */
+    public T await() {
+        try {
+            return get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the result", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new RuntimeException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    @Override
+    protected void done() {
+        List<Callback<? super T>> ready;
+        synchronized (this) {
+            ready = callbacks;
+            callbacks = null;
+        }
+        for (Callback<? super T> callback : ready) {
+            runCallback(callback);
+        }
+    }
+
+    private void runCallback(Callback<? super T> callback) {
+        T result;
+        try {
+            result = get();
+        } catch (ExecutionException e) {
+            callback.onFailure(e.getCause());
+            return;
+        } catch (InterruptedException | RuntimeException e) {
+            callback.onFailure(e);
+            return;
+        }
+        callback.onSuccess(result);
+    }
+}
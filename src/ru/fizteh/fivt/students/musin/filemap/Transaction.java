@@ -1,19 +1,15 @@
 package ru.fizteh.fivt.students.musin.filemap;
 
-import ru.fizteh.fivt.storage.structured.Storeable;
-
-import java.util.HashMap;
-
 public class Transaction {
-    HashMap<String, Storeable> diff;
+    TransactionDiff diff;
     MultiFileMap table;
 
     public Transaction(MultiFileMap table) {
         this.table = table;
-        diff = new HashMap<>();
+        diff = new TransactionDiff();
     }
 
-    public HashMap<String, Storeable> getDiff() {
+    public TransactionDiff getDiff() {
         return diff;
     }
 
@@ -0,0 +1,33 @@
+package ru.fizteh.fivt.students.musin.filemap;
+
+import ru.fizteh.fivt.storage.structured.Storeable;
+
+import java.util.HashMap;
+
+public class TransactionDiff extends HashMap<String, Storeable> {
+    private int sizeDelta = 0;
+    private long version = 0;
+
+    int getSizeDelta() {
+        return sizeDelta;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    void setSizeDelta(int sizeDelta, long version) {
+        this.sizeDelta = sizeDelta;
+        this.version = version;
+    }
+
+    void addSizeDelta(int change) {
+        sizeDelta += change;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        sizeDelta = 0;
+    }
+}
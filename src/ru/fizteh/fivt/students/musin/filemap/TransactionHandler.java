@@ -1,9 +1,5 @@
 package ru.fizteh.fivt.students.musin.filemap;
 
-import ru.fizteh.fivt.storage.structured.Storeable;
-
-import java.util.HashMap;
-
 public class TransactionHandler {
     private Transaction transaction;
     private TransactionPool transactionPool;
@@ -16,7 +12,7 @@ public class TransactionHandler {
         this.table = table;
     }
 
-    public HashMap<String, Storeable> getDiff() {
+    public TransactionDiff getDiff() {
         if (transaction == null) {
             id = transactionPool.createTransaction(table);
             transaction = transactionPool.getTransaction(id);
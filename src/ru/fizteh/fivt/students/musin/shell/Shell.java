@@ -36,6 +36,10 @@ public class Shell {
         this.greeting = greeting;
     }
 
+    public boolean isStopped() {
+        return exit;
+    }
+
     public void stop() {
         for (ShellCommand command : exitFunction) {
             command.exec.execute(this, null);
@@ -88,6 +92,10 @@ public class Shell {
         return 0;
     }
 
+    public int execute(String line) {
+        return parseString(line);
+    }
+
     public void addCommand(ShellCommand command) {
         commands.put(command.name, command);
     }
@@ -110,6 +118,9 @@ public class Shell {
         while (!exit) {
             writer.print(greeting);
             try {
+                if (!br.ready()) {
+                    writer.flush();
+                }
                 String str = br.readLine();
                 if (str == null) {
                     stop();
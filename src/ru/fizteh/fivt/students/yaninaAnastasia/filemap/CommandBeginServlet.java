@@ -21,7 +21,13 @@ public class CommandBeginServlet extends HttpServlet {
             response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "There is no table name");
             return;
         }
-        String tId = manager.startTransaction(name);
+        String tId;
+        try {
+            tId = manager.startTransaction(name);
+        } catch (IllegalStateException e) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+            return;
+        }
         response.setStatus(HttpServletResponse.SC_OK);
         response.setContentType("text/plain");
         response.setCharacterEncoding("UTF8");
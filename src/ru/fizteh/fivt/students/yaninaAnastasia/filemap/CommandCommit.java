@@ -13,7 +13,7 @@ public class CommandCommit extends Command {
         if (args.length != 0) {
             throw new IllegalArgumentException("Illegal arguments");
         }
-        for (String step: myState.table.oldData.keySet()) {
+        for (String step: myState.table.snapshot().keySet()) {
             if (myState.table.get(step) != null) {
                 myState.database.tables.get(myState.table.getName()).put(step, myState.table.get(step));
             }
@@ -28,10 +28,14 @@ public class CommandSizeServlet extends HttpServlet {
             return;
         }
 
-        int result = transaction.size();
-        response.setStatus(HttpServletResponse.SC_OK);
-        response.setContentType("text/plain");
-        response.setCharacterEncoding("UTF8");
-        response.getWriter().println(result);
+        try {
+            int result = transaction.size();
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("text/plain");
+            response.setCharacterEncoding("UTF8");
+            response.getWriter().println(result);
+        } catch (IllegalStateException e) {
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
     }
 }
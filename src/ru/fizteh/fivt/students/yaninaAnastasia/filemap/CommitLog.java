@@ -0,0 +1,149 @@
+package ru.fizteh.fivt.students.yaninaAnastasia.filemap;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of committed diffs kept in the table directory. Every commit is written as
+ * one record: its length, the serialized puts and removes and a CRC32 of the payload. A record
+ * that was only partially written (crash in the middle of a commit) fails the length or
+ * checksum test and is dropped together with everything after it during replay.
+ */
+public class CommitLog {
+    public static final String LOG_FILE_NAME = "commit.log";
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 0;
+    // Length before the payload and checksum after it
+    private static final int RECORD_OVERHEAD = 4 + 8;
+
+    File logFile;
+
+    public CommitLog(File tableDirectory) {
+        logFile = new File(tableDirectory, LOG_FILE_NAME);
+    }
+
+    public boolean exists() {
+        return logFile.exists();
+    }
+
+    public long length() {
+        return logFile.length();
+    }
+
+    public void append(Map<String, byte[]> puts, Set<String> removes) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(payload);
+        for (String key : removes) {
+            record.writeByte(REMOVE);
+            writeString(record, key);
+        }
+        for (Map.Entry<String, byte[]> entry : puts.entrySet()) {
+            record.writeByte(PUT);
+            writeString(record, entry.getKey());
+            writeBytes(record, entry.getValue());
+        }
+        record.flush();
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        try (FileOutputStream stream = new FileOutputStream(logFile, true)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeLong(crc.getValue());
+            out.flush();
+            stream.getChannel().force(false);
+        }
+    }
+
+    /**
+     * Applies every complete record of the log to the table and returns the buckets it touched.
+     */
+    public Set<Integer> replay(DatabaseTable table, TableBuilder tableBuilder) throws IOException {
+        Set<Integer> touchedBuckets = new HashSet<Integer>();
+        if (!logFile.exists()) {
+            return touchedBuckets;
+        }
+        long remaining = logFile.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+            while (true) {
+                byte[] bytes = readRecord(in, remaining);
+                if (bytes == null) {
+                    break;
+                }
+                remaining -= RECORD_OVERHEAD + bytes.length;
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes));
+                while (record.available() > 0) {
+                    byte operation = record.readByte();
+                    String key = readString(record);
+                    if (operation == PUT) {
+                        tableBuilder.put(key, readBytes(record));
+                    } else if (operation == REMOVE) {
+                        table.storeableRemove(key);
+                    } else {
+                        throw new IOException("Commit log is corrupted");
+                    }
+                    touchedBuckets.add(DatabaseTable.getBucketNum(key));
+                }
+            }
+        }
+        return touchedBuckets;
+    }
+
+    public void clear() throws IOException {
+        Files.deleteIfExists(logFile.toPath());
+    }
+
+    /**
+     * Reads the next record, or returns null if the rest of the log, {@code remaining} bytes long,
+     * does not start with a complete and intact one.
+     */
+    private byte[] readRecord(DataInputStream in, long remaining) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length < 0 || length > remaining - RECORD_OVERHEAD) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            long checksum = in.readLong();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            if (crc.getValue() != checksum) {
+                return null;
+            }
+            return bytes;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Commit log is corrupted");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -3,19 +3,41 @@ package ru.fizteh.fivt.students.yaninaAnastasia.filemap;
 import ru.fizteh.fivt.storage.structured.Index;
 import ru.fizteh.fivt.storage.structured.Storeable;
 
-import java.util.HashMap;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Unique index over one column. It is kept up to date from commit diffs: {@link #update} only
+ * touches the changed rows and appends them to changes.tsv. The full tableIndex.tsv is
+ * rewritten once the change log grows bigger than the index itself.
+ */
 public class DatabaseIndex implements Index {
+    public static final String INDEXES_DIRECTORY = "indexes";
+    static final String INFO_FILE = "indexInfo.tsv";
+    static final String DATA_FILE = "tableIndex.tsv";
+    static final String CHANGES_FILE = "changes.tsv";
+
     DatabaseTable indexTable;
+    String tableName;
     int column;
     String indexName;
-    HashMap<Object, String> indexes;
+    Map<Object, String> indexes;
     ReadWriteLock lock = new ReentrantReadWriteLock(true);
+    int loggedChanges = 0;
+    // Set when a change could not be logged, the next update rewrites the whole index
+    boolean unsaved = false;
+    // Table version the entries match, null until the first commit after the index was built
+    volatile TableSnapshot indexedSnapshot;
+    volatile long modifications = 0;
 
-    DatabaseIndex(DatabaseTable table, int column, String name, HashMap<Object, String> indexes) {
+    DatabaseIndex(DatabaseTable table, int column, String name, Map<Object, String> indexes) {
         this.indexTable = table;
+        this.tableName = table.getName();
         this.column = column;
         this.indexName = name;
         this.indexes = indexes;
@@ -25,44 +47,275 @@ public class DatabaseIndex implements Index {
         return indexName;
     }
 
-    public void updateIndex() {
-        lock.writeLock().lock();
+    String getKind() {
+        return "unique";
+    }
+
+    File getDirectory() {
+        return new File(new File(indexTable.provider.getDatabaseDirectory(), INDEXES_DIRECTORY), indexName);
+    }
+
+    /**
+     * Throws IllegalStateException if the diff would break the index. Called under the table's
+     * commit lock before the diff is persisted, so {@link #update} of the same diff cannot fail.
+     */
+    void check(TableSnapshot base, Map<String, Storeable> puts, Set<String> removes) {
+        Map<Object, String> unlinked = new HashMap<Object, String>();
+        Map<Object, String> linked = new HashMap<Object, String>();
+        collect(base, puts, removes, unlinked, linked);
+        lock.readLock().lock();
         try {
-            indexes.clear();
-            for (String key : indexTable.oldData.keySet()) {
-                Object value = indexTable.oldData.get(key).getColumnAt(column);
-                if (value == null) {
+            for (Map.Entry<Object, String> entry : linked.entrySet()) {
+                String owner = indexes.get(entry.getKey());
+                if (owner != null && !owner.equals(entry.getValue()) && !owner.equals(unlinked.get(entry.getKey()))) {
                     throw new IllegalStateException("The column contains equal elements");
                 }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
-                if (indexes.containsKey(value)) {
-                    throw new IllegalStateException("The column contains equal elements");
+    private void collect(TableSnapshot base, Map<String, Storeable> puts, Set<String> removes,
+                         Map<Object, String> unlinked, Map<Object, String> linked) {
+        for (String key : removes) {
+            Storeable oldRow = base.get(key);
+            if (oldRow != null) {
+                unlinked.put(oldRow.getColumnAt(column), key);
+            }
+        }
+        for (Map.Entry<String, Storeable> entry : puts.entrySet()) {
+            Object value = entry.getValue().getColumnAt(column);
+            if (value == null) {
+                throw new IllegalStateException("The column contains null elements");
+            }
+            Storeable oldRow = base.get(entry.getKey());
+            if (oldRow != null) {
+                Object oldValue = oldRow.getColumnAt(column);
+                if (value.equals(oldValue)) {
+                    continue;
                 }
+                unlinked.put(oldValue, entry.getKey());
+            }
+            if (linked.put(value, entry.getKey()) != null) {
+                throw new IllegalStateException("The column contains equal elements");
+            }
+        }
+    }
 
-                indexes.put(value, key);
+    /**
+     * Applies a committed diff that passed {@link #check}: rows of {@code removes} leave the
+     * index, rows of {@code puts} are inserted or re-keyed when their column value changed.
+     * {@code base} is the version the diff was made against and {@code next} the one it produced.
+     * The entries are changed even if writing them to disk fails.
+     */
+    public void update(TableSnapshot base, TableSnapshot next, Map<String, Storeable> puts, Set<String> removes)
+            throws IOException {
+        Map<Object, String> unlinked = new HashMap<Object, String>();
+        Map<Object, String> linked = new HashMap<Object, String>();
+        collect(base, puts, removes, unlinked, linked);
+        List<String> changes = new ArrayList<String>();
+        lock.writeLock().lock();
+        try {
+            Map<Object, String> dropped = new HashMap<Object, String>();
+            for (Map.Entry<Object, String> entry : unlinked.entrySet()) {
+                if (entry.getValue().equals(indexes.get(entry.getKey()))) {
+                    dropped.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (!unlinked.isEmpty() || !linked.isEmpty()) {
+                // Counted before the entries change, so a reader that saw the change sees the count
+                ++modifications;
+                entriesDropped(modifications, dropped);
+            }
+            for (Map.Entry<Object, String> entry : dropped.entrySet()) {
+                indexes.remove(entry.getKey());
+                changes.add("- " + entry.getKey() + " " + entry.getValue());
+            }
+            for (Map.Entry<Object, String> entry : linked.entrySet()) {
+                indexes.put(entry.getKey(), entry.getValue());
+                changes.add("+ " + entry.getKey() + " " + entry.getValue());
+            }
+            indexedSnapshot = next;
+            if (!changes.isEmpty()) {
+                appendChanges(changes);
             }
         } finally {
             lock.writeLock().unlock();
         }
     }
 
+    /**
+     * Called under the write lock with the entries the change {@code version} is about to
+     * remove, before they are removed.
+     */
+    void entriesDropped(long version, Map<Object, String> entries) {
+    }
+
     public Storeable get(String key) {
         if ((key == null) || key.isEmpty()) {
             throw new IllegalArgumentException("The key is illegal");
         }
-        Object myKey = null;
+        Object myKey = parseKey(key);
         Storeable result = null;
         lock.readLock().lock();
         try {
-            if (indexTable.getColumnType(column).equals(String.class)) {
-                myKey = key;
-            } else {
-                myKey = DatabaseTableProvider.typesParser(key, indexTable.getColumnType(column));
-            }
-            result = indexTable.oldData.get(indexes.get(myKey));
+            result = indexedSnapshot().get(indexes.get(myKey));
         } finally {
             lock.readLock().unlock();
         }
         return result;
     }
+
+    /**
+     * Table version the entries match. Call under the lock.
+     */
+    TableSnapshot indexedSnapshot() {
+        TableSnapshot snapshot = indexedSnapshot;
+        return (snapshot == null) ? indexTable.snapshot() : snapshot;
+    }
+
+    /**
+     * All rows with the given column value. A unique index has at most one.
+     */
+    public Iterator<Storeable> getAll(String key) {
+        Storeable row = get(key);
+        if (row == null) {
+            return Collections.<Storeable>emptyList().iterator();
+        }
+        return Collections.singletonList(row).iterator();
+    }
+
+    Object parseKey(String key) {
+        if (indexTable.getColumnType(column).equals(String.class)) {
+            return key;
+        }
+        return DatabaseTableProvider.typesParser(key, indexTable.getColumnType(column));
+    }
+
+    /**
+     * Writes the whole index and drops the change log.
+     */
+    public void save() throws IOException {
+        lock.readLock().lock();
+        try {
+            File directory = getDirectory();
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Error making directory " + directory);
+            }
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(new File(directory, INFO_FILE)))) {
+                writer.write(tableName + " " + column + " " + getKind());
+            }
+            File tempFile = new File(directory, DATA_FILE + ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+                writeEntries(writer);
+            }
+            Files.move(tempFile.toPath(), new File(directory, DATA_FILE).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(new File(directory, CHANGES_FILE).toPath());
+            loggedChanges = 0;
+            unsaved = false;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void writeEntries(BufferedWriter writer) throws IOException {
+        for (Map.Entry<Object, String> entry : indexes.entrySet()) {
+            writer.write(entry.getKey() + " " + entry.getValue());
+            writer.newLine();
+        }
+    }
+
+    int entriesCount() {
+        return indexes.size();
+    }
+
+    void appendChanges(List<String> changes) throws IOException {
+        File directory = getDirectory();
+        try {
+            if (unsaved || !new File(directory, DATA_FILE).exists()) {
+                save();
+                return;
+            }
+            try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(directory, CHANGES_FILE), true), StandardCharsets.UTF_8))) {
+                for (String change : changes) {
+                    writer.write(change);
+                    writer.newLine();
+                }
+            }
+            loggedChanges += changes.size();
+            if (loggedChanges > entriesCount()) {
+                save();
+            }
+        } catch (IOException e) {
+            unsaved = true;
+            throw e;
+        }
+    }
+
+    public static DatabaseIndex load(File directory, Map<String, DatabaseTable> tables) throws IOException {
+        String indexInfo;
+        try (BufferedReader reader = new BufferedReader(new FileReader(new File(directory, INFO_FILE)))) {
+            indexInfo = reader.readLine();
+        }
+        if (indexInfo == null) {
+            throw new IOException("Invalid index database");
+        }
+        String[] indexArgs = indexInfo.trim().split("\\s");
+        DatabaseTable table = tables.get(indexArgs[0]);
+        if (indexArgs.length < 2 || indexArgs.length > 3 || table == null) {
+            throw new IOException("Invalid index database");
+        }
+        int column = Integer.parseInt(indexArgs[1]);
+        Class<?> type = table.getColumnType(column);
+        DatabaseIndex index;
+        if (indexArgs.length == 2 || indexArgs[2].equals("unique")) {
+            index = new DatabaseIndex(table, column, directory.getName(), new HashMap<Object, String>());
+        } else if (indexArgs[2].equals("ordered")) {
+            index = new OrderedDatabaseIndex(table, column, directory.getName(), new HashMap<Object, String>());
+        } else if (indexArgs[2].equals("multi")) {
+            index = new MultiDatabaseIndex(table, column, directory.getName());
+        } else {
+            throw new IOException("Unknown index kind " + indexArgs[2]);
+        }
+        for (String line : Files.readAllLines(new File(directory, DATA_FILE).toPath(), StandardCharsets.UTF_8)) {
+            index.apply(line, type, true);
+        }
+        File changesFile = new File(directory, CHANGES_FILE);
+        if (changesFile.exists()) {
+            for (String line : Files.readAllLines(changesFile.toPath(), StandardCharsets.UTF_8)) {
+                if (line.length() < 2) {
+                    throw new IOException("Invalid index database");
+                }
+                index.apply(line.substring(2), type, line.charAt(0) == '+');
+                ++index.loggedChanges;
+            }
+        }
+        index.finishLoading();
+        index.indexedSnapshot = table.snapshot();
+        return index;
+    }
+
+    private void apply(String line, Class<?> type, boolean link) throws IOException {
+        int separator = line.lastIndexOf(' ');
+        if (separator < 0) {
+            throw new IOException("Index has wrong type");
+        }
+        String value = line.substring(0, separator);
+        Object indexValue = (type == String.class) ? value : DatabaseTableProvider.typesParser(value, type);
+        loadEntry(indexValue, line.substring(separator + 1), link);
+    }
+
+    void loadEntry(Object value, String key, boolean link) {
+        if (link) {
+            indexes.put(value, key);
+        } else {
+            indexes.remove(value);
+        }
+    }
+
+    void finishLoading() {
+    }
 }
@@ -36,6 +36,7 @@ public class DatabaseServer {
         context.addServlet(new ServletHolder(new CommandSizeServlet(transactionWorker)), "/size");
         server.setHandler(context);
         server.start();
+        transactionWorker.startReaper(TransactionWorker.DEFAULT_IDLE_TIMEOUT);
     }
 
     public int getPortNumber() {
@@ -51,6 +52,7 @@ public class DatabaseServer {
         } catch (Exception e) {
             //
         }
+        transactionWorker.stopReaper();
         server = null;
     }
 
@@ -4,31 +4,59 @@ import ru.fizteh.fivt.storage.structured.ColumnFormatException;
 import ru.fizteh.fivt.storage.structured.Storeable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Row stored by its {@link RowLayout}: primitive columns are kept unboxed in int and long
+ * arrays and a bitmap marks null columns, so a row of a few numbers takes tens of bytes.
+ * {@link #setColumns} does not check types, so a row filled with foreign values keeps them
+ * boxed as given.
+ */
 public class DatabaseStoreable implements Storeable {
-    List<Class<?>> classes = new ArrayList<>();
-    List<Object> columns = new ArrayList<>();
+    private RowLayout layout;
+    private long nulls;
+    private long[] moreNulls;
+    private int[] narrow;
+    private long[] wide;
+    private String[] strings;
+    private Object[] raw;
 
     public DatabaseStoreable(List<Class<?>> classList) {
-        this.classes = classList;
-        for (int i = 0; i < classes.size(); i++) {
-            columns.add(null);
+        init(RowLayout.forTypes(classList));
+    }
+
+    private void init(RowLayout newLayout) {
+        layout = newLayout;
+        nulls = -1L;
+        moreNulls = null;
+        if (layout.size() > 64) {
+            moreNulls = new long[(layout.size() - 1) / 64];
+            Arrays.fill(moreNulls, -1L);
         }
+        narrow = (layout.narrowCount == 0) ? null : new int[layout.narrowCount];
+        wide = (layout.wideCount == 0) ? null : new long[layout.wideCount];
+        strings = (layout.stringCount == 0) ? null : new String[layout.stringCount];
+        raw = null;
     }
 
     @Override
     public int hashCode() {
-        return this.hashCode();
+        int result = 0;
+        for (int i = 0; i < layout.size(); i++) {
+            Object value = getColumnAt(i);
+            result = result * 31 + ((value == null) ? 0 : value.hashCode());
+        }
+        return result;
     }
 
     @Override
     public boolean equals(Object obj) {
-        if (obj == null) {
+        if (!(obj instanceof Storeable)) {
             return false;
         }
         Storeable st = (Storeable) obj;
-        for (int i = 0; i < columns.size(); i++) {
+        for (int i = 0; i < layout.size(); i++) {
             Object value1 = this.getColumnAt(i);
             Object value2 = st.getColumnAt(i);
             if (value1 == null && value2 == null) {
@@ -45,92 +73,235 @@ public class DatabaseStoreable implements Storeable {
     }
 
     public void indexOfBounds(int columnNum) {
-        if (columnNum < 0 || columnNum >= classes.size()) {
+        if (columnNum < 0 || columnNum >= layout.size()) {
             throw new IndexOutOfBoundsException(String.format("Index %d is out of bounds", columnNum));
         }
     }
 
+    boolean isNull(int columnNum) {
+        if (columnNum < 64) {
+            return (nulls & (1L << columnNum)) != 0;
+        }
+        return (moreNulls[columnNum / 64 - 1] & (1L << (columnNum % 64))) != 0;
+    }
+
+    private void setNull(int columnNum, boolean isNull) {
+        if (columnNum < 64) {
+            nulls = isNull ? (nulls | (1L << columnNum)) : (nulls & ~(1L << columnNum));
+            return;
+        }
+        int word = columnNum / 64 - 1;
+        long bit = 1L << (columnNum % 64);
+        moreNulls[word] = isNull ? (moreNulls[word] | bit) : (moreNulls[word] & ~bit);
+    }
+
     public void setColumnAt(int columnNum, Object value) throws ColumnFormatException, IndexOutOfBoundsException {
         indexOfBounds(columnNum);
-        if (value != null) {
-            isColumnTypeValid(columnNum, value.getClass());
-            if ((value.getClass().getName().equals("java.lang.String"))
-                    && ((String) value).trim().isEmpty()) {
-                columns.set(columnNum, value);
-                return;
+        if (raw != null) {
+            if (value != null) {
+                isColumnTypeValid(columnNum, value.getClass());
+            }
+            raw[columnNum] = value;
+            return;
+        }
+        if (value == null) {
+            setNull(columnNum, true);
+            if (layout.kinds[columnNum] == RowLayout.STRING) {
+                strings[layout.slots[columnNum]] = null;
             }
-            isColumnTypeValid(columnNum, value.getClass());
+            return;
         }
-        columns.set(columnNum, value);
+        isColumnTypeValid(columnNum, value.getClass());
+        Class<?> type = layout.columnTypes[columnNum];
+        if (type == Integer.class) {
+            setInt(columnNum, (Integer) value);
+        } else if (type == Long.class) {
+            setLong(columnNum, (Long) value);
+        } else if (type == Byte.class) {
+            setByte(columnNum, (Byte) value);
+        } else if (type == Float.class) {
+            setFloat(columnNum, (Float) value);
+        } else if (type == Double.class) {
+            setDouble(columnNum, (Double) value);
+        } else if (type == Boolean.class) {
+            setBoolean(columnNum, (Boolean) value);
+        } else {
+            setString(columnNum, (String) value);
+        }
+    }
+
+    void setInt(int columnNum, int value) {
+        checkType(columnNum, Integer.class);
+        narrow[layout.slots[columnNum]] = value;
+        setNull(columnNum, false);
+    }
+
+    void setLong(int columnNum, long value) {
+        checkType(columnNum, Long.class);
+        wide[layout.slots[columnNum]] = value;
+        setNull(columnNum, false);
+    }
+
+    void setByte(int columnNum, byte value) {
+        checkType(columnNum, Byte.class);
+        narrow[layout.slots[columnNum]] = value;
+        setNull(columnNum, false);
+    }
+
+    void setFloat(int columnNum, float value) {
+        checkType(columnNum, Float.class);
+        narrow[layout.slots[columnNum]] = Float.floatToRawIntBits(value);
+        setNull(columnNum, false);
+    }
+
+    void setDouble(int columnNum, double value) {
+        checkType(columnNum, Double.class);
+        wide[layout.slots[columnNum]] = Double.doubleToRawLongBits(value);
+        setNull(columnNum, false);
+    }
+
+    void setBoolean(int columnNum, boolean value) {
+        checkType(columnNum, Boolean.class);
+        narrow[layout.slots[columnNum]] = value ? 1 : 0;
+        setNull(columnNum, false);
+    }
+
+    void setString(int columnNum, String value) {
+        checkType(columnNum, String.class);
+        strings[layout.slots[columnNum]] = value;
+        setNull(columnNum, value == null);
     }
 
     public Object getColumnAt(int columnNum) throws IndexOutOfBoundsException {
         indexOfBounds(columnNum);
-        return columns.get(columnNum);
+        if (raw != null) {
+            return raw[columnNum];
+        }
+        if (isNull(columnNum)) {
+            return null;
+        }
+        Class<?> type = layout.columnTypes[columnNum];
+        int slot = layout.slots[columnNum];
+        if (type == Integer.class) {
+            return narrow[slot];
+        } else if (type == Long.class) {
+            return wide[slot];
+        } else if (type == Byte.class) {
+            return (byte) narrow[slot];
+        } else if (type == Float.class) {
+            return Float.intBitsToFloat(narrow[slot]);
+        } else if (type == Double.class) {
+            return Double.longBitsToDouble(wide[slot]);
+        } else if (type == Boolean.class) {
+            return narrow[slot] != 0;
+        }
+        return strings[slot];
     }
 
     public Integer getIntAt(int columnNum) throws ColumnFormatException, IndexOutOfBoundsException {
-        indexOfBounds(columnNum);
-        isColumnTypeValid(columnNum, Integer.class);
-        return (Integer) columns.get(columnNum);
+        checkType(columnNum, Integer.class);
+        if (raw != null) {
+            return (Integer) raw[columnNum];
+        }
+        return isNull(columnNum) ? null : narrow[layout.slots[columnNum]];
     }
 
     public Long getLongAt(int columnNum) throws ColumnFormatException, IndexOutOfBoundsException {
-        indexOfBounds(columnNum);
-        isColumnTypeValid(columnNum, Long.class);
-        return (Long) columns.get(columnNum);
+        checkType(columnNum, Long.class);
+        if (raw != null) {
+            return (Long) raw[columnNum];
+        }
+        return isNull(columnNum) ? null : wide[layout.slots[columnNum]];
     }
 
     public Byte getByteAt(int columnNum) throws ColumnFormatException, IndexOutOfBoundsException {
-        indexOfBounds(columnNum);
-        isColumnTypeValid(columnNum, Byte.class);
-        return (Byte) columns.get(columnNum);
+        checkType(columnNum, Byte.class);
+        if (raw != null) {
+            return (Byte) raw[columnNum];
+        }
+        return isNull(columnNum) ? null : (byte) narrow[layout.slots[columnNum]];
     }
 
     public Float getFloatAt(int columnNum) throws ColumnFormatException, IndexOutOfBoundsException {
-        indexOfBounds(columnNum);
-        isColumnTypeValid(columnNum, Float.class);
-        return (Float) columns.get(columnNum);
+        checkType(columnNum, Float.class);
+        if (raw != null) {
+            return (Float) raw[columnNum];
+        }
+        return isNull(columnNum) ? null : Float.intBitsToFloat(narrow[layout.slots[columnNum]]);
     }
 
     public Double getDoubleAt(int columnNum) throws ColumnFormatException, IndexOutOfBoundsException {
-        indexOfBounds(columnNum);
-        isColumnTypeValid(columnNum, Double.class);
-        return (Double) columns.get(columnNum);
+        checkType(columnNum, Double.class);
+        if (raw != null) {
+            return (Double) raw[columnNum];
+        }
+        return isNull(columnNum) ? null : Double.longBitsToDouble(wide[layout.slots[columnNum]]);
     }
 
     public Boolean getBooleanAt(int columnNum) throws ColumnFormatException, IndexOutOfBoundsException {
-        indexOfBounds(columnNum);
-        isColumnTypeValid(columnNum, Boolean.class);
-        return (Boolean) columns.get(columnNum);
+        checkType(columnNum, Boolean.class);
+        if (raw != null) {
+            return (Boolean) raw[columnNum];
+        }
+        return isNull(columnNum) ? null : narrow[layout.slots[columnNum]] != 0;
     }
 
     public String getStringAt(int columnNum) throws ColumnFormatException, IndexOutOfBoundsException {
-        indexOfBounds(columnNum);
-        isColumnTypeValid(columnNum, String.class);
-        return (String) columns.get(columnNum);
+        checkType(columnNum, String.class);
+        if (raw != null) {
+            return (String) raw[columnNum];
+        }
+        return strings[layout.slots[columnNum]];
     }
 
     public void addColumn(Class<?> columnType) {
+        List<Object> values = new ArrayList<Object>(layout.size() + 1);
+        for (int i = 0; i < layout.size(); i++) {
+            values.add(getColumnAt(i));
+        }
+        List<Class<?>> classes = new ArrayList<Class<?>>(layout.types);
         classes.add(columnType);
-        columns.add(null);
+        boolean boxed = raw != null;
+        init(RowLayout.forTypes(classes));
+        if (boxed) {
+            values.add(null);
+            raw = values.toArray();
+            return;
+        }
+        for (int i = 0; i < values.size(); i++) {
+            setColumnAt(i, values.get(i));
+        }
     }
 
     public void setColumns(List<?> values) throws ColumnFormatException, IndexOutOfBoundsException {
-        if (values.size() != classes.size()) {
+        if (values.size() != layout.size()) {
             throw new IndexOutOfBoundsException();
         }
-        columns.clear();
-
+        init(layout);
+        for (int i = 0; i < values.size(); i++) {
+            Object value = values.get(i);
+            if (value != null && !layout.columnTypes[i].isInstance(value)) {
+                raw = values.toArray();
+                return;
+            }
+        }
         for (int i = 0; i < values.size(); i++) {
-            columns.add(values.get(i));
+            setColumnAt(i, values.get(i));
+        }
+    }
+
+    private void checkType(int columnNum, Class<?> expected) {
+        indexOfBounds(columnNum);
+        if (layout.columnTypes[columnNum] != expected) {
+            throw new ColumnFormatException(String.format("Incorrect type: expected %s, but is %s",
+                    layout.columnTypes[columnNum].getName(), expected.getName()));
         }
     }
 
     private void isColumnTypeValid(int columnIndex, Class<?> value) throws ColumnFormatException {
-        if (!value.isAssignableFrom(classes.get(columnIndex))) {
+        if (!value.isAssignableFrom(layout.columnTypes[columnIndex])) {
             throw new ColumnFormatException(String.format("Incorrect type: expected %s, but is %s",
-                    classes.get(columnIndex).getName(), value.getName()));
+                    layout.columnTypes[columnIndex].getName(), value.getName()));
         }
     }
 
@@ -155,6 +326,10 @@ public class DatabaseStoreable implements Storeable {
 
     @Override
     public String toString() {
+        List<Object> columns = new ArrayList<Object>(layout.size());
+        for (int i = 0; i < layout.size(); i++) {
+            columns.add(getColumnAt(i));
+        }
         return String.format("%s[%s]", getClass().getSimpleName(), join(columns, false, ","));
     }
 }
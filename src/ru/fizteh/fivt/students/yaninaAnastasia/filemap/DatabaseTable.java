@@ -8,32 +8,40 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class DatabaseTable implements Table, AutoCloseable {
-    public HashMap<String, Storeable> oldData;
+    AtomicReference<TableSnapshot> committed;
+    CommitLog commitLog;
+    Set<Integer> pendingBuckets;
+    boolean compactionScheduled;
     public ThreadLocal<Long> transactionId;
     private String tableName;
     public List<Class<?>> columnTypes;
+    boolean binaryRows = false;
     DatabaseTableProvider provider;
     private ReadWriteLock transactionLock = new ReentrantReadWriteLock(true);
+    private Queue<CommitRequest> commitQueue = new ConcurrentLinkedQueue<CommitRequest>();
     volatile boolean isClosed;
 
 
     public DatabaseTable(String name, List<Class<?>> colTypes, DatabaseTableProvider providerRef) {
         isClosed = false;
         this.tableName = name;
-        oldData = new HashMap<String, Storeable>();
-        transactionId = new ThreadLocal<Long>() {
-            @Override
-            public Long initialValue() {
-                return TransactionPool.getInstance().createTransaction();
-            }
-        };
+        committed = new AtomicReference<TableSnapshot>(new TableSnapshot());
+        // Filled on the first change, a thread that only reads works on the committed version
+        transactionId = new ThreadLocal<Long>();
         columnTypes = colTypes;
         provider = providerRef;
+        commitLog = new CommitLog(new File(provider.getDatabaseDirectory(), tableName));
+        pendingBuckets = new HashSet<Integer>();
         for (final Class<?> columnType : columnTypes) {
             if (columnType == null || ColumnTypes.fromTypeToName(columnType) == null) {
                 throw new IllegalArgumentException("unknown column type");
@@ -45,7 +53,12 @@ public class DatabaseTable implements Table, AutoCloseable {
         this.tableName = other.tableName;
         this.columnTypes = other.columnTypes;
         this.provider = other.provider;
-        this.oldData = other.oldData;
+        this.committed = other.committed;
+        this.transactionLock = other.transactionLock;
+        this.commitQueue = other.commitQueue;
+        this.binaryRows = other.binaryRows;
+        this.commitLog = other.commitLog;
+        this.pendingBuckets = other.pendingBuckets;
         isClosed = false;
         this.transactionId = other.transactionId;
     }
@@ -60,6 +73,29 @@ public class DatabaseTable implements Table, AutoCloseable {
         return (keyByte / 16) % 16;
     }
 
+    public static int getBucketNum(String key) {
+        return getDirectoryNum(key) * 16 + getFileNum(key);
+    }
+
+    /**
+     * Keeps the committed rows of this table outside the Java heap. Only for a table that is
+     * still empty.
+     */
+    void useOffHeapStorage() {
+        committed.set(new OffHeapSnapshot(columnTypes));
+    }
+
+    /**
+     * Held by commits while they persist and publish a new version.
+     */
+    Lock commitLock() {
+        return transactionLock.writeLock();
+    }
+
+    public TableSnapshot snapshot() {
+        return committed.get();
+    }
+
     public String getName() {
         isCloseChecker();
         if (tableName == null) {
@@ -68,30 +104,60 @@ public class DatabaseTable implements Table, AutoCloseable {
         return tableName;
     }
 
+    /**
+     * Transaction of the given id. Throws IllegalStateException if it is already committed or
+     * rolled back.
+     */
+    private TransactionWithModifies transaction(long id) {
+        TransactionWithModifies transaction = TransactionPool.getInstance().getTransaction(id);
+        if (transaction == null) {
+            throw new IllegalStateException("Transaction " + id + " is not active");
+        }
+        return transaction;
+    }
+
+    /**
+     * This thread's transaction, or null if the thread has not changed anything since its last
+     * commit or rollback.
+     */
+    private TransactionWithModifies implicitTransaction() {
+        Long id = transactionId.get();
+        return (id == null) ? null : transaction(id);
+    }
+
+    private long implicitTransactionId() {
+        Long id = transactionId.get();
+        if (id == null) {
+            id = TransactionPool.getInstance().createImplicitTransaction();
+            transactionId.set(id);
+        }
+        return id;
+    }
+
     @Override
     public Storeable get(String key) {
-        return get(key, transactionId.get());
+        return get(key, implicitTransaction());
     }
 
     public Storeable get(String key, long transactionId) throws IllegalArgumentException {
+        return get(key, transaction(transactionId));
+    }
+
+    private Storeable get(String key, TransactionWithModifies transaction) {
         isCloseChecker();
         if (key == null || (key.isEmpty() || key.trim().isEmpty())) {
             throw new IllegalArgumentException("Table name cannot be null");
         }
-
-        TransactionWithModifies transaction = TransactionPool.getInstance().getTransaction(transactionId);
+        if (transaction == null) {
+            return committed.get().get(key);
+        }
         if (transaction.modifiedData.containsKey(key)) {
             return transaction.modifiedData.get(key);
         }
         if (transaction.deletedKeys.contains(key)) {
             return null;
         }
-        transactionLock.readLock().lock();
-        try {
-            return oldData.get(key);
-        } finally {
-            transactionLock.readLock().unlock();
-        }
+        return committed.get().get(key);
     }
 
     public Storeable put(String key, Storeable value, long transactionId) throws IllegalArgumentException {
@@ -118,21 +184,17 @@ public class DatabaseTable implements Table, AutoCloseable {
             }
         }
         Storeable oldValue = null;
-        TransactionWithModifies transaction = TransactionPool.getInstance().getTransaction(transactionId);
+        TransactionWithModifies transaction = transaction(transactionId);
+        TableSnapshot snapshot = committed.get();
         oldValue = transaction.modifiedData.get(key);
         if (oldValue == null && !transaction.deletedKeys.contains(key)) {
-            transactionLock.readLock().lock();
-            try {
-                oldValue = oldData.get(key);
-            } finally {
-                transactionLock.readLock().unlock();
-            }
+            oldValue = snapshot.get(key);
         }
         transaction.modifiedData.put(key, value);
         if (transaction.deletedKeys.contains(key)) {
             transaction.deletedKeys.remove(key);
         }
-        transaction.uncommittedChanges = changesCount(transactionId);
+        transaction.uncommittedChanges = changesCount(transaction, snapshot);
         return oldValue;
     }
 
@@ -142,84 +204,180 @@ public class DatabaseTable implements Table, AutoCloseable {
             throw new IllegalArgumentException("Key name cannot be null");
         }
         Storeable oldValue = null;
-        TransactionWithModifies transaction = TransactionPool.getInstance().getTransaction(transactionId);
+        TransactionWithModifies transaction = transaction(transactionId);
+        TableSnapshot snapshot = committed.get();
         oldValue = transaction.modifiedData.get(key);
         if (oldValue == null && !transaction.deletedKeys.contains(key)) {
-            transactionLock.readLock().lock();
-            try {
-                oldValue = oldData.get(key);
-            } finally {
-                transactionLock.readLock().unlock();
-            }
+            oldValue = snapshot.get(key);
         }
         if (transaction.modifiedData.containsKey(key)) {
             transaction.modifiedData.remove(key);
-            transactionLock.readLock().lock();
-            try {
-                if (oldData.containsKey(key)) {
-                    transaction.deletedKeys.add(key);
-                }
-            } finally {
-                transactionLock.readLock().unlock();
+            if (snapshot.containsKey(key)) {
+                transaction.deletedKeys.add(key);
             }
         } else {
             transaction.deletedKeys.add(key);
         }
-        transaction.uncommittedChanges = changesCount(transactionId);
+        transaction.uncommittedChanges = changesCount(transaction, snapshot);
         return oldValue;
     }
 
     public int size(long transactionId) {
+        return size(transaction(transactionId));
+    }
+
+    private int size(TransactionWithModifies transaction) {
         isCloseChecker();
-        transactionLock.readLock().lock();
-        try {
-            return oldData.size() + diffSize(transactionId);
-        } finally {
-            transactionLock.readLock().unlock();
+        TableSnapshot snapshot = committed.get();
+        if (transaction == null) {
+            return snapshot.size();
         }
+        return snapshot.size() + diffSize(transaction, snapshot);
     }
 
-    public int commit(long transactionId) {
+    public int commit(long transactionId) throws IOException {
         isCloseChecker();
-        int recordsCommitted = 0;
-        TransactionWithModifies transaction = TransactionPool.getInstance().getTransaction(transactionId);
+        CommitRequest request = new CommitRequest(transaction(transactionId));
+        commitQueue.add(request);
         transactionLock.writeLock().lock();
         try {
-            recordsCommitted = Math.abs(changesCount(transactionId));
-            for (String keyToDelete : transaction.deletedKeys) {
-                oldData.remove(keyToDelete);
+            if (!request.done) {
+                commitBatch();
             }
-            for (String keyToAdd : transaction.modifiedData.keySet()) {
-                if (transaction.modifiedData.get(keyToAdd) != null) {
-                    oldData.put(keyToAdd, transaction.modifiedData.get(keyToAdd));
+        } finally {
+            transactionLock.writeLock().unlock();
+        }
+        return request.getResult();
+    }
+
+    /**
+     * Group commit: takes every commit queued so far, applies their diffs in queue order and
+     * persists the union with one write (or one log record). Each caller still gets the count of
+     * rows its own transaction changed. Must be called under the write lock.
+     */
+    private void commitBatch() {
+        List<CommitRequest> batch = new ArrayList<CommitRequest>();
+        CommitRequest request;
+        while ((request = commitQueue.poll()) != null) {
+            batch.add(request);
+        }
+        commitRequests(batch);
+    }
+
+    private void commitRequests(List<CommitRequest> batch) {
+        TableSnapshot base = committed.get();
+        Set<String> removedKeys = new HashSet<String>();
+        Map<String, Storeable> changedData = new HashMap<String, Storeable>();
+        boolean changed = false;
+        for (CommitRequest current : batch) {
+            TransactionWithModifies transaction = current.transaction;
+            Set<String> keys = new HashSet<String>(transaction.modifiedData.keySet());
+            keys.addAll(transaction.deletedKeys);
+            current.result = 0;
+            for (String key : keys) {
+                Storeable oldValue;
+                if (changedData.containsKey(key)) {
+                    oldValue = changedData.get(key);
+                } else if (removedKeys.contains(key)) {
+                    oldValue = null;
+                } else {
+                    oldValue = base.get(key);
                 }
+                Storeable value = transaction.modifiedData.get(key);
+                if (compare(oldValue, value)) {
+                    continue;
+                }
+                ++current.result;
+                if (value == null) {
+                    changedData.remove(key);
+                    if (base.containsKey(key)) {
+                        removedKeys.add(key);
+                    }
+                } else {
+                    removedKeys.remove(key);
+                    changedData.put(key, value);
+                }
+            }
+            changed |= current.result != 0;
+        }
+        List<DatabaseIndex> indexes = changed ? provider.getIndexes(tableName) : new ArrayList<DatabaseIndex>();
+        try {
+            for (DatabaseIndex index : indexes) {
+                index.check(base, changedData, removedKeys);
+            }
+        } catch (IllegalStateException e) {
+            if (batch.size() == 1) {
+                batch.get(0).error = e;
+                batch.get(0).done = true;
+                return;
             }
-            transaction.deletedKeys.clear();
-            transaction.modifiedData.clear();
-            TableBuilder tableBuilder = new TableBuilder(provider, this);
-            save(tableBuilder);
-            transaction.uncommittedChanges = 0;
-            for (String name : provider.indexMap.keySet()) {
-                if ((provider.indexMap.get(name).indexTable.getName().equals(this.getName()))
-                        && (recordsCommitted != 0)) {
-                    provider.indexMap.get(name).updateIndex();
+            // Only the transactions that break an index should fail, so commit them one by one
+            for (CommitRequest current : batch) {
+                commitRequests(Collections.singletonList(current));
+            }
+            return;
+        }
+        Set<Integer> dirtyBuckets = new HashSet<Integer>();
+        for (String key : removedKeys) {
+            dirtyBuckets.add(getBucketNum(key));
+        }
+        for (String key : changedData.keySet()) {
+            dirtyBuckets.add(getBucketNum(key));
+        }
+        TableSnapshot next;
+        try {
+            next = base.withChanges(changedData, removedKeys);
+            if (provider.logCommits) {
+                if (!dirtyBuckets.isEmpty()) {
+                    Map<String, byte[]> puts = new HashMap<String, byte[]>();
+                    for (Map.Entry<String, Storeable> entry : changedData.entrySet()) {
+                        puts.put(entry.getKey(), encodeValue(entry.getValue()));
+                    }
+                    commitLog.append(puts, removedKeys);
+                    pendingBuckets.addAll(dirtyBuckets);
+                    if (!compactionScheduled && commitLog.length() > provider.compactionThreshold) {
+                        compactionScheduled = true;
+                        provider.scheduleCompaction(this);
+                    }
+                }
+            } else {
+                for (int bucket : dirtyBuckets) {
+                    if (!saveBucket(bucket, next)) {
+                        throw new IOException("Error while saving table " + tableName);
+                    }
                 }
             }
-            if (!indexSave()) {
-                throw new IllegalArgumentException("Wrong type of the database");
+            committed.set(next);
+            for (CommitRequest current : batch) {
+                current.transaction.deletedKeys.clear();
+                current.transaction.modifiedData.clear();
+                current.transaction.uncommittedChanges = 0;
             }
-
+        } catch (IOException | RuntimeException e) {
+            for (CommitRequest current : batch) {
+                current.error = e;
+            }
+            return;
         } finally {
-            transactionLock.writeLock().unlock();
+            for (CommitRequest current : batch) {
+                current.done = true;
+            }
+        }
+        // The rows are committed already: an index that cannot be written is rewritten on its next update
+        for (DatabaseIndex index : indexes) {
+            try {
+                index.update(base, next, changedData, removedKeys);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error while updating index " + index.getName() + ": " + e.getMessage());
+            }
         }
-        return recordsCommitted;
     }
 
     public int rollback(long transactionId) {
         isCloseChecker();
-        int recordsDeleted = Math.abs(changesCount(transactionId));
+        TransactionWithModifies transaction = transaction(transactionId);
+        int recordsDeleted = Math.abs(changesCount(transaction, committed.get()));
 
-        TransactionWithModifies transaction = TransactionPool.getInstance().getTransaction(transactionId);
         transaction.deletedKeys.clear();
         transaction.modifiedData.clear();
 
@@ -237,156 +395,101 @@ public class DatabaseTable implements Table, AutoCloseable {
     }
 
     public Storeable storeableGet(String key) {
-        transactionLock.readLock().lock();
-        try {
-            return oldData.get(key);
-        } finally {
-            transactionLock.readLock().unlock();
-        }
+        return committed.get().get(key);
     }
 
     public void storeablePut(String key, Storeable value) {
+        committed.get().put(key, value);
+    }
+
+    public void storeableRemove(String key) {
+        committed.get().remove(key);
+    }
+
+    /**
+     * Folds the commit log into the shard files: rewrites every bucket changed since the last
+     * compaction and then drops the log.
+     */
+    public void compact() throws IOException {
         transactionLock.writeLock().lock();
         try {
-            oldData.put(key, value);
+            compactionScheduled = false;
+            if (!new File(provider.getDatabaseDirectory(), tableName).exists()) {
+                pendingBuckets.clear();
+                return;
+            }
+            TableSnapshot snapshot = committed.get();
+            for (int bucket : pendingBuckets) {
+                if (!saveBucket(bucket, snapshot)) {
+                    throw new IOException("Error while compacting table " + tableName);
+                }
+            }
+            pendingBuckets.clear();
+            commitLog.clear();
         } finally {
             transactionLock.writeLock().unlock();
         }
     }
 
-    public boolean indexSave() {
-        File indexDir = new File(provider.getDatabaseDirectory(), "indexes");
-        if (indexDir.exists()) {
-            try {
-                DatabaseTableProvider.recRemove(indexDir);
-            } catch (IOException e) {
-                return false;
-            }
-        }
-        if (!indexDir.mkdir()) {
-            System.err.println("Error making directory");
-            return false;
+    public boolean save(TableBuilder tableBuilder) {
+        if (tableName.equals("")) {
+            return true;
         }
-
-        for (String key : provider.indexMap.keySet()) {
-            if (provider.indexMap.get(key).indexTable.getName().equals(this.getName())) {
-                File indexTable = new File(indexDir, key);
-                if (!indexTable.mkdir()) {
-                    System.err.println("Error making directory");
-                    return false;
-                }
-                File tableInfo = new File(indexTable, "indexInfo.tsv");
-                try (BufferedWriter writer = new BufferedWriter(new FileWriter(tableInfo))) {
-                    tableInfo.createNewFile();
-                    StringBuilder sb = new StringBuilder();
-                    sb.append(key);
-                    sb.append(" ");
-                    sb.append(provider.indexMap.get(key).column);
-                    String index = sb.toString();
-                    writer.write(index);
-                } catch (IOException e) {
-                    System.err.println("error writing table info file");
-                    return false;
-                }
-                File tableIndex = new File(indexTable, "tableIndex.tsv");
-                try (BufferedWriter writer = new BufferedWriter(new FileWriter(tableIndex))) {
-                    tableIndex.createNewFile();
-                    StringBuilder sb = new StringBuilder();
-                    for (Object secondaryKey : provider.indexMap.get(key).indexes.keySet()) {
-                        sb.append(secondaryKey);
-                        sb.append(" ");
-                        sb.append(provider.indexMap.get(key).indexes.get(secondaryKey));
-                        String index = sb.toString();
-                        writer.write(index);
-                        writer.newLine();
-                        sb.delete(0, sb.capacity());
-                    }
-                } catch (IOException e) {
-                    System.err.println("error writing index info file");
+        transactionLock.writeLock().lock();
+        try {
+            TableSnapshot snapshot = committed.get();
+            for (int bucket = 0; bucket < TableSnapshot.BUCKETS_COUNT; bucket++) {
+                if (!saveBucket(bucket, snapshot)) {
                     return false;
                 }
             }
+        } finally {
+            transactionLock.writeLock().unlock();
         }
         return true;
     }
 
-    public boolean save(TableBuilder tableBuilder) {
-        transactionLock.readLock().lock();
+    /**
+     * Rewrites a single N.dir/M.dat file from the given version of the data. The new contents are written
+     * to a temporary file first and then moved over the old one, so a failed commit never
+     * leaves a half-written bucket behind. Must be called under the write lock.
+     */
+    boolean saveBucket(int bucket, TableSnapshot snapshot) {
+        File directory = new File(new File(provider.getDatabaseDirectory(), tableName),
+                String.format("%d.dir", bucket / 16));
+        File file = new File(directory, String.format("%d.dat", bucket % 16));
+        Map<String, Storeable> data = snapshot.getBucket(bucket);
         try {
-            if (oldData == null) {
-                return true;
-            }
-        } finally {
-            transactionLock.readLock().unlock();
-        }
-        if (tableName.equals("")) {
-            return true;
-        }
-        File tablePath = new File(provider.getDatabaseDirectory(), tableName);
-        for (int i = 0; i < 16; i++) {
-            String directoryName = String.format("%d.dir", i);
-            File path = new File(tablePath, directoryName);
-            boolean isDirEmpty = true;
-            ArrayList<HashSet<String>> keys = new ArrayList<HashSet<String>>(16);
-            for (int j = 0; j < 16; j++) {
-                keys.add(new HashSet<String>());
-            }
-            transactionLock.readLock().lock();
-            try {
-                for (String step : oldData.keySet()) {
-                    int nDirectory = getDirectoryNum(step);
-                    if (nDirectory == i) {
-                        int nFile = getFileNum(step);
-                        keys.get(nFile).add(step);
-                        isDirEmpty = false;
-                    }
-                }
-            } finally {
-                transactionLock.readLock().unlock();
-            }
-
-            if (isDirEmpty) {
-                try {
-                    if (path.exists()) {
-                        DatabaseTableProvider.recRemove(path);
-                    }
-                } catch (IOException e) {
-                    return false;
-                }
-                continue;
-            }
-            if (path.exists()) {
-                File file = path;
-                try {
-                    if (!DatabaseTableProvider.recRemove(file)) {
-                        System.err.println("File was not deleted");
-                        return false;
-                    }
-                } catch (IOException e) {
+            if (data.isEmpty()) {
+                Files.deleteIfExists(file.toPath());
+                String[] rest = directory.list();
+                if (rest != null && rest.length == 0 && !directory.delete()) {
                     return false;
                 }
+                return true;
             }
-            if (!path.mkdir()) {
+            if (!directory.exists() && !directory.mkdir()) {
                 return false;
             }
-            for (int j = 0; j < 16; j++) {
-                File filePath = new File(path, String.format("%d.dat", j));
-                try {
-                    saveTable(keys.get(j), filePath.toString(), tableBuilder);
-                } catch (IOException e) {
-                    return false;
-                }
+            File tempFile = new File(directory, String.format("%d.dat.tmp", bucket % 16));
+            if (!saveTable(data, tempFile.toString())) {
+                return false;
             }
+            Files.move(tempFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            return false;
         }
         return true;
     }
 
     public int getUncommittedChangesCount() {
-        return TransactionPool.getInstance().getTransaction(transactionId.get()).uncommittedChanges;
+        TransactionWithModifies transaction = implicitTransaction();
+        return (transaction == null) ? 0 : transaction.uncommittedChanges;
     }
 
-    public boolean saveTable(Set<String> keys, String path, TableBuilder tableBuilder) throws IOException {
-        if (keys.isEmpty()) {
+    public boolean saveTable(Map<String, Storeable> data, String path) throws IOException {
+        if (data.isEmpty()) {
             try {
                 Files.delete(Paths.get(path));
             } catch (IOException e) {
@@ -397,20 +500,21 @@ public class DatabaseTable implements Table, AutoCloseable {
         try (RandomAccessFile temp = new RandomAccessFile(path, "rw")) {
             long offset = 0;
             temp.setLength(0);
-            for (String step : keys) {
-                offset += step.getBytes(StandardCharsets.UTF_8).length + 5;
+            List<byte[]> values = new ArrayList<byte[]>(data.size());
+            for (Map.Entry<String, Storeable> entry : data.entrySet()) {
+                offset += entry.getKey().getBytes(StandardCharsets.UTF_8).length + 5;
+                values.add(encodeValue(entry.getValue()));
             }
-            for (String step : keys) {
+            int index = 0;
+            for (String step : data.keySet()) {
                 byte[] bytesToWrite = step.getBytes(StandardCharsets.UTF_8);
                 temp.write(bytesToWrite);
                 temp.writeByte(0);
                 temp.writeInt((int) offset);
-                String myOffset = tableBuilder.get(step);
-                offset += myOffset.getBytes(StandardCharsets.UTF_8).length;
+                offset += values.get(index++).length;
             }
-            for (String key : keys) {
-                String value = tableBuilder.get(key);
-                temp.write(value.getBytes(StandardCharsets.UTF_8));
+            for (byte[] value : values) {
+                temp.write(value);
             }
             temp.close();
         } catch (IOException e) {
@@ -419,54 +523,54 @@ public class DatabaseTable implements Table, AutoCloseable {
         return true;
     }
 
-    private int changesCount(long transactionId) {
+    private int changesCount(TransactionWithModifies transaction, TableSnapshot snapshot) {
         HashSet<String> tempSet = new HashSet<>();
         HashSet<String> toRemove = new HashSet<>();
-        TransactionWithModifies transaction = TransactionPool.getInstance().getTransaction(transactionId);
         tempSet.addAll(transaction.modifiedData.keySet());
         tempSet.addAll(transaction.deletedKeys);
-        transactionLock.readLock().lock();
-        try {
-            for (String key : tempSet) {
-                if (tempSet.contains(key) && compare(oldData.get(key), transaction.modifiedData.get(key))) {
-                    toRemove.add(key);
-                }
+        for (String key : tempSet) {
+            if (compare(snapshot.get(key), transaction.modifiedData.get(key))) {
+                toRemove.add(key);
             }
-        } finally {
-            transactionLock.readLock().unlock();
         }
         return tempSet.size() - toRemove.size();
     }
 
-    private int diffSize(long transactionId) {
-        TransactionWithModifies transaction = TransactionPool.getInstance().getTransaction(transactionId);
+    private int diffSize(TransactionWithModifies transaction, TableSnapshot snapshot) {
         int result = 0;
         for (final String key : transaction.modifiedData.keySet()) {
-            Storeable oldValue;
-            transactionLock.readLock().lock();
-            try {
-                oldValue = oldData.get(key);
-            } finally {
-                transactionLock.readLock().unlock();
-            }
+            Storeable oldValue = snapshot.get(key);
             Storeable newValue = transaction.modifiedData.get(key);
             if (oldValue == null && newValue != null) {
                 result += 1;
             }
         }
         for (final String key : transaction.deletedKeys) {
-            transactionLock.readLock().lock();
-            try {
-                if (oldData.containsKey(key)) {
-                    result -= 1;
-                }
-            } finally {
-                transactionLock.readLock().unlock();
+            if (snapshot.containsKey(key)) {
+                result -= 1;
             }
         }
         return result;
     }
 
+    /**
+     * Value bytes as they are stored in the .dat files: the binary row format for tables created
+     * with it, the serialized XML otherwise.
+     */
+    public byte[] encodeValue(Storeable value) {
+        if (binaryRows) {
+            return RowCodec.encode(columnTypes, value);
+        }
+        return provider.serialize(this, value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    public Storeable decodeValue(byte[] bytes) throws ParseException {
+        if (binaryRows) {
+            return RowCodec.decode(columnTypes, bytes);
+        }
+        return provider.deserialize(this, new String(bytes, StandardCharsets.UTF_8));
+    }
+
     public static boolean compare(Storeable key1, Storeable key2) {
         if (key1 == null && key2 == null) {
             return true;
@@ -479,27 +583,47 @@ public class DatabaseTable implements Table, AutoCloseable {
 
     @Override
     public Storeable put(String key, Storeable value) throws ColumnFormatException {
-        return put(key, value, transactionId.get());
+        return put(key, value, implicitTransactionId());
     }
 
     @Override
     public Storeable remove(String key) {
-        return remove(key, transactionId.get());
+        return remove(key, implicitTransactionId());
     }
 
     @Override
     public int size() {
-        return size(transactionId.get());
+        return size(implicitTransaction());
     }
 
     @Override
     public int commit() throws IOException {
-        return commit(transactionId.get());
+        Long id = transactionId.get();
+        if (id == null) {
+            isCloseChecker();
+            return 0;
+        }
+        try {
+            return commit(id);
+        } finally {
+            TransactionPool.getInstance().releaseTransaction(id);
+            transactionId.remove();
+        }
     }
 
     @Override
     public int rollback() {
-        return rollback(transactionId.get());
+        Long id = transactionId.get();
+        if (id == null) {
+            isCloseChecker();
+            return 0;
+        }
+        try {
+            return rollback(id);
+        } finally {
+            TransactionPool.getInstance().releaseTransaction(id);
+            transactionId.remove();
+        }
     }
 
     public int getColumnsCount() {
@@ -547,6 +671,30 @@ public class DatabaseTable implements Table, AutoCloseable {
             return;
         }
         rollback();
+        if (!pendingBuckets.isEmpty()) {
+            compact();
+        }
         isClosed = true;
     }
+
+    private static class CommitRequest {
+        final TransactionWithModifies transaction;
+        int result = 0;
+        Exception error;
+        boolean done = false;
+
+        CommitRequest(TransactionWithModifies transaction) {
+            this.transaction = transaction;
+        }
+
+        int getResult() throws IOException {
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+            if (error != null) {
+                throw (RuntimeException) error;
+            }
+            return result;
+        }
+    }
 }
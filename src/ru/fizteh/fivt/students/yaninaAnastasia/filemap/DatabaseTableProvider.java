@@ -7,20 +7,33 @@ import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class DatabaseTableProvider implements AutoCloseable, IndexProvider {
+    static final String OFF_HEAP_OPTION = "offheap";
     public DatabaseTable curTable = null;
     HashMap<String, DatabaseTable> tables = new HashMap<String, DatabaseTable>();
     String curDir;
     private final ReadWriteLock lock = new ReentrantReadWriteLock(true);
     volatile boolean isClosed;
     HashMap<String, DatabaseIndex> indexMap = new HashMap<String, DatabaseIndex>();
+    final boolean logCommits;
+    long compactionThreshold = 1 << 20;
+    private ExecutorService compactor;
 
     public DatabaseTableProvider(String directory) {
+        this(directory, false);
+    }
+
+    public DatabaseTableProvider(String directory, boolean logCommits) {
         isClosed = false;
+        this.logCommits = logCommits;
         if (directory == null || directory.isEmpty()) {
             throw new IllegalArgumentException("Error with the property");
         }
@@ -31,6 +44,33 @@ public class DatabaseTableProvider implements AutoCloseable, IndexProvider {
         }
     }
 
+    public void setCompactionThreshold(long bytes) {
+        compactionThreshold = bytes;
+    }
+
+    synchronized void scheduleCompaction(final DatabaseTable table) {
+        if (compactor == null) {
+            compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "compactor-" + curDir);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        compactor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    table.compact();
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                }
+            }
+        });
+    }
+
     public String getDatabaseDirectory() {
         return curDir;
     }
@@ -71,6 +111,22 @@ public class DatabaseTableProvider implements AutoCloseable, IndexProvider {
 
     public Table createTable(String name, List<Class<?>> columnTypes)
             throws IllegalArgumentException, IllegalStateException {
+        return createTable(name, columnTypes, false);
+    }
+
+    public Table createTable(String name, List<Class<?>> columnTypes, boolean binaryRows)
+            throws IllegalArgumentException, IllegalStateException {
+        return createTable(name, columnTypes, binaryRows, false);
+    }
+
+    /**
+     * Creates a table whose values are kept in the .dat files in the binary row format of
+     * {@link RowCodec} instead of XML and, if {@code offHeap} is set, whose committed rows are
+     * held outside the Java heap by {@link OffHeapSnapshot}. Both options are recorded in the
+     * second line of signature.tsv.
+     */
+    public Table createTable(String name, List<Class<?>> columnTypes, boolean binaryRows, boolean offHeap)
+            throws IllegalArgumentException, IllegalStateException {
         isCloseChecker();
         if (name == null || (name.isEmpty() || name.trim().isEmpty())) {
             throw new IllegalArgumentException("table's name cannot be null");
@@ -91,10 +147,14 @@ public class DatabaseTableProvider implements AutoCloseable, IndexProvider {
         lock.writeLock().lock();
         try {
             File tableDirectory = new File(curDir, name);
+            File signatureFile = new File(tableDirectory, "signature.tsv");
+            // The signature of an existing table also holds its storage options: keep it as is
+            if (tables.containsKey(name) || signatureFile.exists()) {
+                return null;
+            }
             if (!tableDirectory.exists()) {
                 tableDirectory.mkdir();
             }
-            File signatureFile = new File(tableDirectory, "signature.tsv");
             try (BufferedWriter writer = new BufferedWriter(new FileWriter(signatureFile))) {
                 signatureFile.createNewFile();
                 List<String> formattedColumnTypes = new ArrayList<String>();
@@ -116,15 +176,23 @@ public class DatabaseTableProvider implements AutoCloseable, IndexProvider {
                 }
                 String signature = sb.toString();
                 writer.write(signature);
+                if (binaryRows || offHeap) {
+                    writer.newLine();
+                    writer.write(binaryRows ? RowCodec.NAME : "");
+                    if (offHeap) {
+                        writer.write(binaryRows ? " " + OFF_HEAP_OPTION : OFF_HEAP_OPTION);
+                    }
+                }
             } catch (IOException e) {
                 System.out.println("Can't write signature file to the disk");
                 return null;
             }
-            if (tables.containsKey(name)) {
-                return null;
-            }
 
             DatabaseTable table = new DatabaseTable(name, columnTypes, this);
+            table.binaryRows = binaryRows;
+            if (offHeap) {
+                table.useOffHeapStorage();
+            }
             tables.put(name, table);
             return table;
         } finally {
@@ -174,6 +242,22 @@ public class DatabaseTableProvider implements AutoCloseable, IndexProvider {
                 System.out.println(name + " not exists");
             }
             tables.remove(name);
+            synchronized (indexMap) {
+                Iterator<DatabaseIndex> iterator = indexMap.values().iterator();
+                while (iterator.hasNext()) {
+                    DatabaseIndex index = iterator.next();
+                    if (name.equals(index.tableName)) {
+                        try {
+                            if (index.getDirectory().exists()) {
+                                recRemove(index.getDirectory());
+                            }
+                        } catch (IOException e) {
+                            System.err.println(e.getMessage());
+                        }
+                        iterator.remove();
+                    }
+                }
+            }
         } finally {
             lock.writeLock().unlock();
         }
@@ -184,44 +268,16 @@ public class DatabaseTableProvider implements AutoCloseable, IndexProvider {
         if (value == null || value.isEmpty()) {
             throw new IllegalArgumentException("value cannot be null or empty");
         }
-        Deserializer deserializer = new Deserializer(value);
-        List<Class<?>> cols = new ArrayList<Class<?>>();
-        Storeable result = new DatabaseStoreable(cols);
-        List<Object> values = new ArrayList<>(table.getColumnsCount());
-        for (int index = 0; index < table.getColumnsCount(); ++index) {
-            try {
-                Class<?> expectedType = table.getColumnType(index);
-                Object columnValue = deserializer.getNext(expectedType);
-                if (columnValue != null) {
-                    switch (ColumnTypes.fromTypeToName(expectedType)) {
-                        case "String":
-                            String stringValue = (String) columnValue;
-                            if (stringValue.trim().isEmpty()) {
-                                throw new ParseException("value cannot be null", 0);
-                            }
-                            break;
-                        default:
-                    }
-                }
-                values.add(columnValue);
-            } catch (ColumnFormatException e) {
-                throw new ParseException("incompatible type: " + e.getMessage(), index);
-            } catch (IndexOutOfBoundsException e) {
-                throw new ParseException("Xml representation doesn't match the format", index);
+        List<Class<?>> types;
+        if (table instanceof DatabaseTable) {
+            types = ((DatabaseTable) table).columnTypes;
+        } else {
+            types = new ArrayList<Class<?>>(table.getColumnsCount());
+            for (int index = 0; index < table.getColumnsCount(); ++index) {
+                types.add(table.getColumnType(index));
             }
         }
-        try {
-            deserializer.close();
-            result = createFor(table, values);
-        } catch (ColumnFormatException e) {
-            throw new ParseException("incompatible types: " + e.getMessage(), 0);
-        } catch (IndexOutOfBoundsException e) {
-            e.printStackTrace();
-            throw new ParseException("Xml representation doesn't match the format" + e.getCause(), 0);
-        } catch (IOException e) {
-            throw new ParseException(e.getMessage(), 0);
-        }
-        return result;
+        return XmlRowParser.parse(types, value);
     }
 
     public String serialize(Table table, Storeable value) throws ColumnFormatException {
@@ -319,66 +375,8 @@ public class DatabaseTableProvider implements AutoCloseable, IndexProvider {
         DatabaseTable loadingTable;
         for (File table : databaseDirectory.listFiles()) {
             curTableName = table.getName();
-            if (curTableName.equals("indexes")) {
-                File indexDir = new File(databaseDirectory, "indexes");
-                if (indexDir.listFiles().length == 0) {
-                    throw new IllegalArgumentException("Invalid index database");
-                }
-                for (File indexTable : indexDir.listFiles()) {
-                    if (indexTable.listFiles().length == 0) {
-                        throw new IllegalArgumentException("Invalid index database");
-                    }
-                    File indexInfoFile = new File(indexTable, "indexInfo.tsv");
-                    String indexInfo = null;
-                    if (!indexInfoFile.exists()) {
-                        throw new IllegalArgumentException("Invalid index database");
-                    }
-                    if (indexInfoFile.length() == 0) {
-                        throw new IllegalArgumentException("Invalid index database");
-                    }
-                    try (BufferedReader reader = new BufferedReader(new FileReader(indexInfoFile))) {
-                        indexInfo = reader.readLine();
-                    } catch (IOException e) {
-                        System.err.println("error loading index info file");
-                        throw new IllegalArgumentException("Invalid index database");
-                    }
-                    String[] indexArgs = indexInfo.split("\\s");
-
-
-                    Class type = tables.get(indexArgs[0]).getColumnType(Integer.parseInt(indexArgs[1]));
-                    File indexTableFile = new File(indexTable, "indexTable.tsv");
-                    String indexStorage = "";
-                    if (!indexTableFile.exists()) {
-                        throw new IllegalArgumentException("Invalid index database");
-                    }
-                    try (BufferedReader reader = new BufferedReader(new FileReader(indexTableFile))) {
-                        String value = reader.readLine();
-                        while (value != null) {
-                            indexStorage += value + " ";
-                            value = reader.readLine();
-                        }
-                    } catch (IOException e) {
-                        System.err.println("error loading index info file");
-                        throw new IllegalArgumentException("Invalid index database");
-                    }
-                    HashMap<Object, String> indexes = new HashMap<Object, String>();
-                    String[] indTemp = indexStorage.trim().split("\\s");
-                    for (int i = 0; i < indTemp.length; i++) {
-                        if (indTemp[i + 1] == null) {
-                            throw new IllegalArgumentException("Index has wrong type");
-                        }
-                        Object val = null;
-                        if (type == String.class) {
-                            val = indTemp[i];
-                        } else {
-                            val = typesParser(indTemp[i], type);
-                        }
-                        indexes.put(val, indTemp[i + 1]);
-                        i++;
-                    }
-                    indexMap.put(indexTable.toString(), new DatabaseIndex(tables.get(indexArgs[0]),
-                            Integer.getInteger(indexArgs[1]), indexTable.toString(), indexes));
-                }
+            if (curTableName.equals(DatabaseIndex.INDEXES_DIRECTORY)) {
+                continue;
             } else {
                 List<Class<?>> zeroList = new ArrayList<Class<?>>();
                 curTable = new DatabaseTable(curTableName, zeroList, this);
@@ -389,6 +387,7 @@ public class DatabaseTableProvider implements AutoCloseable, IndexProvider {
                 }
                 File signatureFile = new File(preSignature, "signature.tsv");
                 String signature = null;
+                String codec = null;
                 if (!signatureFile.exists()) {
                     throw new IllegalArgumentException("Invalid database");
                 }
@@ -397,6 +396,7 @@ public class DatabaseTableProvider implements AutoCloseable, IndexProvider {
                 }
                 try (BufferedReader reader = new BufferedReader(new FileReader(signatureFile))) {
                     signature = reader.readLine();
+                    codec = reader.readLine();
                 } catch (IOException e) {
                     System.err.println("error loading signature file");
                     throw new IllegalArgumentException("Invalid database");
@@ -410,6 +410,15 @@ public class DatabaseTableProvider implements AutoCloseable, IndexProvider {
                     columnTypes.add(type);
                 }
                 loadingTable.columnTypes = columnTypes;
+                for (String option : (codec == null) ? new String[0] : codec.trim().split("\\s+")) {
+                    if (option.equals(RowCodec.NAME)) {
+                        loadingTable.binaryRows = true;
+                    } else if (option.equals(OFF_HEAP_OPTION)) {
+                        loadingTable.useOffHeapStorage();
+                    } else if (!option.isEmpty()) {
+                        throw new IllegalArgumentException("unknown table option " + option);
+                    }
+                }
                 File[] files = new File(curDir, curTableName).listFiles();
                 for (File step : files) {
                     if (step.isFile()) {
@@ -466,9 +475,30 @@ public class DatabaseTableProvider implements AutoCloseable, IndexProvider {
                         }
                     }
                 }
+                if (loadingTable.commitLog.exists()) {
+                    try {
+                        TableBuilder tableBuilder = new TableBuilder(this, loadingTable);
+                        loadingTable.pendingBuckets.addAll(loadingTable.commitLog.replay(loadingTable, tableBuilder));
+                        loadingTable.compact();
+                    } catch (IOException e) {
+                        System.err.println("Error while replaying commit log");
+                        return false;
+                    }
+                }
                 tables.put(curTableName, loadingTable);
             }
         }
+        File indexDir = new File(databaseDirectory, DatabaseIndex.INDEXES_DIRECTORY);
+        if (indexDir.isDirectory()) {
+            for (File indexTable : indexDir.listFiles()) {
+                try {
+                    DatabaseIndex index = DatabaseIndex.load(indexTable, tables);
+                    indexMap.put(index.getName(), index);
+                } catch (IOException | RuntimeException e) {
+                    throw new IllegalArgumentException("Invalid index database", e);
+                }
+            }
+        }
         curTable = null;
         return true;
     }
@@ -508,9 +538,8 @@ public class DatabaseTableProvider implements AutoCloseable, IndexProvider {
             }
             byte[] bytes = new byte[len];
             temp.read(bytes);
-            String putValue = new String(bytes, StandardCharsets.UTF_8);
             if (i == DatabaseTable.getDirectoryNum(key) && j == DatabaseTable.getFileNum(key)) {
-                tableBuilder.put(key, putValue);
+                tableBuilder.put(key, bytes);
             } else {
                 throw new IllegalArgumentException("File has incorrect format");
             }
@@ -525,9 +554,8 @@ public class DatabaseTableProvider implements AutoCloseable, IndexProvider {
         }
         byte[] bytes = new byte[len];
         temp.read(bytes);
-        String putValue = new String(bytes, StandardCharsets.UTF_8);
         if (i == DatabaseTable.getDirectoryNum(key) && j == DatabaseTable.getFileNum(key)) {
-            tableBuilder.put(nextKey, putValue);
+            tableBuilder.put(nextKey, bytes);
         } else {
             throw new IllegalArgumentException("File has incorrect format");
         }
@@ -553,11 +581,28 @@ public class DatabaseTableProvider implements AutoCloseable, IndexProvider {
         for (final String tableName : tables.keySet()) {
             tables.get(tableName).close();
         }
+        synchronized (this) {
+            if (compactor != null) {
+                compactor.shutdown();
+            }
+        }
         isClosed = true;
     }
 
 
     public DatabaseIndex createIndex(Table table, int column, String name) {
+        return createIndex(table, column, name, "unique");
+    }
+
+    public OrderedDatabaseIndex createOrderedIndex(Table table, int column, String name) {
+        return (OrderedDatabaseIndex) createIndex(table, column, name, "ordered");
+    }
+
+    public MultiDatabaseIndex createMultiIndex(Table table, int column, String name) {
+        return (MultiDatabaseIndex) createIndex(table, column, name, "multi");
+    }
+
+    private DatabaseIndex createIndex(Table table, int column, String name, String kind) {
         if (table == null) {
             throw new IllegalArgumentException("The table is null");
         }
@@ -567,40 +612,76 @@ public class DatabaseTableProvider implements AutoCloseable, IndexProvider {
         if ((column < 0) || (column > table.getColumnsCount())) {
             throw new IllegalArgumentException("The number of the column is illegal");
         }
-        if (indexMap.containsKey(name)) {
-            return null;
-        }
         DatabaseTable myTable = DatabaseTable.class.cast(table);
-        ArrayList elements = new ArrayList();
-        synchronized (table) {
-            for (String key : myTable.oldData.keySet()) {
-                if (myTable.get(key).getColumnAt(column) == null) {
-                    throw new IllegalStateException("The column contains null elements");
+        if (name.equals(myTable.getName())) {
+            throw new IllegalStateException("The index name equals the table name");
+        }
+        boolean unique = !kind.equals("multi");
+        // No commit can slip in between the snapshot and the registration of the index
+        myTable.commitLock().lock();
+        try {
+            synchronized (indexMap) {
+                if (indexMap.containsKey(name)) {
+                    return null;
                 }
-                if (elements.contains(myTable.get(key).getColumnAt(column))) {
-                    throw new IllegalStateException("The column contains equal elements");
-                } else {
-                    elements.add(myTable.get(key).getColumnAt(column));
+            }
+            TableSnapshot snapshot = myTable.snapshot();
+            HashMap<Object, String> newIndex = new HashMap<Object, String>();
+            if (unique) {
+                for (String key : snapshot.keySet()) {
+                    Object value = snapshot.get(key).getColumnAt(column);
+                    if (value == null) {
+                        throw new IllegalStateException("The column contains null elements");
+                    }
+                    if (newIndex.put(value, key) != null) {
+                        throw new IllegalStateException("The column contains equal elements");
+                    }
                 }
             }
-
-            if (name.equals(myTable.getName())) {
-                throw new IllegalStateException("The index name equals the table name");
+            DatabaseIndex index;
+            if (kind.equals("ordered")) {
+                index = new OrderedDatabaseIndex(myTable, column, name, newIndex);
+            } else if (kind.equals("multi")) {
+                MultiDatabaseIndex multiIndex = new MultiDatabaseIndex(myTable, column, name);
+                multiIndex.build(snapshot);
+                index = multiIndex;
+            } else {
+                index = new DatabaseIndex(myTable, column, name, newIndex);
             }
+            index.indexedSnapshot = snapshot;
+            try {
+                index.save();
+            } catch (IOException e) {
+                throw new IllegalStateException("Error saving index " + name, e);
+            }
+            synchronized (indexMap) {
+                indexMap.put(name, index);
+            }
+            return index;
+        } finally {
+            myTable.commitLock().unlock();
         }
+    }
 
-        HashMap<Object, String> newIndex = new HashMap<Object, String>();
-        DatabaseIndex index = null;
-        synchronized (table) {
-            for (String key : tables.get(table.getName()).oldData.keySet()) {
-                Object value = tables.get(table.getName()).oldData.get(key).getColumnAt(column);
-                newIndex.put(value, key);
+    List<DatabaseIndex> getIndexes(String tableName) {
+        List<DatabaseIndex> result = new ArrayList<DatabaseIndex>();
+        synchronized (indexMap) {
+            for (DatabaseIndex index : indexMap.values()) {
+                if (index.indexTable.provider == this && tableName.equals(index.tableName)) {
+                    result.add(index);
+                }
             }
+        }
+        return result;
+    }
 
-        index = new DatabaseIndex(myTable, column, name, newIndex);
-        indexMap.put(name, index);
+    @Override
+    public Iterator<Storeable> lookup(String indexName, String key) {
+        DatabaseIndex index = getIndex(indexName);
+        if (index == null) {
+            throw new IllegalArgumentException("Index " + indexName + " not exists");
         }
-        return index;
+        return index.getAll(key);
     }
 
     public DatabaseIndex getIndex(String name) {
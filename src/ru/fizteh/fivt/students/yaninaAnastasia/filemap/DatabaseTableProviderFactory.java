@@ -12,6 +12,10 @@ public class DatabaseTableProviderFactory implements TableProviderFactory, AutoC
     public Set<DatabaseTableProvider> providers = new HashSet<>();
 
     public DatabaseTableProvider create(String directory) throws IOException {
+        return create(directory, false);
+    }
+
+    public DatabaseTableProvider create(String directory, boolean logCommits) throws IOException {
         isCloseChecker();
         if (directory == null || directory.isEmpty()) {
             throw new IllegalArgumentException("Error while getting property");
@@ -25,7 +29,7 @@ public class DatabaseTableProviderFactory implements TableProviderFactory, AutoC
         if ((directory.isEmpty()) || (!databaseDirectory.isDirectory())) {
             throw new IllegalArgumentException("Error while getting property");
         }
-        DatabaseTableProvider provider = new DatabaseTableProvider(databaseDirectory.getAbsolutePath());
+        DatabaseTableProvider provider = new DatabaseTableProvider(databaseDirectory.getAbsolutePath(), logCommits);
         providers.add(provider);
         return provider;
     }
@@ -0,0 +1,208 @@
+package ru.fizteh.fivt.students.yaninaAnastasia.filemap;
+
+import ru.fizteh.fivt.storage.structured.Storeable;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Non-unique index: every column value maps to a posting list of the primary keys that hold
+ * it. Rows with null in the column are not indexed. Posting lists are immutable, so lookups
+ * stream through them, reading rows from the table version the list was taken from, while
+ * commits swap in new lists.
+ */
+public class MultiDatabaseIndex extends DatabaseIndex {
+    private final Map<Object, PostingList> postings = new ConcurrentHashMap<Object, PostingList>();
+    private Map<Object, TreeSet<String>> loading = new HashMap<Object, TreeSet<String>>();
+    private int entries = 0;
+
+    MultiDatabaseIndex(DatabaseTable table, int column, String name) {
+        super(table, column, name, new HashMap<Object, String>());
+    }
+
+    @Override
+    String getKind() {
+        return "multi";
+    }
+
+    void build(TableSnapshot snapshot) {
+        for (String key : snapshot.keySet()) {
+            loadEntry(snapshot.get(key).getColumnAt(column), key, true);
+        }
+        finishLoading();
+    }
+
+    @Override
+    void check(TableSnapshot base, Map<String, Storeable> puts, Set<String> removes) {
+        // Any values are allowed, nulls are just not indexed
+    }
+
+    @Override
+    public void update(TableSnapshot base, TableSnapshot next, Map<String, Storeable> puts, Set<String> removes)
+            throws IOException {
+        Map<Object, Set<String>> added = new HashMap<Object, Set<String>>();
+        Map<Object, Set<String>> removed = new HashMap<Object, Set<String>>();
+        for (String key : removes) {
+            Storeable oldRow = base.get(key);
+            if (oldRow != null) {
+                group(removed, oldRow.getColumnAt(column), key);
+            }
+        }
+        for (Map.Entry<String, Storeable> entry : puts.entrySet()) {
+            Object value = entry.getValue().getColumnAt(column);
+            Storeable oldRow = base.get(entry.getKey());
+            Object oldValue = (oldRow == null) ? null : oldRow.getColumnAt(column);
+            if (Objects.equals(value, oldValue)) {
+                continue;
+            }
+            group(removed, oldValue, entry.getKey());
+            group(added, value, entry.getKey());
+        }
+        Set<Object> values = new HashSet<Object>(added.keySet());
+        values.addAll(removed.keySet());
+        List<String> changes = new ArrayList<String>();
+        lock.writeLock().lock();
+        try {
+            for (Object value : values) {
+                Set<String> adds = added.containsKey(value) ? added.get(value) : Collections.<String>emptySet();
+                Set<String> drops = removed.containsKey(value) ? removed.get(value) : Collections.<String>emptySet();
+                PostingList old = postings.containsKey(value) ? postings.get(value) : PostingList.EMPTY;
+                PostingList list = old.with(adds, drops);
+                entries += list.size() - old.size();
+                if (list.isEmpty()) {
+                    postings.remove(value);
+                } else {
+                    postings.put(value, list);
+                }
+                for (String key : drops) {
+                    changes.add("- " + value + " " + key);
+                }
+                for (String key : adds) {
+                    changes.add("+ " + value + " " + key);
+                }
+            }
+            indexedSnapshot = next;
+            if (!changes.isEmpty()) {
+                appendChanges(changes);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void group(Map<Object, Set<String>> groups, Object value, String key) {
+        if (value == null) {
+            return;
+        }
+        if (!groups.containsKey(value)) {
+            groups.put(value, new HashSet<String>());
+        }
+        groups.get(value).add(key);
+    }
+
+    @Override
+    public Storeable get(String key) {
+        Iterator<Storeable> rows = getAll(key);
+        return rows.hasNext() ? rows.next() : null;
+    }
+
+    @Override
+    public Iterator<Storeable> getAll(String key) {
+        if ((key == null) || key.isEmpty()) {
+            throw new IllegalArgumentException("The key is illegal");
+        }
+        Object value = parseKey(key);
+        PostingList list;
+        final TableSnapshot snapshot;
+        lock.readLock().lock();
+        try {
+            // The lists and the table version they were built from are swapped together
+            list = postings.get(value);
+            snapshot = indexedSnapshot();
+        } finally {
+            lock.readLock().unlock();
+        }
+        final Iterator<String> keys = (list == null) ? PostingList.EMPTY.iterator() : list.iterator();
+        return new Iterator<Storeable>() {
+            private Storeable next = advance();
+
+            private Storeable advance() {
+                while (keys.hasNext()) {
+                    Storeable row = snapshot.get(keys.next());
+                    if (row != null) {
+                        return row;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Storeable next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Storeable result = next;
+                next = advance();
+                return result;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Index is read-only");
+            }
+        };
+    }
+
+    public int count(String key) {
+        PostingList list = postings.get(parseKey(key));
+        return (list == null) ? 0 : list.size();
+    }
+
+    @Override
+    void writeEntries(BufferedWriter writer) throws IOException {
+        for (Map.Entry<Object, PostingList> entry : postings.entrySet()) {
+            for (String key : entry.getValue()) {
+                writer.write(entry.getKey() + " " + key);
+                writer.newLine();
+            }
+        }
+    }
+
+    @Override
+    int entriesCount() {
+        return entries;
+    }
+
+    @Override
+    void loadEntry(Object value, String key, boolean link) {
+        if (value == null) {
+            return;
+        }
+        if (!loading.containsKey(value)) {
+            loading.put(value, new TreeSet<String>());
+        }
+        if (link) {
+            loading.get(value).add(key);
+        } else {
+            loading.get(value).remove(key);
+        }
+    }
+
+    @Override
+    void finishLoading() {
+        for (Map.Entry<Object, TreeSet<String>> entry : loading.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                postings.put(entry.getKey(), PostingList.of(entry.getValue()));
+                entries += entry.getValue().size();
+            }
+        }
+        loading = new HashMap<Object, TreeSet<String>>();
+    }
+}
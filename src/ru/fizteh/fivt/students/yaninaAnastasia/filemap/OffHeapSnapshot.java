@@ -0,0 +1,263 @@
+package ru.fizteh.fivt.students.yaninaAnastasia.filemap;
+
+import ru.fizteh.fivt.storage.structured.Storeable;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * Committed version of a table kept outside the Java heap: rows live in an {@link OffHeapStore}
+ * in the binary format of {@link RowCodec}, and the heap only holds, per bucket, an
+ * open-addressing table of key hashes and record addresses. Rows are decoded on every get.
+ * Like {@link TableSnapshot}, a new version copies only the slot tables of the buckets it
+ * changes; old records stay in the store, which is rewritten once they take more than half of it.
+ */
+public class OffHeapSnapshot extends TableSnapshot {
+    private static final Slots EMPTY_SLOTS = new Slots(0);
+
+    private final List<Class<?>> types;
+    private final OffHeapStore store;
+    private final Slots[] buckets;
+    private int size;
+    private long liveBytes;
+
+    public OffHeapSnapshot(List<Class<?>> types) {
+        this(types, new OffHeapStore(), new Slots[BUCKETS_COUNT], 0, 0);
+        Arrays.fill(buckets, EMPTY_SLOTS);
+    }
+
+    private OffHeapSnapshot(List<Class<?>> types, OffHeapStore store, Slots[] buckets, int size, long liveBytes) {
+        super(null, 0);
+        this.types = types;
+        this.store = store;
+        this.buckets = buckets;
+        this.size = size;
+        this.liveBytes = liveBytes;
+    }
+
+    @Override
+    public Storeable get(String key) {
+        if (key == null || key.isEmpty()) {
+            return null;
+        }
+        long address = buckets[DatabaseTable.getBucketNum(key)].find(store, key);
+        return (address < 0) ? null : decode(store.readValue(address));
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        if (key == null || key.isEmpty()) {
+            return false;
+        }
+        return buckets[DatabaseTable.getBucketNum(key)].find(store, key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Map<String, Storeable> getBucket(int bucket) {
+        Map<String, Storeable> rows = new HashMap<String, Storeable>();
+        for (long address : buckets[bucket].addresses) {
+            if (address != 0) {
+                rows.put(store.readKey(address - 1), decode(store.readValue(address - 1)));
+            }
+        }
+        return Collections.unmodifiableMap(rows);
+    }
+
+    @Override
+    public Set<String> keySet() {
+        Set<String> keys = new HashSet<String>(size);
+        for (Slots slots : buckets) {
+            for (long address : slots.addresses) {
+                if (address != 0) {
+                    keys.add(store.readKey(address - 1));
+                }
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public TableSnapshot withChanges(Map<String, Storeable> puts, Set<String> removes) {
+        OffHeapSnapshot next = new OffHeapSnapshot(types, store, buckets.clone(), size, liveBytes);
+        boolean[] copied = new boolean[BUCKETS_COUNT];
+        for (String key : removes) {
+            int bucket = DatabaseTable.getBucketNum(key);
+            if (next.buckets[bucket].find(store, key) >= 0) {
+                if (!copied[bucket]) {
+                    next.buckets[bucket] = next.buckets[bucket].copy(1);
+                    copied[bucket] = true;
+                }
+                next.remove(key);
+            }
+        }
+        for (Map.Entry<String, Storeable> entry : puts.entrySet()) {
+            int bucket = DatabaseTable.getBucketNum(entry.getKey());
+            if (!copied[bucket]) {
+                next.buckets[bucket] = next.buckets[bucket].copy(1);
+                copied[bucket] = true;
+            }
+            next.put(entry.getKey(), entry.getValue());
+        }
+        if (store.usedBytes() > 2 * next.liveBytes + OffHeapStore.CHUNK_SIZE) {
+            return next.rewrite();
+        }
+        return next;
+    }
+
+    @Override
+    void put(String key, Storeable value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long address = store.append(keyBytes, RowCodec.encode(types, value));
+        Slots slots = buckets[DatabaseTable.getBucketNum(key)];
+        if (slots.count * 2 >= slots.addresses.length) {
+            slots = slots.copy(2);
+            buckets[DatabaseTable.getBucketNum(key)] = slots;
+        }
+        long old = slots.put(store, key.hashCode(), keyBytes, address);
+        liveBytes += store.recordSize(address);
+        if (old < 0) {
+            ++size;
+        } else {
+            liveBytes -= store.recordSize(old);
+        }
+    }
+
+    @Override
+    void remove(String key) {
+        long old = buckets[DatabaseTable.getBucketNum(key)].remove(store, key);
+        if (old >= 0) {
+            liveBytes -= store.recordSize(old);
+            --size;
+        }
+    }
+
+    private OffHeapSnapshot rewrite() {
+        OffHeapSnapshot result = new OffHeapSnapshot(types, new OffHeapStore(), new Slots[BUCKETS_COUNT], size,
+                liveBytes);
+        for (int bucket = 0; bucket < BUCKETS_COUNT; bucket++) {
+            Slots copy = buckets[bucket].copy(1);
+            for (int i = 0; i < copy.addresses.length; i++) {
+                if (copy.addresses[i] != 0) {
+                    copy.addresses[i] = result.store.copy(store, copy.addresses[i] - 1) + 1;
+                }
+            }
+            result.buckets[bucket] = copy;
+        }
+        return result;
+    }
+
+    private Storeable decode(byte[] value) {
+        try {
+            return RowCodec.decode(types, value);
+        } catch (ParseException e) {
+            throw new IllegalStateException("Broken off-heap record: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Linear probing table of one bucket. Addresses are stored plus one, so zero marks a free
+     * slot. A published table is never changed; writers change a copy.
+     */
+    private static class Slots {
+        final long[] addresses;
+        final int[] hashes;
+        int count;
+
+        Slots(int capacity) {
+            addresses = new long[capacity];
+            hashes = new int[capacity];
+        }
+
+        Slots copy(int growth) {
+            int capacity = Math.max(8, addresses.length * growth);
+            if (capacity == addresses.length) {
+                Slots result = new Slots(capacity);
+                System.arraycopy(addresses, 0, result.addresses, 0, capacity);
+                System.arraycopy(hashes, 0, result.hashes, 0, capacity);
+                result.count = count;
+                return result;
+            }
+            Slots result = new Slots(capacity);
+            for (int i = 0; i < addresses.length; i++) {
+                if (addresses[i] != 0) {
+                    int slot = result.freeSlot(hashes[i]);
+                    result.addresses[slot] = addresses[i];
+                    result.hashes[slot] = hashes[i];
+                }
+            }
+            result.count = count;
+            return result;
+        }
+
+        long find(OffHeapStore store, String key) {
+            if (count == 0) {
+                return -1;
+            }
+            int slot = indexOf(store, key.hashCode(), key.getBytes(StandardCharsets.UTF_8));
+            return (slot < 0) ? -1 : addresses[slot] - 1;
+        }
+
+        long put(OffHeapStore store, int hash, byte[] key, long address) {
+            int slot = indexOf(store, hash, key);
+            if (slot >= 0) {
+                long old = addresses[slot] - 1;
+                addresses[slot] = address + 1;
+                return old;
+            }
+            slot = freeSlot(hash);
+            addresses[slot] = address + 1;
+            hashes[slot] = hash;
+            ++count;
+            return -1;
+        }
+
+        long remove(OffHeapStore store, String key) {
+            if (count == 0) {
+                return -1;
+            }
+            int slot = indexOf(store, key.hashCode(), key.getBytes(StandardCharsets.UTF_8));
+            if (slot < 0) {
+                return -1;
+            }
+            long old = addresses[slot] - 1;
+            int mask = addresses.length - 1;
+            int hole = slot;
+            for (int i = (slot + 1) & mask; addresses[i] != 0; i = (i + 1) & mask) {
+                int home = hashes[i] & mask;
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    addresses[hole] = addresses[i];
+                    hashes[hole] = hashes[i];
+                    hole = i;
+                }
+            }
+            addresses[hole] = 0;
+            --count;
+            return old;
+        }
+
+        private int indexOf(OffHeapStore store, int hash, byte[] key) {
+            int mask = addresses.length - 1;
+            for (int i = hash & mask; addresses[i] != 0; i = (i + 1) & mask) {
+                if (hashes[i] == hash && store.keyEquals(addresses[i] - 1, key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int freeSlot(int hash) {
+            int mask = addresses.length - 1;
+            int i = hash & mask;
+            while (addresses[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+    }
+}
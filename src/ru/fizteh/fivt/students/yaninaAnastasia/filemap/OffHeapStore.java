@@ -0,0 +1,103 @@
+package ru.fizteh.fivt.students.yaninaAnastasia.filemap;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Append-only arena of records in direct buffers outside the Java heap. A record is the key
+ * length, the UTF-8 key, the value length and the value bytes; it is addressed by a long made of
+ * the chunk number and the position in the chunk. Records are never changed after they are
+ * written, so readers need no locking, and the memory goes away together with the store.
+ */
+public class OffHeapStore {
+    static final int CHUNK_SIZE = 1 << 20;
+
+    private final List<ByteBuffer> chunks = new CopyOnWriteArrayList<ByteBuffer>();
+    private ByteBuffer current;
+    private long used = 0;
+
+    public synchronized long append(byte[] key, byte[] value) {
+        int length = recordSize(key.length, value.length);
+        if (current == null || current.remaining() < length) {
+            current = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, length));
+            chunks.add(current);
+        }
+        long address = ((long) (chunks.size() - 1) << 32) | current.position();
+        current.putInt(key.length);
+        current.put(key);
+        current.putInt(value.length);
+        current.put(value);
+        used += length;
+        return address;
+    }
+
+    public synchronized long usedBytes() {
+        return used;
+    }
+
+    public boolean keyEquals(long address, byte[] key) {
+        ByteBuffer chunk = chunk(address);
+        int position = position(address);
+        if (chunk.getInt(position) != key.length) {
+            return false;
+        }
+        position += 4;
+        for (int i = 0; i < key.length; ++i) {
+            if (chunk.get(position + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String readKey(long address) {
+        ByteBuffer chunk = chunk(address).duplicate();
+        chunk.position(position(address));
+        byte[] key = new byte[chunk.getInt()];
+        chunk.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    public byte[] readValue(long address) {
+        ByteBuffer chunk = chunk(address).duplicate();
+        int position = position(address);
+        chunk.position(position + 4 + chunk.getInt(position));
+        byte[] value = new byte[chunk.getInt()];
+        chunk.get(value);
+        return value;
+    }
+
+    public int recordSize(long address) {
+        ByteBuffer chunk = chunk(address);
+        int position = position(address);
+        int keyLength = chunk.getInt(position);
+        return recordSize(keyLength, chunk.getInt(position + 4 + keyLength));
+    }
+
+    /**
+     * Copies a record of another store into this one.
+     */
+    public long copy(OffHeapStore source, long address) {
+        ByteBuffer chunk = source.chunk(address).duplicate();
+        chunk.position(position(address));
+        byte[] key = new byte[chunk.getInt()];
+        chunk.get(key);
+        byte[] value = new byte[chunk.getInt()];
+        chunk.get(value);
+        return append(key, value);
+    }
+
+    private static int recordSize(int keyLength, int valueLength) {
+        return 8 + keyLength + valueLength;
+    }
+
+    private ByteBuffer chunk(long address) {
+        return chunks.get((int) (address >>> 32));
+    }
+
+    private static int position(long address) {
+        return (int) address;
+    }
+}
@@ -0,0 +1,240 @@
+package ru.fizteh.fivt.students.yaninaAnastasia.filemap;
+
+import ru.fizteh.fivt.storage.structured.Storeable;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Unique index that keeps column values sorted, so besides point lookups it answers range,
+ * prefix and min/max queries. Results are streamed: rows are fetched from the table while
+ * the iterator walks the skip list, nothing is copied up front. An iterator returns the rows of
+ * the table version the index matched when it was created: while it is open, every commit keeps
+ * the entries it removed as a small sorted run, and the iterator merges those runs into the walk.
+ */
+public class OrderedDatabaseIndex extends DatabaseIndex {
+    // Entries removed by each change, kept while an iterator opened before that change is alive
+    private final NavigableMap<Long, NavigableMap<Object, String>> droppedRuns =
+            new ConcurrentSkipListMap<Long, NavigableMap<Object, String>>();
+    // Open iterators and the change number they are pinned to
+    private final Map<RowIterator, Long> iterators = new WeakHashMap<RowIterator, Long>();
+
+    OrderedDatabaseIndex(DatabaseTable table, int column, String name, Map<Object, String> indexes) {
+        super(table, column, name, new ConcurrentSkipListMap<Object, String>(indexes));
+    }
+
+    @Override
+    String getKind() {
+        return "ordered";
+    }
+
+    @Override
+    void entriesDropped(long version, Map<Object, String> entries) {
+        long oldest = version;
+        synchronized (iterators) {
+            for (long pinned : iterators.values()) {
+                oldest = Math.min(oldest, pinned);
+            }
+        }
+        droppedRuns.headMap(oldest, true).clear();
+        if (oldest < version && !entries.isEmpty()) {
+            droppedRuns.put(version, new TreeMap<Object, String>(entries));
+        }
+    }
+
+    int droppedRunsCount() {
+        return droppedRuns.size();
+    }
+
+    private NavigableMap<Object, String> sorted() {
+        return (NavigableMap<Object, String>) indexes;
+    }
+
+    /**
+     * Rows whose column value lies between {@code from} and {@code to}, both inclusive, in
+     * ascending order. A null bound means the range is open on that side.
+     */
+    public Iterator<Storeable> range(String from, String to) {
+        Object lower = (from == null) ? null : parseKey(from);
+        Object upper = (to == null) ? null : parseKey(to);
+        if (lower != null && upper != null && compare(lower, upper) > 0) {
+            return Collections.<Storeable>emptyList().iterator();
+        }
+        return new RowIterator(lower, upper, null);
+    }
+
+    /**
+     * Rows whose String column value starts with {@code prefix}, in ascending order.
+     */
+    public Iterator<Storeable> prefix(String prefix) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("Prefix cannot be null");
+        }
+        if (!indexTable.getColumnType(column).equals(String.class)) {
+            throw new IllegalStateException("Prefix search needs a String column");
+        }
+        return new RowIterator(prefix, null, prefix);
+    }
+
+    public Storeable min() {
+        lock.readLock().lock();
+        try {
+            Map.Entry<Object, String> entry = sorted().firstEntry();
+            return (entry == null) ? null : indexedSnapshot().get(entry.getValue());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Storeable max() {
+        lock.readLock().lock();
+        try {
+            Map.Entry<Object, String> entry = sorted().lastEntry();
+            return (entry == null) ? null : indexedSnapshot().get(entry.getValue());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object first, Object second) {
+        return ((Comparable<Object>) first).compareTo(second);
+    }
+
+    private static NavigableMap<Object, String> bound(NavigableMap<Object, String> map, Object lower,
+                                                      boolean lowerInclusive, Object upper) {
+        if (lower != null) {
+            map = map.tailMap(lower, lowerInclusive);
+        }
+        if (upper != null) {
+            map = map.headMap(upper, true);
+        }
+        return map;
+    }
+
+    private class RowIterator implements Iterator<Storeable> {
+        private final Object upper;
+        private final String prefix;
+        private final TableSnapshot snapshot;
+        private final PriorityQueue<Source> sources = new PriorityQueue<Source>();
+        private long merged;
+        private boolean returned = false;
+        private Object lastValue;
+        private Storeable next;
+
+        RowIterator(Object lower, Object upper, String prefix) {
+            this.upper = upper;
+            this.prefix = prefix;
+            lock.readLock().lock();
+            try {
+                snapshot = indexedSnapshot();
+                merged = modifications;
+                synchronized (iterators) {
+                    iterators.put(this, merged);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            lastValue = lower;
+            addSource(bound(sorted(), lower, true, upper));
+            advance();
+        }
+
+        private void addSource(NavigableMap<Object, String> entries) {
+            Source source = new Source(entries.entrySet().iterator());
+            if (source.head != null) {
+                sources.add(source);
+            }
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null) {
+                // A run is published before its entries leave the skip list, so any entry the walk
+                // has missed so far is in a run seen here
+                for (Map.Entry<Long, NavigableMap<Object, String>> run
+                        : droppedRuns.tailMap(merged, false).entrySet()) {
+                    addSource(bound(run.getValue(), lastValue, !returned, upper));
+                    merged = run.getKey();
+                }
+                Source source = sources.poll();
+                if (source == null) {
+                    finish();
+                    return;
+                }
+                Map.Entry<Object, String> entry = source.head;
+                if (source.advance()) {
+                    sources.add(source);
+                }
+                if (returned && compare(entry.getKey(), lastValue) <= 0) {
+                    continue;
+                }
+                if (prefix != null && !((String) entry.getKey()).startsWith(prefix)) {
+                    finish();
+                    return;
+                }
+                Storeable row = snapshot.get(entry.getValue());
+                // Entries added or removed by later commits do not match the snapshot
+                if (row != null && entry.getKey().equals(row.getColumnAt(column))) {
+                    next = row;
+                    lastValue = entry.getKey();
+                    returned = true;
+                }
+            }
+        }
+
+        private void finish() {
+            sources.clear();
+            synchronized (iterators) {
+                iterators.remove(this);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Storeable next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Storeable result = next;
+            advance();
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Index is read-only");
+        }
+    }
+
+    private static class Source implements Comparable<Source> {
+        private final Iterator<Map.Entry<Object, String>> entries;
+        private Map.Entry<Object, String> head;
+
+        Source(Iterator<Map.Entry<Object, String>> entries) {
+            this.entries = entries;
+            advance();
+        }
+
+        boolean advance() {
+            head = entries.hasNext() ? entries.next() : null;
+            return head != null;
+        }
+
+        @Override
+        public int compareTo(Source other) {
+            return compare(head.getKey(), other.head.getKey());
+        }
+    }
+}
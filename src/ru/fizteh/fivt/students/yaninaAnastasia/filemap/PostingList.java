@@ -0,0 +1,232 @@
+package ru.fizteh.fivt.students.yaninaAnastasia.filemap;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Immutable sorted list of primary keys, split into chunks of at most {@link #CHUNK_SIZE} keys.
+ * Inside a chunk keys are front-coded: every entry stores only the length of the prefix it shares
+ * with the previous key and the rest of its bytes, both lengths as varints. A change re-encodes
+ * only the chunks it touches and shares the others with the old list. Iteration decodes one key
+ * at a time.
+ */
+public class PostingList implements Iterable<String> {
+    public static final PostingList EMPTY = new PostingList(new String[0], new byte[0][], new int[0], 0);
+
+    static final int CHUNK_SIZE = 128;
+
+    private final String[] firstKeys;
+    private final byte[][] chunks;
+    private final int[] counts;
+    private final int size;
+
+    private PostingList(String[] firstKeys, byte[][] chunks, int[] counts, int size) {
+        this.firstKeys = firstKeys;
+        this.chunks = chunks;
+        this.counts = counts;
+        this.size = size;
+    }
+
+    public static PostingList of(SortedSet<String> keys) {
+        Builder builder = new Builder();
+        builder.addChunks(keys);
+        return builder.build();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public PostingList with(Collection<String> adds, Collection<String> removes) {
+        if (chunks.length == 0) {
+            return of(new TreeSet<String>(adds));
+        }
+        TreeMap<Integer, TreeSet<String>> touched = new TreeMap<Integer, TreeSet<String>>();
+        for (String key : removes) {
+            touch(touched, key).remove(key);
+        }
+        for (String key : adds) {
+            touch(touched, key).add(key);
+        }
+        Builder builder = new Builder();
+        int chunk = 0;
+        for (Map.Entry<Integer, TreeSet<String>> entry : touched.entrySet()) {
+            for (; chunk < entry.getKey(); chunk++) {
+                builder.addChunk(firstKeys[chunk], chunks[chunk], counts[chunk]);
+            }
+            builder.addChunks(entry.getValue());
+            ++chunk;
+        }
+        for (; chunk < chunks.length; chunk++) {
+            builder.addChunk(firstKeys[chunk], chunks[chunk], counts[chunk]);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the decoded keys of the chunk the key belongs to.
+     */
+    private TreeSet<String> touch(TreeMap<Integer, TreeSet<String>> touched, String key) {
+        int chunk = Arrays.binarySearch(firstKeys, key);
+        if (chunk < 0) {
+            chunk = Math.max(-chunk - 2, 0);
+        }
+        TreeSet<String> keys = touched.get(chunk);
+        if (keys == null) {
+            keys = new TreeSet<String>();
+            Iterator<String> decoded = new ChunkIterator(chunks[chunk], counts[chunk]);
+            while (decoded.hasNext()) {
+                keys.add(decoded.next());
+            }
+            touched.put(chunk, keys);
+        }
+        return keys;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int chunk = 0;
+            private ChunkIterator keys = null;
+
+            @Override
+            public boolean hasNext() {
+                while (keys == null || !keys.hasNext()) {
+                    if (chunk == chunks.length) {
+                        return false;
+                    }
+                    keys = new ChunkIterator(chunks[chunk], counts[chunk]);
+                    ++chunk;
+                }
+                return true;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return keys.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Posting list is immutable");
+            }
+        };
+    }
+
+    private static class Builder {
+        private final List<String> firstKeys = new ArrayList<String>();
+        private final List<byte[]> chunks = new ArrayList<byte[]>();
+        private final List<Integer> counts = new ArrayList<Integer>();
+        private int size = 0;
+
+        void addChunk(String firstKey, byte[] chunk, int count) {
+            firstKeys.add(firstKey);
+            chunks.add(chunk);
+            counts.add(count);
+            size += count;
+        }
+
+        void addChunks(SortedSet<String> keys) {
+            Iterator<String> iterator = keys.iterator();
+            while (iterator.hasNext()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] previous = new byte[0];
+                String firstKey = null;
+                int count = 0;
+                while (count < CHUNK_SIZE && iterator.hasNext()) {
+                    String key = iterator.next();
+                    if (firstKey == null) {
+                        firstKey = key;
+                    }
+                    byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+                    int shared = 0;
+                    int limit = Math.min(previous.length, bytes.length);
+                    while (shared < limit && previous[shared] == bytes[shared]) {
+                        ++shared;
+                    }
+                    writeVarInt(out, shared);
+                    writeVarInt(out, bytes.length - shared);
+                    out.write(bytes, shared, bytes.length - shared);
+                    previous = bytes;
+                    ++count;
+                }
+                addChunk(firstKey, out.toByteArray(), count);
+            }
+        }
+
+        PostingList build() {
+            int[] countArray = new int[counts.size()];
+            for (int i = 0; i < countArray.length; i++) {
+                countArray[i] = counts.get(i);
+            }
+            return new PostingList(firstKeys.toArray(new String[firstKeys.size()]),
+                    chunks.toArray(new byte[chunks.size()][]), countArray, size);
+        }
+    }
+
+    private static class ChunkIterator implements Iterator<String> {
+        private final byte[] data;
+        private final int count;
+        private int position = 0;
+        private int index = 0;
+        private byte[] previous = new byte[0];
+
+        ChunkIterator(byte[] data, int count) {
+            this.data = data;
+            this.count = count;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < count;
+        }
+
+        @Override
+        public String next() {
+            if (index >= count) {
+                throw new NoSuchElementException();
+            }
+            int shared = readVarInt();
+            int rest = readVarInt();
+            byte[] bytes = Arrays.copyOf(previous, shared + rest);
+            System.arraycopy(data, position, bytes, shared, rest);
+            position += rest;
+            previous = bytes;
+            ++index;
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Posting list is immutable");
+        }
+
+        private int readVarInt() {
+            int result = 0;
+            int shift = 0;
+            byte current;
+            do {
+                current = data[position++];
+                result |= (current & 0x7F) << shift;
+                shift += 7;
+            } while ((current & 0x80) != 0);
+            return result;
+        }
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
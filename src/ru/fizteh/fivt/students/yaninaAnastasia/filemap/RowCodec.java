@@ -0,0 +1,112 @@
+package ru.fizteh.fivt.students.yaninaAnastasia.filemap;
+
+import ru.fizteh.fivt.storage.structured.Storeable;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.List;
+
+/**
+ * Binary row format driven by the table signature: a null bitmap (one bit per column), then
+ * every non-null column in order - int and float as 4 bytes, long and double as 8, byte and
+ * boolean as 1, String as a 4-byte length followed by UTF-8 bytes.
+ */
+public class RowCodec {
+    public static final String NAME = "binary";
+
+    private RowCodec() {
+    }
+
+    public static byte[] encode(List<Class<?>> types, Storeable row) {
+        int bitmapLength = (types.size() + 7) / 8;
+        int length = bitmapLength;
+        byte[][] strings = new byte[types.size()][];
+        for (int i = 0; i < types.size(); ++i) {
+            Object value = row.getColumnAt(i);
+            if (value == null) {
+                continue;
+            }
+            Class<?> type = types.get(i);
+            if (type == String.class) {
+                strings[i] = ((String) value).getBytes(StandardCharsets.UTF_8);
+                length += 4 + strings[i].length;
+            } else if (type == Long.class || type == Double.class) {
+                length += 8;
+            } else if (type == Integer.class || type == Float.class) {
+                length += 4;
+            } else {
+                length += 1;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.position(bitmapLength);
+        for (int i = 0; i < types.size(); ++i) {
+            Object value = row.getColumnAt(i);
+            if (value == null) {
+                buffer.put(i / 8, (byte) (buffer.get(i / 8) | (1 << (i % 8))));
+                continue;
+            }
+            Class<?> type = types.get(i);
+            if (type == Integer.class) {
+                buffer.putInt((Integer) value);
+            } else if (type == Long.class) {
+                buffer.putLong((Long) value);
+            } else if (type == Byte.class) {
+                buffer.put((Byte) value);
+            } else if (type == Float.class) {
+                buffer.putFloat((Float) value);
+            } else if (type == Double.class) {
+                buffer.putDouble((Double) value);
+            } else if (type == Boolean.class) {
+                buffer.put((byte) ((Boolean) value ? 1 : 0));
+            } else {
+                buffer.putInt(strings[i].length);
+                buffer.put(strings[i]);
+            }
+        }
+        return buffer.array();
+    }
+
+    public static Storeable decode(List<Class<?>> types, byte[] bytes) throws ParseException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int bitmapLength = (types.size() + 7) / 8;
+        DatabaseStoreable row = new DatabaseStoreable(types);
+        try {
+            buffer.position(bitmapLength);
+            for (int i = 0; i < types.size(); ++i) {
+                if ((bytes[i / 8] & (1 << (i % 8))) != 0) {
+                    continue;
+                }
+                Class<?> type = types.get(i);
+                if (type == Integer.class) {
+                    row.setInt(i, buffer.getInt());
+                } else if (type == Long.class) {
+                    row.setLong(i, buffer.getLong());
+                } else if (type == Byte.class) {
+                    row.setByte(i, buffer.get());
+                } else if (type == Float.class) {
+                    row.setFloat(i, buffer.getFloat());
+                } else if (type == Double.class) {
+                    row.setDouble(i, buffer.getDouble());
+                } else if (type == Boolean.class) {
+                    row.setBoolean(i, buffer.get() != 0);
+                } else {
+                    int length = buffer.getInt();
+                    if (length < 0 || length > buffer.remaining()) {
+                        throw new ParseException("Wrong string length in binary row", buffer.position());
+                    }
+                    row.setString(i, new String(bytes, buffer.position(), length, StandardCharsets.UTF_8));
+                    buffer.position(buffer.position() + length);
+                }
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new ParseException("Binary row is truncated", buffer.position());
+        }
+        if (buffer.hasRemaining()) {
+            throw new ParseException("Binary row is too long", buffer.position());
+        }
+        return row;
+    }
+}
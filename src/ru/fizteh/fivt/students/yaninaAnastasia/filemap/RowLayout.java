@@ -0,0 +1,70 @@
+package ru.fizteh.fivt.students.yaninaAnastasia.filemap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Where every column of a signature lives inside a {@link DatabaseStoreable}: int, float, byte
+ * and boolean columns share one int array, long and double columns one long array, strings
+ * their own array. Layouts are shared by all rows with the same signature.
+ */
+public final class RowLayout {
+    static final int NARROW = 0;
+    static final int WIDE = 1;
+    static final int STRING = 2;
+
+    private static final ConcurrentMap<List<Class<?>>, RowLayout> LAYOUTS =
+            new ConcurrentHashMap<List<Class<?>>, RowLayout>();
+
+    final List<Class<?>> types;
+    final Class<?>[] columnTypes;
+    final int[] kinds;
+    final int[] slots;
+    final int narrowCount;
+    final int wideCount;
+    final int stringCount;
+
+    private RowLayout(List<Class<?>> types) {
+        this.types = types;
+        columnTypes = types.toArray(new Class<?>[types.size()]);
+        kinds = new int[columnTypes.length];
+        slots = new int[columnTypes.length];
+        int[] counts = new int[3];
+        for (int i = 0; i < columnTypes.length; ++i) {
+            Class<?> type = columnTypes[i];
+            if (type == Long.class || type == Double.class) {
+                kinds[i] = WIDE;
+            } else if (type == String.class) {
+                kinds[i] = STRING;
+            } else if (type == Integer.class || type == Float.class || type == Byte.class || type == Boolean.class) {
+                kinds[i] = NARROW;
+            } else {
+                throw new IllegalArgumentException("unknown column type");
+            }
+            slots[i] = counts[kinds[i]]++;
+        }
+        narrowCount = counts[NARROW];
+        wideCount = counts[WIDE];
+        stringCount = counts[STRING];
+    }
+
+    public static RowLayout forTypes(List<Class<?>> types) {
+        RowLayout layout = LAYOUTS.get(types);
+        if (layout == null) {
+            List<Class<?>> key = Collections.unmodifiableList(new ArrayList<Class<?>>(types));
+            layout = new RowLayout(key);
+            RowLayout existing = LAYOUTS.putIfAbsent(key, layout);
+            if (existing != null) {
+                layout = existing;
+            }
+        }
+        return layout;
+    }
+
+    public int size() {
+        return columnTypes.length;
+    }
+}
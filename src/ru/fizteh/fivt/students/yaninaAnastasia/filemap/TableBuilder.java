@@ -33,4 +33,14 @@ public class TableBuilder {
         }
         table.storeablePut(key, storage);
     }
+
+    public void put(String key, byte[] value) {
+        Storeable storage = null;
+        try {
+            storage = table.decodeValue(value);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+        }
+        table.storeablePut(key, storage);
+    }
 }
@@ -0,0 +1,105 @@
+package ru.fizteh.fivt.students.yaninaAnastasia.filemap;
+
+import ru.fizteh.fivt.storage.structured.Storeable;
+
+import java.util.*;
+
+/**
+ * Committed version of a table. A published snapshot is never changed: commit builds the next
+ * one with {@link #withChanges}, copying only the buckets the diff touches, so readers can keep
+ * using the version they started with without any locking.
+ */
+public class TableSnapshot {
+    public static final int BUCKETS_COUNT = 256;
+
+    private final List<HashMap<String, Storeable>> buckets;
+    private int size;
+
+    public TableSnapshot() {
+        buckets = new ArrayList<HashMap<String, Storeable>>(BUCKETS_COUNT);
+        for (int i = 0; i < BUCKETS_COUNT; i++) {
+            buckets.add(new HashMap<String, Storeable>());
+        }
+        size = 0;
+    }
+
+    TableSnapshot(List<HashMap<String, Storeable>> buckets, int size) {
+        this.buckets = buckets;
+        this.size = size;
+    }
+
+    public Storeable get(String key) {
+        if (key == null || key.isEmpty()) {
+            return null;
+        }
+        return buckets.get(DatabaseTable.getBucketNum(key)).get(key);
+    }
+
+    public boolean containsKey(String key) {
+        if (key == null || key.isEmpty()) {
+            return false;
+        }
+        return buckets.get(DatabaseTable.getBucketNum(key)).containsKey(key);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Map<String, Storeable> getBucket(int bucket) {
+        return Collections.unmodifiableMap(buckets.get(bucket));
+    }
+
+    public Set<String> keySet() {
+        Set<String> keys = new HashSet<String>(size);
+        for (HashMap<String, Storeable> bucket : buckets) {
+            keys.addAll(bucket.keySet());
+        }
+        return keys;
+    }
+
+    public TableSnapshot withChanges(Map<String, Storeable> puts, Set<String> removes) {
+        List<HashMap<String, Storeable>> next = new ArrayList<HashMap<String, Storeable>>(buckets);
+        boolean[] copied = new boolean[BUCKETS_COUNT];
+        int nextSize = size;
+        for (String key : removes) {
+            int bucket = DatabaseTable.getBucketNum(key);
+            if (next.get(bucket).containsKey(key)) {
+                copyBucket(next, copied, bucket).remove(key);
+                --nextSize;
+            }
+        }
+        for (Map.Entry<String, Storeable> entry : puts.entrySet()) {
+            int bucket = DatabaseTable.getBucketNum(entry.getKey());
+            if (copyBucket(next, copied, bucket).put(entry.getKey(), entry.getValue()) == null) {
+                ++nextSize;
+            }
+        }
+        return new TableSnapshot(next, nextSize);
+    }
+
+    /**
+     * Changes the snapshot in place. Only for filling a table while it is loaded, before anyone
+     * else can see it.
+     */
+    void put(String key, Storeable value) {
+        if (buckets.get(DatabaseTable.getBucketNum(key)).put(key, value) == null) {
+            ++size;
+        }
+    }
+
+    void remove(String key) {
+        if (buckets.get(DatabaseTable.getBucketNum(key)).remove(key) != null) {
+            --size;
+        }
+    }
+
+    private HashMap<String, Storeable> copyBucket(List<HashMap<String, Storeable>> next, boolean[] copied,
+                                                  int bucket) {
+        if (!copied[bucket]) {
+            next.set(bucket, new HashMap<String, Storeable>(next.get(bucket)));
+            copied[bucket] = true;
+        }
+        return next.get(bucket);
+    }
+}
@@ -8,9 +8,13 @@ import org.junit.rules.TemporaryFolder;
 import ru.fizteh.fivt.storage.structured.Storeable;
 import ru.fizteh.fivt.storage.structured.Table;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -306,6 +310,139 @@ public class TestsDatabaseProvider {
         provider.getTable("testCloseTable");
     }
 
+    @Test
+    public void testCommitLogReplayedOnCreate() throws Exception {
+        DatabaseTableProvider logProvider = factory.create(folder.getRoot().getPath(), true);
+        Table logTable = logProvider.createTable("logTable", columnTypes);
+        logTable.put("a", logProvider.deserialize(logTable, "<row><col>1</col></row>"));
+        logTable.put("b", logProvider.deserialize(logTable, "<row><col>2</col></row>"));
+        Assert.assertEquals(logTable.commit(), 2);
+        logTable.remove("a");
+        Assert.assertEquals(logTable.commit(), 1);
+        File tableDir = new File(folder.getRoot(), "logTable");
+        Assert.assertTrue(new File(tableDir, CommitLog.LOG_FILE_NAME).exists());
+        Assert.assertFalse(new File(tableDir, "2.dir").exists());
+
+        Table reloaded = factory.create(folder.getRoot().getPath()).getTable("logTable");
+        Assert.assertNull(reloaded.get("a"));
+        Assert.assertEquals(reloaded.get("b").getIntAt(0), Integer.valueOf(2));
+        Assert.assertFalse(new File(tableDir, CommitLog.LOG_FILE_NAME).exists());
+        Assert.assertTrue(new File(new File(tableDir, "2.dir"), "6.dat").exists());
+        Assert.assertFalse(new File(tableDir, "1.dir").exists());
+    }
+
+    @Test
+    public void testCommitLogReplayStopsAtBadLength() throws Exception {
+        DatabaseTableProvider logProvider = factory.create(folder.getRoot().getPath(), true);
+        Table logTable = logProvider.createTable("logTable", columnTypes);
+        logTable.put("b", logProvider.deserialize(logTable, "<row><col>2</col></row>"));
+        Assert.assertEquals(logTable.commit(), 1);
+        File logFile = new File(new File(folder.getRoot(), "logTable"), CommitLog.LOG_FILE_NAME);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(logFile, true))) {
+            out.writeInt(Integer.MAX_VALUE - 8);
+            out.writeLong(0);
+        }
+
+        Table reloaded = factory.create(folder.getRoot().getPath()).getTable("logTable");
+        Assert.assertEquals(reloaded.get("b").getIntAt(0), Integer.valueOf(2));
+    }
+
+    @Test
+    public void testCommitLogCompaction() throws Exception {
+        DatabaseTableProvider logProvider = factory.create(folder.getRoot().getPath(), true);
+        logProvider.setCompactionThreshold(0);
+        Table logTable = logProvider.createTable("logTable", columnTypes);
+        logTable.put("b", logProvider.deserialize(logTable, "<row><col>2</col></row>"));
+        Assert.assertEquals(logTable.commit(), 1);
+        File tableDir = new File(folder.getRoot(), "logTable");
+        logProvider.close();
+        Assert.assertFalse(new File(tableDir, CommitLog.LOG_FILE_NAME).exists());
+        Assert.assertTrue(new File(new File(tableDir, "2.dir"), "6.dat").exists());
+    }
+
+    @Test
+    public void testBinaryRowsTable() throws Exception {
+        Table binaryTable = provider.createTable("binaryTable", multiColumnTypes, true);
+        Storeable row = provider.deserialize(binaryTable, "<row><col>5</col><col>строка</col><null/></row>");
+        binaryTable.put("key", row);
+        binaryTable.put("other", provider.createFor(binaryTable, Arrays.asList(-1, "", 2.5)));
+        Assert.assertEquals(binaryTable.commit(), 2);
+
+        Table reloaded = factory.create(folder.getRoot().getPath()).getTable("binaryTable");
+        Assert.assertEquals(reloaded.get("key"), row);
+        Assert.assertNull(reloaded.get("key").getColumnAt(2));
+        Assert.assertEquals(reloaded.get("other").getStringAt(1), "");
+        Assert.assertEquals(reloaded.get("other").getDoubleAt(2), Double.valueOf(2.5));
+    }
+
+    @Test
+    public void testCreateExistingBinaryTable() throws Exception {
+        Table binaryTable = provider.createTable("binaryTable", multiColumnTypes, true);
+        Storeable row = provider.createFor(binaryTable, Arrays.asList(7, "value", 0.5));
+        binaryTable.put("key", row);
+        binaryTable.commit();
+        Assert.assertNull(provider.createTable("binaryTable", multiColumnTypes));
+
+        DatabaseTableProvider reopened = factory.create(folder.getRoot().getPath());
+        Assert.assertNull(reopened.createTable("binaryTable", multiColumnTypes));
+        Assert.assertEquals(factory.create(folder.getRoot().getPath()).getTable("binaryTable").get("key"), row);
+    }
+
+    @Test(expected = ParseException.class)
+    public void testTruncatedBinaryRow() throws Exception {
+        Table binaryTable = provider.createTable("binaryTable", multiColumnTypes, true);
+        byte[] bytes = RowCodec.encode(multiColumnTypes,
+                provider.deserialize(binaryTable, "<row><col>5</col><col>value</col><col>1.0</col></row>"));
+        RowCodec.decode(multiColumnTypes, Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    @Test
+    public void testOffHeapTable() throws Exception {
+        Table offHeapTable = provider.createTable("offHeapTable", multiColumnTypes, false, true);
+        char[] text = new char[1000];
+        Arrays.fill(text, 'x');
+        for (int i = 0; i < 3000; i++) {
+            Storeable row = provider.createFor(offHeapTable, Arrays.asList(i, new String(text), null));
+            offHeapTable.put("key" + (i % 50), row);
+            if (i % 100 == 99) {
+                offHeapTable.commit();
+            }
+        }
+        offHeapTable.remove("key7");
+        offHeapTable.commit();
+        Assert.assertEquals(offHeapTable.size(), 49);
+        Assert.assertNull(offHeapTable.get("key7"));
+        Assert.assertEquals(offHeapTable.get("key3").getIntAt(0), Integer.valueOf(2953));
+        Assert.assertNull(offHeapTable.get("key3").getColumnAt(2));
+
+        Table reloaded = factory.create(folder.getRoot().getPath()).getTable("offHeapTable");
+        Assert.assertEquals(reloaded.size(), 49);
+        Assert.assertEquals(reloaded.get("key49"), offHeapTable.get("key49"));
+    }
+
+    @Test
+    public void testDeserializeEscapedAndNullColumns() throws Exception {
+        Table multiTable = provider.createTable("multiTable", multiColumnTypes);
+        Storeable row = provider.deserialize(multiTable, "<row><col>-2147483648</col><col>a &lt;b&gt; &amp; &#1099;"
+                + "</col><null></null></row>");
+        Assert.assertEquals(row.getIntAt(0), Integer.valueOf(Integer.MIN_VALUE));
+        Assert.assertEquals(row.getStringAt(1), "a <b> & ы");
+        Assert.assertNull(row.getColumnAt(2));
+        Assert.assertEquals(provider.deserialize(multiTable, provider.serialize(multiTable, row)), row);
+    }
+
+    @Test(expected = ParseException.class)
+    public void testDeserializeIntOverflow() throws Exception {
+        Table multiTable = provider.createTable("multiTable", multiColumnTypes);
+        provider.deserialize(multiTable, "<row><col>2147483648</col><col>a</col><null/></row>");
+    }
+
+    @Test(expected = ParseException.class)
+    public void testDeserializeMissingColumn() throws Exception {
+        Table multiTable = provider.createTable("multiTable", multiColumnTypes);
+        provider.deserialize(multiTable, "<row><col>1</col><col>a</col></row>");
+    }
+
     @Test
     public void testToString() throws Exception {
         Assert.assertEquals(provider.toString(),
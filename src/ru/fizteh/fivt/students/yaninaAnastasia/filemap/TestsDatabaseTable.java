@@ -2,6 +2,7 @@ package ru.fizteh.fivt.students.yaninaAnastasia.filemap;
 
 import org.junit.*;
 import org.junit.rules.TemporaryFolder;
+import ru.fizteh.fivt.storage.structured.ColumnFormatException;
 import ru.fizteh.fivt.storage.structured.Storeable;
 import ru.fizteh.fivt.storage.structured.Table;
 import ru.fizteh.fivt.storage.structured.TableProvider;
@@ -16,7 +17,9 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TestsDatabaseTable {
     private static final String SINGLE_COLUMN_TABLE_NAME = "testTable";
@@ -102,6 +105,28 @@ public class TestsDatabaseTable {
         table.put("SADASDASD", st);
     }
 
+    @Test
+    public void testTypedColumns() throws Exception {
+        Storeable row = makeMultiStoreable(-7, "text", 2.5);
+        Assert.assertEquals(row.getIntAt(0), Integer.valueOf(-7));
+        Assert.assertEquals(row.getStringAt(1), "text");
+        Assert.assertEquals(row.getDoubleAt(2), Double.valueOf(2.5));
+        row.setColumnAt(1, null);
+        Assert.assertNull(row.getStringAt(1));
+        Assert.assertNull(row.getColumnAt(1));
+        Storeable copy = provider.createFor(multiColumnTable);
+        copy.setColumnAt(0, -7);
+        copy.setColumnAt(2, 2.5);
+        Assert.assertEquals(copy, row);
+        Assert.assertEquals(copy.hashCode(), row.hashCode());
+        Assert.assertEquals(row.toString(), "DatabaseStoreable[-7,,2.5]");
+    }
+
+    @Test(expected = ColumnFormatException.class)
+    public void testTypedGetterWrongType() {
+        makeMultiStoreable(1, "text", 1.0).getLongAt(0);
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testKeyNull() {
         table.put(null, null);
@@ -475,6 +500,183 @@ public class TestsDatabaseTable {
         testTable.get("key1");
     }
 
+    @Test
+    public void testCommitRewritesOnlyDirtyFiles() throws Exception {
+        table.put("a", makeStoreable(1));
+        table.put("b", makeStoreable(2));
+        Assert.assertEquals(table.commit(), 2);
+        File tableDir = new File(folder.getRoot(), SINGLE_COLUMN_TABLE_NAME);
+        File untouched = new File(new File(tableDir, "2.dir"), "6.dat");
+        Assert.assertTrue(untouched.setLastModified(0));
+        table.put("a", makeStoreable(3));
+        Assert.assertEquals(table.commit(), 1);
+        Assert.assertEquals(untouched.lastModified(), 0);
+        table.remove("a");
+        Assert.assertEquals(table.commit(), 1);
+        Assert.assertFalse(new File(tableDir, "1.dir").exists());
+        Assert.assertEquals(untouched.lastModified(), 0);
+        Assert.assertEquals(table.get("b"), makeStoreable(2));
+    }
+
+    @Test
+    public void testTransactionReleasedOnCommitAndRollback() throws Exception {
+        TransactionPool pool = TransactionPool.getInstance();
+        int before = pool.getOccupancy();
+        table.put("key", makeStoreable(1));
+        long id = ((DatabaseTable) table).transactionId.get();
+        Assert.assertEquals(pool.getOccupancy(), before);
+        table.commit();
+        Assert.assertNull(pool.getTransaction(id));
+        table.put("key", makeStoreable(2));
+        id = ((DatabaseTable) table).transactionId.get();
+        table.rollback();
+        Assert.assertNull(pool.getTransaction(id));
+        Assert.assertEquals(pool.getOccupancy(), before);
+        Assert.assertEquals(table.get("key"), makeStoreable(1));
+    }
+
+    @Test
+    public void testReadsDoNotOpenTransaction() throws Exception {
+        table.put("key", makeStoreable(1));
+        long id = ((DatabaseTable) table).transactionId.get();
+        table.commit();
+        Assert.assertEquals(table.get("key"), makeStoreable(1));
+        Assert.assertEquals(table.size(), 1);
+        Assert.assertNull(((DatabaseTable) table).transactionId.get());
+        Assert.assertEquals(table.rollback(), 0);
+        try {
+            ((DatabaseTable) table).get("key", id);
+            Assert.fail("The transaction is committed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTransactionPoolCapacity() {
+        TransactionPool pool = new TransactionPool(2);
+        long first = pool.createTransaction();
+        pool.createTransaction();
+        pool.createImplicitTransaction();
+        Assert.assertEquals(pool.getOccupancy(), 2);
+        try {
+            pool.createTransaction();
+            Assert.fail("The pool is full");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        pool.releaseTransaction(first);
+        pool.releaseTransaction(first);
+        Assert.assertEquals(pool.getOccupancy(), 1);
+        pool.createTransaction();
+    }
+
+    @Test
+    public void testIdleTransactionsReaped() throws Exception {
+        final AtomicLong time = new AtomicLong(1000);
+        TransactionWorker worker = new TransactionWorker((DatabaseTableProvider) provider,
+                new TransactionWorker.Clock() {
+                    @Override
+                    public long currentTimeMillis() {
+                        return time.get();
+                    }
+                });
+        TransactionPool pool = TransactionPool.getInstance();
+        int before = pool.getOccupancy();
+        String idle = worker.startTransaction(SINGLE_COLUMN_TABLE_NAME);
+        String used = worker.startTransaction(SINGLE_COLUMN_TABLE_NAME);
+        Assert.assertEquals(pool.getOccupancy(), before + 2);
+        time.addAndGet(60);
+        Assert.assertEquals(worker.reapIdle(100), 0);
+        Assert.assertNotNull(worker.getTransaction(used));
+        time.addAndGet(60);
+        Assert.assertEquals(worker.reapIdle(100), 1);
+        Assert.assertNull(worker.getTransaction(idle));
+        Assert.assertNotNull(worker.getTransaction(used));
+        worker.getTransaction(used).commit();
+        Assert.assertNull(worker.getTransaction(used));
+        Assert.assertEquals(pool.getOccupancy(), before);
+    }
+
+    @Test
+    public void testCommitDoesNotChangeOldSnapshot() throws Exception {
+        DatabaseTable databaseTable = (DatabaseTable) table;
+        databaseTable.put("key", makeStoreable(1));
+        databaseTable.commit();
+        TableSnapshot snapshot = databaseTable.snapshot();
+        databaseTable.put("key", makeStoreable(2));
+        databaseTable.put("other", makeStoreable(3));
+        databaseTable.commit();
+        Assert.assertEquals(snapshot.size(), 1);
+        Assert.assertEquals(snapshot.get("key"), makeStoreable(1));
+        Assert.assertNull(snapshot.get("other"));
+        Assert.assertEquals(databaseTable.snapshot().size(), 2);
+        Assert.assertEquals(databaseTable.snapshot().get("key"), makeStoreable(2));
+    }
+
+    @Test
+    public void testReadsDuringCommits() throws Exception {
+        table.put("key", makeStoreable(0));
+        table.commit();
+        final int commits = 50;
+        Future<Integer> reader = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                int last = 0;
+                while (last < commits) {
+                    Storeable value = table.get("key");
+                    Assert.assertNotNull(value);
+                    int current = value.getIntAt(0);
+                    Assert.assertTrue(current >= last);
+                    last = current;
+                }
+                table.rollback();
+                return last;
+            }
+        });
+        for (int i = 1; i <= commits; ++i) {
+            table.put("key", makeStoreable(i));
+            table.commit();
+        }
+        Assert.assertEquals((int) reader.get(10, TimeUnit.SECONDS), commits);
+    }
+
+    @Test
+    public void testConcurrentCommitsCountOwnChanges() throws Exception {
+        final int threads = 64;
+        ExecutorService writers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < threads; ++i) {
+                final int number = i;
+                results.add(writers.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        table.put("own" + number, makeStoreable(number));
+                        table.put("shared", makeStoreable(number));
+                        if (number % 2 == 0) {
+                            table.remove("own" + number);
+                        }
+                        return table.commit();
+                    }
+                }));
+            }
+            int total = 0;
+            for (Future<Integer> result : results) {
+                int count = result.get(10, TimeUnit.SECONDS);
+                Assert.assertTrue(count == 1 || count == 2);
+                total += count;
+            }
+            Assert.assertEquals(total, threads + threads / 2);
+        } finally {
+            writers.shutdown();
+        }
+        Assert.assertEquals(table.size(), threads / 2 + 1);
+        Assert.assertNull(table.get("own0"));
+        Assert.assertEquals(table.get("own1"), makeStoreable(1));
+        Assert.assertEquals(table.rollback(), 0);
+    }
+
     @Test
     public void testToString() throws Exception {
         Assert.assertEquals(table.toString(), String.format("DatabaseTable[%s]", (folder.getRoot().getPath()
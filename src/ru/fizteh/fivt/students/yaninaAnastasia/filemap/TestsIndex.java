@@ -6,10 +6,14 @@ import ru.fizteh.fivt.storage.structured.Storeable;
 import ru.fizteh.fivt.storage.structured.Table;
 import ru.fizteh.fivt.storage.structured.TableProviderFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.TreeSet;
 
 public class TestsIndex {
     static List<Class<?>> columnTypes;
@@ -246,4 +250,259 @@ public class TestsIndex {
         multiColumnTable.remove("key_2");
         multiColumnTable.remove("key_3");
     }
+
+    @Test
+    public void indexFollowsCommitDiffs() throws IOException {
+        for (int i = 0; i < 6; ++i) {
+            multiColumnTable.put("key_" + i, makeMultiStoreable(i, "name" + i, (double) i));
+        }
+        multiColumnTable.commit();
+        DatabaseIndex index = provider.createIndex(multiColumnTable, 1, "names");
+
+        multiColumnTable.put("key_1", makeMultiStoreable(1, "renamed", 1.0));
+        multiColumnTable.put("key_7", makeMultiStoreable(7, "name1", 7.0));
+        multiColumnTable.put("key_3", makeMultiStoreable(30, "name3", 3.0));
+        multiColumnTable.remove("key_2");
+        multiColumnTable.commit();
+
+        Assert.assertNull(index.get("name2"));
+        Assert.assertEquals(index.get("renamed"), multiColumnTable.get("key_1"));
+        Assert.assertEquals(index.get("name1"), multiColumnTable.get("key_7"));
+        Assert.assertEquals(index.get("name3"), makeMultiStoreable(30, "name3", 3.0));
+        Assert.assertTrue(new File(index.getDirectory(), DatabaseIndex.CHANGES_FILE).exists());
+
+        DatabaseTableProvider reloaded = (DatabaseTableProvider) factory.create(folder.getRoot().getPath());
+        DatabaseIndex reloadedIndex = reloaded.getIndex("names");
+        Assert.assertNull(reloadedIndex.get("name2"));
+        Assert.assertEquals(reloadedIndex.get("renamed").getIntAt(0), Integer.valueOf(1));
+        Assert.assertEquals(reloadedIndex.get("name1").getIntAt(0), Integer.valueOf(7));
+        Assert.assertEquals(reloadedIndex.get("name5").getIntAt(0), Integer.valueOf(5));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void commitDuplicateToIndex() throws IOException {
+        multiColumnTable.put("key_1", makeMultiStoreable(1, "First", 1.0));
+        multiColumnTable.commit();
+        provider.createIndex(multiColumnTable, 1, "names");
+        multiColumnTable.put("key_2", makeMultiStoreable(2, "First", 2.0));
+        multiColumnTable.commit();
+    }
+
+    @Test
+    public void rejectedCommitChangesNothing() throws IOException {
+        multiColumnTable.put("key_1", makeMultiStoreable(1, "First", 1.0));
+        multiColumnTable.commit();
+        provider.createIndex(multiColumnTable, 1, "names");
+        MultiDatabaseIndex byNumber = provider.createMultiIndex(multiColumnTable, 0, "byNumber");
+        multiColumnTable.put("key_2", makeMultiStoreable(2, "First", 2.0));
+        try {
+            multiColumnTable.commit();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertEquals(multiColumnTable.size(), 1);
+        Assert.assertEquals(byNumber.count("2"), 0);
+
+        DatabaseTableProvider reloaded = (DatabaseTableProvider) factory.create(folder.getRoot().getPath());
+        Assert.assertEquals(reloaded.getTable(MULTI_COLUMN_TABLE_NAME).size(), 1);
+        Assert.assertEquals(((MultiDatabaseIndex) reloaded.getIndex("byNumber")).count("2"), 0);
+    }
+
+    @Test
+    public void orderedIndexScans() throws IOException {
+        for (int i = 0; i < 10; ++i) {
+            multiColumnTable.put("key_" + i, makeMultiStoreable(i, "name" + i, i * 1.5));
+        }
+        multiColumnTable.put("other", makeMultiStoreable(100, "other", -1.0));
+        multiColumnTable.commit();
+        OrderedDatabaseIndex byNumber = provider.createOrderedIndex(multiColumnTable, 0, "byNumber");
+        OrderedDatabaseIndex byName = provider.createOrderedIndex(multiColumnTable, 1, "byName");
+
+        List<Integer> numbers = new ArrayList<>();
+        Iterator<Storeable> range = byNumber.range("3", "6");
+        while (range.hasNext()) {
+            numbers.add(range.next().getIntAt(0));
+        }
+        Assert.assertEquals(numbers, Arrays.asList(3, 4, 5, 6));
+        Assert.assertEquals(byNumber.min().getIntAt(0), Integer.valueOf(0));
+        Assert.assertEquals(byNumber.max().getIntAt(0), Integer.valueOf(100));
+        Assert.assertFalse(byNumber.range("50", "60").hasNext());
+
+        int count = 0;
+        Iterator<Storeable> prefix = byName.prefix("name");
+        while (prefix.hasNext()) {
+            Assert.assertTrue(prefix.next().getStringAt(1).startsWith("name"));
+            ++count;
+        }
+        Assert.assertEquals(count, 10);
+
+        multiColumnTable.remove("key_4");
+        multiColumnTable.commit();
+        numbers.clear();
+        range = byNumber.range(null, "5");
+        while (range.hasNext()) {
+            numbers.add(range.next().getIntAt(0));
+        }
+        Assert.assertEquals(numbers, Arrays.asList(0, 1, 2, 3, 5));
+
+        DatabaseTableProvider reloaded = (DatabaseTableProvider) factory.create(folder.getRoot().getPath());
+        Assert.assertTrue(reloaded.getIndex("byName") instanceof OrderedDatabaseIndex);
+    }
+
+    @Test
+    public void orderedIndexRangeKeepsItsVersion() throws IOException {
+        for (int i = 0; i < 10; ++i) {
+            multiColumnTable.put("key_" + i, makeMultiStoreable(i, "name" + i, i * 1.5));
+        }
+        multiColumnTable.commit();
+        OrderedDatabaseIndex byNumber = provider.createOrderedIndex(multiColumnTable, 0, "byNumber");
+        Assert.assertFalse(byNumber.range("6", "3").hasNext());
+
+        Iterator<Storeable> range = byNumber.range("3", "6");
+        Assert.assertEquals(range.next().getIntAt(0), Integer.valueOf(3));
+        multiColumnTable.remove("key_4");
+        multiColumnTable.put("key_5", makeMultiStoreable(50, "name5", 0.0));
+        multiColumnTable.put("key_55", makeMultiStoreable(5, "name55", 0.0));
+        multiColumnTable.commit();
+        List<Integer> numbers = new ArrayList<>();
+        while (range.hasNext()) {
+            numbers.add(range.next().getIntAt(0));
+        }
+        Assert.assertEquals(numbers, Arrays.asList(4, 5, 6));
+        Assert.assertEquals(byNumber.get("5").getStringAt(1), "name55");
+    }
+
+    @Test
+    public void orderedIndexRangeSurvivesSeveralCommits() throws IOException {
+        for (int i = 0; i < 10; ++i) {
+            multiColumnTable.put("key_" + i, makeMultiStoreable(i, "name" + i, i * 1.5));
+        }
+        multiColumnTable.commit();
+        OrderedDatabaseIndex byNumber = provider.createOrderedIndex(multiColumnTable, 0, "byNumber");
+
+        Iterator<Storeable> range = byNumber.range(null, null);
+        Assert.assertEquals(range.next().getIntAt(0), Integer.valueOf(0));
+        multiColumnTable.remove("key_3");
+        multiColumnTable.put("key_7", makeMultiStoreable(70, "name7", 0.0));
+        multiColumnTable.commit();
+        multiColumnTable.put("key_33", makeMultiStoreable(3, "name33", 0.0));
+        multiColumnTable.put("key_8", makeMultiStoreable(7, "name8", 0.0));
+        multiColumnTable.remove("key_9");
+        multiColumnTable.commit();
+        Assert.assertEquals(byNumber.droppedRunsCount(), 2);
+        List<String> names = new ArrayList<>();
+        while (range.hasNext()) {
+            names.add(range.next().getStringAt(1));
+        }
+        Assert.assertEquals(names, Arrays.asList("name1", "name2", "name3", "name4", "name5", "name6", "name7",
+                "name8", "name9"));
+
+        multiColumnTable.remove("key_0");
+        multiColumnTable.commit();
+        Assert.assertEquals(byNumber.droppedRunsCount(), 0);
+        names.clear();
+        range = byNumber.range("3", "8");
+        while (range.hasNext()) {
+            names.add(range.next().getStringAt(1));
+        }
+        Assert.assertEquals(names, Arrays.asList("name33", "name4", "name5", "name6", "name8"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void prefixOnNumberColumn() {
+        provider.createOrderedIndex(multiColumnTable, 0, "byNumber").prefix("1");
+    }
+
+    @Test
+    public void multiIndexLookup() throws IOException {
+        for (int i = 0; i < 20; ++i) {
+            multiColumnTable.put("key_" + i, makeMultiStoreable(i % 3, (i % 5 == 0) ? null : "status" + (i % 2),
+                    (double) i));
+        }
+        multiColumnTable.commit();
+        MultiDatabaseIndex byStatus = provider.createMultiIndex(multiColumnTable, 1, "byStatus");
+        Assert.assertEquals(byStatus.count("status0"), 8);
+        Assert.assertEquals(byStatus.count("status1"), 8);
+
+        multiColumnTable.put("key_1", makeMultiStoreable(1, "status0", 1.0));
+        multiColumnTable.put("key_20", makeMultiStoreable(2, "status1", 20.0));
+        multiColumnTable.remove("key_2");
+        multiColumnTable.commit();
+
+        int count = 0;
+        Iterator<Storeable> rows = provider.lookup("byStatus", "status0");
+        while (rows.hasNext()) {
+            Assert.assertEquals(rows.next().getStringAt(1), "status0");
+            ++count;
+        }
+        Assert.assertEquals(count, 8);
+        Assert.assertEquals(byStatus.count("status1"), 8);
+        Assert.assertFalse(provider.lookup("byStatus", "missing").hasNext());
+
+        DatabaseTableProvider reloaded = (DatabaseTableProvider) factory.create(folder.getRoot().getPath());
+        Assert.assertEquals(((MultiDatabaseIndex) reloaded.getIndex("byStatus")).count("status0"), 8);
+        Assert.assertEquals(((MultiDatabaseIndex) reloaded.getIndex("byStatus")).count("status1"), 8);
+    }
+
+    @Test
+    public void multiIndexLookupKeepsItsVersion() throws IOException {
+        for (int i = 0; i < 3; ++i) {
+            multiColumnTable.put("key_" + i, makeMultiStoreable(i, "status0", (double) i));
+        }
+        multiColumnTable.commit();
+        MultiDatabaseIndex byStatus = provider.createMultiIndex(multiColumnTable, 1, "byStatus");
+
+        Iterator<Storeable> rows = byStatus.getAll("status0");
+        multiColumnTable.put("key_1", makeMultiStoreable(1, "status1", 1.0));
+        multiColumnTable.put("key_2", makeMultiStoreable(2, "status1", 2.0));
+        multiColumnTable.commit();
+        int count = 0;
+        while (rows.hasNext()) {
+            Assert.assertEquals(rows.next().getStringAt(1), "status0");
+            ++count;
+        }
+        Assert.assertEquals(count, 3);
+        Assert.assertEquals(byStatus.count("status0"), 1);
+    }
+
+    @Test
+    public void postingListKeepsKeysSorted() {
+        TreeSet<String> keys = new TreeSet<>(Arrays.asList("key_10", "key_1", "ключ", "key_100", "a"));
+        PostingList list = PostingList.of(keys);
+        Assert.assertEquals(list.size(), 5);
+        List<String> decoded = new ArrayList<>();
+        for (String key : list.with(Arrays.asList("key_2"), Arrays.asList("a"))) {
+            decoded.add(key);
+        }
+        Assert.assertEquals(decoded, Arrays.asList("key_1", "key_10", "key_100", "key_2", "ключ"));
+    }
+
+    @Test
+    public void postingListChangesSpanChunks() {
+        TreeSet<String> expected = new TreeSet<>();
+        for (int i = 0; i < 5 * PostingList.CHUNK_SIZE; i++) {
+            expected.add(String.format("key_%05d", i));
+        }
+        PostingList list = PostingList.of(expected);
+        List<String> adds = new ArrayList<>();
+        List<String> removes = new ArrayList<>();
+        for (int i = 0; i < 2 * PostingList.CHUNK_SIZE; i++) {
+            adds.add(String.format("key_%05d_", i));
+            removes.add(String.format("key_%05d", 3 * i));
+        }
+        adds.add("a");
+        adds.add("z");
+        list = list.with(adds, removes);
+        expected.removeAll(removes);
+        expected.addAll(adds);
+        List<String> decoded = new ArrayList<>();
+        for (String key : list) {
+            decoded.add(key);
+        }
+        Assert.assertEquals(decoded, new ArrayList<>(expected));
+        Assert.assertEquals(list.size(), expected.size());
+        Assert.assertTrue(PostingList.EMPTY.with(Arrays.asList("b", "a"), Arrays.<String>asList()).iterator()
+                .next().equals("a"));
+    }
 }
@@ -16,6 +16,8 @@ public class Transaction {
     }
 
     String transactionId;
+    volatile long lastAccess;
+    private boolean released = false;
 
     public Transaction(DatabaseTableProvider provider, String name, TransactionWorker worker) {
         this.provider = provider;
@@ -24,21 +26,71 @@ public class Transaction {
         tableTransactionId = TransactionPool.getInstance().createTransaction();
         TransactionPool.getInstance().getTransaction(tableTransactionId).defineStorage(table);
         transactionId = worker.makeId();
+        lastAccess = worker.now();
     }
 
-    public int commit() throws IOException {
-        int diff = table.commit(tableTransactionId);
-        worker.stopTransaction(transactionId);
-        return diff;
+    /**
+     * Marks the transaction as used now. Returns false if it is already committed, rolled back
+     * or reaped.
+     */
+    synchronized boolean touch() {
+        if (released) {
+            return false;
+        }
+        lastAccess = worker.now();
+        return true;
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Rolls the transaction back if it was last used before {@code deadline}. Checked under the
+     * same lock as {@link #touch}, so a transaction that has just been handed out is not reaped.
+     */
+    synchronized boolean rollbackIfIdle(long deadline) throws IOException {
+        if (released || lastAccess >= deadline) {
+            return false;
+        }
+        rollback();
+        return true;
+    }
+
+    public synchronized int commit() throws IOException {
+        try {
+            return table.commit(tableTransactionId);
+        } finally {
+            release();
+        }
     }
 
-    public int rollback() throws IOException {
-        int diff = table.rollback(tableTransactionId);
+    public synchronized int rollback() throws IOException {
+        try {
+            return table.rollback(tableTransactionId);
+        } finally {
+            release();
+        }
+    }
+
+    private void release() {
+        released = true;
         worker.stopTransaction(transactionId);
-        return diff;
+        TransactionPool.getInstance().releaseTransaction(tableTransactionId);
+    }
+
+    /**
+     * get, put and size run under the same lock as commit and rollback, so they never see the
+     * table transaction half released.
+     */
+    private void checkActive() {
+        if (released) {
+            throw new IllegalStateException("Transaction is finished");
+        }
     }
 
-    public String get(String key) {
+    public synchronized String get(String key) {
+        checkActive();
         Storeable value = table.get(key, tableTransactionId);
         if (value == null) {
             throw new IllegalArgumentException("key not found");
@@ -46,7 +98,8 @@ public class Transaction {
         return provider.serialize(table, value);
     }
 
-    public String put(String key, String value) throws IOException {
+    public synchronized String put(String key, String value) throws IOException {
+        checkActive();
         try {
             Storeable oldValue = table.put(key, provider.deserialize(table, value), tableTransactionId);
             if (oldValue == null) {
@@ -58,7 +111,8 @@ public class Transaction {
         }
     }
 
-    public int size() {
+    public synchronized int size() {
+        checkActive();
         return table.size(tableTransactionId);
     }
 }
@@ -1,40 +1,76 @@
 package ru.fizteh.fivt.students.yaninaAnastasia.filemap;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TransactionPool {
-    private static TransactionPool ourInstance = new TransactionPool();
-    private Map<Long, TransactionWithModifies> pool = new HashMap<>();
-    private long counter = 0;
-    private ReadWriteLock lock = new ReentrantReadWriteLock();
+    public static final int DEFAULT_CAPACITY = 100000;
+
+    private static TransactionPool ourInstance = new TransactionPool(DEFAULT_CAPACITY);
+    private ConcurrentHashMap<Long, TransactionWithModifies> pool = new ConcurrentHashMap<>();
+    private AtomicLong counter = new AtomicLong();
+    private AtomicInteger occupancy = new AtomicInteger();
+    private volatile int capacity;
 
     public static TransactionPool getInstance() {
         return ourInstance;
     }
 
-    private TransactionPool() {
+    TransactionPool(int capacity) {
+        setCapacity(capacity);
     }
 
     public TransactionWithModifies getTransaction(Long id) {
-        lock.readLock().lock();
-        try {
-            return pool.get(id);
-        } finally {
-            lock.readLock().unlock();
-        }
+        return pool.get(id);
     }
 
     public long createTransaction() {
-        lock.writeLock().lock();
-        try {
-            long id = counter++;
-            pool.put(id, new TransactionWithModifies());
-            return id;
-        } finally {
-            lock.writeLock().unlock();
+        int current;
+        do {
+            current = occupancy.get();
+            if (current >= capacity) {
+                throw new IllegalStateException("Too many open transactions");
+            }
+        } while (!occupancy.compareAndSet(current, current + 1));
+        TransactionWithModifies transaction = new TransactionWithModifies();
+        transaction.counted = true;
+        return register(transaction);
+    }
+
+    /**
+     * Creates the per-thread transaction of a table. Such transactions are not counted against the
+     * capacity: a thread gets one on its first access without asking for it.
+     */
+    public long createImplicitTransaction() {
+        return register(new TransactionWithModifies());
+    }
+
+    private long register(TransactionWithModifies transaction) {
+        long id = counter.getAndIncrement();
+        pool.put(id, transaction);
+        return id;
+    }
+
+    public void releaseTransaction(long id) {
+        TransactionWithModifies transaction = pool.remove(id);
+        if (transaction != null && transaction.counted) {
+            occupancy.decrementAndGet();
+        }
+    }
+
+    public int getOccupancy() {
+        return occupancy.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity should be positive");
         }
+        this.capacity = capacity;
     }
 }
@@ -10,6 +10,7 @@ public class TransactionWithModifies {
     HashSet<String> deletedKeys;
     DatabaseTable tableInstance;
     int uncommittedChanges;
+    boolean counted;
 
     public TransactionWithModifies() {
         this.modifiedData = new HashMap<String, Storeable>();
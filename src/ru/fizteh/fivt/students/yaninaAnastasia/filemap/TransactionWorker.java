@@ -1,16 +1,46 @@
 package ru.fizteh.fivt.students.yaninaAnastasia.filemap;
 
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TransactionWorker {
-    Map<String, Transaction> transactions = new HashMap<String, Transaction>();
+    public static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+    interface Clock {
+        long currentTimeMillis();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    Map<String, Transaction> transactions = new ConcurrentHashMap<String, Transaction>();
     DatabaseTableProvider provider;
+    private final Clock clock;
+    private ScheduledExecutorService reaper;
 
-    int counter = 0;
+    AtomicInteger counter = new AtomicInteger();
 
     public TransactionWorker(DatabaseTableProvider provider) {
+        this(provider, SYSTEM_CLOCK);
+    }
+
+    TransactionWorker(DatabaseTableProvider provider, Clock clock) {
         this.provider = provider;
+        this.clock = clock;
+    }
+
+    long now() {
+        return clock.currentTimeMillis();
     }
 
     public String startTransaction(String name) {
@@ -20,20 +50,70 @@ public class TransactionWorker {
     }
 
     public Transaction getTransaction(String id) {
-        return transactions.get(id);
+        Transaction transaction = transactions.get(id);
+        if (transaction == null || !transaction.touch()) {
+            return null;
+        }
+        return transaction;
     }
 
     void stopTransaction(String id) {
         transactions.remove(id);
     }
 
+    public int getOpenTransactionsCount() {
+        return transactions.size();
+    }
+
+    public synchronized void startReaper(final long idleTimeout) {
+        if (reaper != null) {
+            return;
+        }
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "transaction-reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(idleTimeout / 2, 1);
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reapIdle(idleTimeout);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopReaper() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+            reaper = null;
+        }
+    }
+
+    public int reapIdle(long idleTimeout) {
+        long deadline = now() - idleTimeout;
+        int reaped = 0;
+        for (Transaction transaction : transactions.values()) {
+            try {
+                if (transaction.rollbackIfIdle(deadline)) {
+                    reaped++;
+                }
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+        return reaped;
+    }
+
     String makeId() {
         StringBuilder builder = new StringBuilder();
-        builder.append(counter);
+        builder.append(counter.getAndIncrement());
         while (builder.length() < 5) {
             builder.insert(0, 0);
         }
-        counter += 1;
         return builder.toString();
     }
 }
@@ -0,0 +1,176 @@
+package ru.fizteh.fivt.students.yaninaAnastasia.filemap;
+
+import ru.fizteh.fivt.storage.structured.ColumnFormatException;
+import ru.fizteh.fivt.storage.structured.Storeable;
+
+import java.text.ParseException;
+import java.util.List;
+
+/**
+ * Single-pass parser for the {@code <row><col>..</col><null/></row>} format written by
+ * {@link Serializer}. It walks the characters of the string once and converts every column
+ * straight into its type: integers are accumulated digit by digit and text is only copied
+ * when a String column needs it.
+ */
+public class XmlRowParser {
+    private final String text;
+    private int position = 0;
+
+    private XmlRowParser(String text) {
+        this.text = text;
+    }
+
+    public static Storeable parse(List<Class<?>> types, String text) throws ParseException {
+        return new XmlRowParser(text).parseRow(types);
+    }
+
+    private Storeable parseRow(List<Class<?>> types) throws ParseException {
+        DatabaseStoreable row = new DatabaseStoreable(types);
+        expectTag("row");
+        for (int i = 0; i < types.size(); ++i) {
+            skipSpaces();
+            if (text.startsWith("<null/>", position)) {
+                position += "<null/>".length();
+                continue;
+            }
+            if (text.startsWith("<null>", position)) {
+                position += "<null>".length();
+                expectTag("/null");
+                continue;
+            }
+            expectTag("col");
+            int end = text.indexOf('<', position);
+            if (end < 0) {
+                throw new ParseException("Unexpected end of row", position);
+            }
+            if (end == position) {
+                throw new ParseException("Empty column", position);
+            }
+            try {
+                parseValue(row, i, types.get(i), position, end);
+            } catch (NumberFormatException e) {
+                throw new ParseException("incompatible type: " + e.getMessage(), position);
+            } catch (ColumnFormatException e) {
+                throw new ParseException("incompatible type: " + e.getMessage(), position);
+            }
+            position = end;
+            expectTag("/col");
+        }
+        expectTag("/row");
+        skipSpaces();
+        if (position != text.length()) {
+            throw new ParseException("Xml representation doesn't match the format", position);
+        }
+        return row;
+    }
+
+    private void parseValue(DatabaseStoreable row, int column, Class<?> type, int start, int end)
+            throws ParseException {
+        if (type == Integer.class) {
+            row.setInt(column, (int) parseLong(start, end, Integer.MIN_VALUE, Integer.MAX_VALUE));
+        } else if (type == Long.class) {
+            row.setLong(column, parseLong(start, end, Long.MIN_VALUE, Long.MAX_VALUE));
+        } else if (type == Byte.class) {
+            row.setByte(column, (byte) parseLong(start, end, Byte.MIN_VALUE, Byte.MAX_VALUE));
+        } else if (type == Boolean.class) {
+            row.setBoolean(column, end - start == 4 && text.regionMatches(true, start, "true", 0, 4));
+        } else if (type == Float.class) {
+            row.setFloat(column, Float.parseFloat(text.substring(start, end)));
+        } else if (type == Double.class) {
+            row.setDouble(column, Double.parseDouble(text.substring(start, end)));
+        } else {
+            String value = unescape(start, end);
+            if (value.trim().isEmpty()) {
+                throw new ParseException("value cannot be null", start);
+            }
+            row.setString(column, value);
+        }
+    }
+
+    private long parseLong(int start, int end, long min, long max) {
+        int current = start;
+        boolean negative = false;
+        if (text.charAt(current) == '-' || text.charAt(current) == '+') {
+            negative = text.charAt(current) == '-';
+            ++current;
+        }
+        if (current == end) {
+            throw new NumberFormatException(text.substring(start, end));
+        }
+        long result = 0;
+        long limit = negative ? min : -max;
+        long multiplyLimit = limit / 10;
+        for (; current < end; ++current) {
+            int digit = Character.digit(text.charAt(current), 10);
+            if (digit < 0 || result < multiplyLimit || result * 10 < limit + digit) {
+                throw new NumberFormatException(text.substring(start, end));
+            }
+            result = result * 10 - digit;
+        }
+        return negative ? result : -result;
+    }
+
+    private String unescape(int start, int end) throws ParseException {
+        int ampersand = text.indexOf('&', start);
+        if (ampersand < 0 || ampersand >= end) {
+            return text.substring(start, end);
+        }
+        StringBuilder builder = new StringBuilder(end - start);
+        int current = start;
+        while (current < end) {
+            char c = text.charAt(current);
+            if (c != '&') {
+                builder.append(c);
+                ++current;
+                continue;
+            }
+            int semicolon = text.indexOf(';', current);
+            if (semicolon < 0 || semicolon >= end) {
+                throw new ParseException("Unterminated entity", current);
+            }
+            if (text.startsWith("&lt;", current)) {
+                builder.append('<');
+            } else if (text.startsWith("&gt;", current)) {
+                builder.append('>');
+            } else if (text.startsWith("&amp;", current)) {
+                builder.append('&');
+            } else if (text.startsWith("&quot;", current)) {
+                builder.append('"');
+            } else if (text.startsWith("&apos;", current)) {
+                builder.append('\'');
+            } else if (text.startsWith("&#x", current)) {
+                builder.appendCodePoint(parseCode(current + 3, semicolon, 16));
+            } else if (text.startsWith("&#", current)) {
+                builder.appendCodePoint(parseCode(current + 2, semicolon, 10));
+            } else {
+                throw new ParseException("Unknown entity", current);
+            }
+            current = semicolon + 1;
+        }
+        return builder.toString();
+    }
+
+    private int parseCode(int start, int end, int radix) throws ParseException {
+        try {
+            return Integer.parseInt(text.substring(start, end), radix);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Wrong character reference", start);
+        }
+    }
+
+    private void expectTag(String name) throws ParseException {
+        skipSpaces();
+        int close = position + name.length() + 1;
+        if (close >= text.length() || text.charAt(position) != '<' || !text.startsWith(name, position + 1)
+                || text.charAt(close) != '>') {
+            throw new ParseException("Incorrect XML format: <" + name + "> expected", position);
+        }
+        position += name.length() + 2;
+    }
+
+    private void skipSpaces() {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+            ++position;
+        }
+    }
+}